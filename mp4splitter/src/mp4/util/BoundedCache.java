@@ -0,0 +1,218 @@
+package mp4.util;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import mp4.util.atom.AtomException;
+
+/**
+ * A thread-safe cache that loads its values on demand and keeps them
+ * within a memory budget.  The least recently used values are evicted
+ * when the total weight of the values is over the budget.  When many
+ * threads ask for a key that isn't in the cache, the value is loaded once
+ * by the first thread, and the others wait for it.
+ *
+ * @param <K> the key type, which must implement equals() and hashCode()
+ * @param <V> the value type
+ */
+abstract class BoundedCache<K, V> {
+  /**
+   * A value that may still be loading.  The weight is 0 until the load
+   * finishes.
+   */
+  private class Slot {
+    private final FutureTask<V> task;
+    private long weight;
+
+    Slot(FutureTask<V> task) {
+      this.task = task;
+    }
+  }
+
+  // the memory budget for the values, in bytes
+  private final long budget;
+  // the values in order of use, least recent first
+  private final LinkedHashMap<K, Slot> slots = new LinkedHashMap<K, Slot>(16, 0.75f, true);
+  // the memory used by the loaded values
+  private long used;
+  // statistics
+  private long hits;
+  private long misses;
+  private long evictions;
+  private long loadTime;
+  private long loadFailures;
+
+  /**
+   * Create a cache
+   * @param budget the memory budget for the values, in bytes
+   */
+  protected BoundedCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Load the value for a key.  Called by the first thread that misses.
+   * @param key the key
+   * @return the value
+   * @throws Exception if the value can't be loaded
+   */
+  protected abstract V load(K key) throws Exception;
+
+  /**
+   * Return the memory used by a value
+   * @param value the value
+   * @return the weight in bytes
+   */
+  protected abstract long weigh(V value);
+
+  /**
+   * Called for each value that is evicted, while holding the cache's
+   * lock.  Does nothing unless overridden.
+   * @param value the evicted value
+   */
+  protected void evicted(V value) {
+  }
+
+  /**
+   * Return the value for a key, loading it if it isn't in the cache
+   * @param key the key
+   * @return the value
+   * @throws IOException if the load fails with an IOException
+   * @throws AtomException if the load fails with an AtomException
+   */
+  public V get(final K key) throws IOException, AtomException {
+    Slot slot;
+    boolean load = false;
+    synchronized (this) {
+      slot = slots.get(key);
+      if (slot != null) {
+        hits++;
+      }
+      else {
+        misses++;
+        slot = new Slot(new FutureTask<V>(new Callable<V>() {
+          public V call() throws Exception {
+            return load(key);
+          }
+        }));
+        slots.put(key, slot);
+        load = true;
+      }
+    }
+    if (load) {
+      long start = System.nanoTime();
+      slot.task.run();
+      loaded(key, slot, System.nanoTime() - start);
+    }
+    try {
+      return slot.task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while loading " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof AtomException) {
+        throw (AtomException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException("Unable to load " + key, cause);
+    }
+  }
+
+  /**
+   * Account for a value that has finished loading, and evict values
+   * until the cache is within its budget.  A failed load is removed, so
+   * the next request tries again.
+   * @param key the key
+   * @param slot the value
+   * @param nanos the time taken by the load
+   */
+  private synchronized void loaded(K key, Slot slot, long nanos) {
+    loadTime += nanos;
+    V value;
+    try {
+      value = slot.task.get();
+    } catch (Exception e) {
+      loadFailures++;
+      if (slots.get(key) == slot) {
+        slots.remove(key);
+      }
+      return;
+    }
+    if (slots.get(key) != slot) {
+      return;
+    }
+    slot.weight = weigh(value);
+    used += slot.weight;
+    // the newest value is kept, even if it's over the budget by itself
+    Iterator<Map.Entry<K, Slot>> i = slots.entrySet().iterator();
+    while (used > budget && i.hasNext()) {
+      Slot s = i.next().getValue();
+      if (s == slot || !s.task.isDone()) {
+        continue;
+      }
+      used -= s.weight;
+      i.remove();
+      evictions++;
+      try {
+        evicted(s.task.get());
+      } catch (Exception e) {
+        // a failed load is removed when it finishes, so it isn't evicted
+      }
+    }
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+  public synchronized long getMisses() {
+    return misses;
+  }
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+  public synchronized long getLoadFailures() {
+    return loadFailures;
+  }
+
+  /**
+   * Return the total time spent loading values
+   * @return the load time in nanoseconds
+   */
+  public synchronized long getLoadTime() {
+    return loadTime;
+  }
+
+  /**
+   * Return the memory used by the loaded values
+   * @return the memory used in bytes
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Return the number of values, including the ones that are loading
+   * @return the number of values
+   */
+  public synchronized int size() {
+    return slots.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "entries " + slots.size() + " used " + used + "/" + budget +
+        " hits " + hits + " misses " + misses + " evictions " + evictions +
+        " failures " + loadFailures + " load time " + loadTime / 1000000 + " ms";
+  }
+}
@@ -0,0 +1,252 @@
+package mp4.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomSerializer;
+import mp4.util.atom.AtomSource;
+import mp4.util.atom.FtypAtom;
+import mp4.util.atom.MdatAtom;
+import mp4.util.atom.MoovAtom;
+
+/**
+ * A cache of serialized cut headers.  A cut starts at a key frame in each
+ * track, so many cut times give the same output.  The cache is keyed by
+ * the file, the key frame of each track and whether the mdat header is
+ * included, so the ftyp, cut moov and mdat header are only built and
+ * written once for each distinct cut.  A hit finds the key frames with
+ * MoovAtom.planCut(), looks up the header, and writes the buffer.
+ *
+ * The moov atoms come from a MoovCache.  Concurrent requests for the same
+ * cut share one computation, and the least recently used headers are
+ * evicted when the headers are over the memory budget.
+ */
+public class CutHeaderCache {
+  // the estimated memory used by each header besides its bytes
+  private static final long HEADER_OVERHEAD = 128;
+
+  /**
+   * The serialized ftyp, cut moov, and optional mdat header of a cut, and
+   * where the cut's media data starts in the mdat atom
+   */
+  public static class CutHeader {
+    // the header bytes
+    private final ByteBuffer header;
+    // the number of bytes of mdat data skipped by the cut
+    private final long mdatSkip;
+
+    CutHeader(ByteBuffer header, long mdatSkip) {
+      this.header = header;
+      this.mdatSkip = mdatSkip;
+    }
+
+    /**
+     * Return the number of bytes at the start of the mdat data that are
+     * not part of the cut
+     * @return the number of bytes skipped
+     */
+    public long getMdatSkip() {
+      return mdatSkip;
+    }
+
+    /**
+     * Return the size of the header
+     * @return the size in bytes
+     */
+    public int size() {
+      return header.remaining();
+    }
+
+    /**
+     * Write the header to a channel
+     * @param out where the header goes
+     * @throws IOException if there is an error writing the header
+     */
+    public void write(WritableByteChannel out) throws IOException {
+      ByteBuffer buf = header.duplicate();
+      while (buf.hasRemaining()) {
+        out.write(buf);
+      }
+    }
+
+    /**
+     * Return the cut mdat atom, which reads its data from the source.  The
+     * header and the atom's data together are the cut file.
+     * @param entry the cached atoms of the file
+     * @param source the atom source for the file
+     * @return the cut mdat atom
+     */
+    public MdatAtom getMdat(MoovCache.Entry entry, AtomSource source) {
+      return entry.getMdat(source).cut(mdatSkip);
+    }
+  }
+
+  /**
+   * Identifies a cut
+   */
+  private static class Key {
+    // the atoms of the file, which are only needed until the header is
+    // built, so a cached header doesn't keep an evicted moov atom
+    private MoovCache.Entry entry;
+    private final String id;
+    private final long[] keyFrames;
+    private final float time;
+    private final boolean mdat;
+
+    Key(MoovCache.Entry entry, long[] keyFrames, float time, boolean mdat) {
+      this.entry = entry;
+      this.id = entry.getId();
+      this.keyFrames = keyFrames;
+      this.time = time;
+      this.mdat = mdat;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return id.equals(k.id) && mdat == k.mdat && Arrays.equals(keyFrames, k.keyFrames);
+    }
+
+    @Override
+    public int hashCode() {
+      return (id.hashCode() * 31 + Arrays.hashCode(keyFrames)) * 2 + (mdat ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+      return id + " " + Arrays.toString(keyFrames);
+    }
+  }
+
+  // the moov atoms
+  private final MoovCache moovs;
+  // the headers
+  private final BoundedCache<Key, CutHeader> cache;
+
+  /**
+   * Create a cache of cut headers
+   * @param moovs the cache with the moov atoms
+   * @param budget the memory budget for the headers, in bytes
+   */
+  public CutHeaderCache(MoovCache moovs, long budget) {
+    this.moovs = moovs;
+    this.cache = new BoundedCache<Key, CutHeader>(budget) {
+      @Override
+      protected CutHeader load(Key key) throws Exception {
+        return build(key);
+      }
+      @Override
+      protected long weigh(CutHeader header) {
+        return header.size() + HEADER_OVERHEAD;
+      }
+    };
+  }
+
+  /**
+   * Return the header for a cut of a file at the specified time
+   * @param file the mp4 file
+   * @param time the time of the cut, in seconds
+   * @param mdat true if the header ends with the mdat header
+   * @return the cut header
+   * @throws IOException if there is an error reading the file
+   * @throws AtomException if the file isn't a valid mp4 file
+   */
+  public CutHeader get(Path file, float time, boolean mdat) throws IOException, AtomException {
+    MoovCache.Entry entry = moovs.get(file);
+    try {
+      return get(entry, time, mdat);
+    } finally {
+      entry.release();
+    }
+  }
+
+  /**
+   * Return the header for a cut of a cached file at the specified time
+   * @param entry the cached atoms of the file
+   * @param time the time of the cut, in seconds
+   * @param mdat true if the header ends with the mdat header
+   * @return the cut header
+   * @throws IOException if there is an error building the header
+   * @throws AtomException if the header can't be built
+   */
+  public CutHeader get(MoovCache.Entry entry, float time, boolean mdat) throws IOException, AtomException {
+    long[] keyFrames = entry.getMoov().planCut(time);
+    return cache.get(new Key(entry, keyFrames, time, mdat));
+  }
+
+  /**
+   * Cut the movie and serialize the header, the way Mp4Split does
+   * @param key the cut
+   * @return the header
+   * @throws IOException if there is an error writing the header
+   */
+  private static CutHeader build(Key key) throws IOException {
+    FtypAtom ftyp = key.entry.getFtyp();
+    MoovAtom moov = key.entry.getMoov();
+    MoovAtom cutMoov = moov.cut(key.time);
+    long mdatSkip = cutMoov.firstDataByteOffset() - moov.firstDataByteOffset();
+    MdatAtom cutMdat = key.entry.getMdat(null).cut(mdatSkip);
+
+    AtomSerializer serializer = new AtomSerializer();
+    serializer.add(ftyp);
+    serializer.add(cutMoov);
+    if (key.mdat) {
+      serializer.addHeader(cutMdat);
+    }
+    long size = serializer.layout();
+    long outputDataOffset = ftyp.size() + cutMoov.size() + cutMdat.getHeaderSize();
+    cutMoov.fixupOffsets(-(cutMdat.getDataOffset() - outputDataOffset));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) size);
+    DataOutputStream out = new DataOutputStream(bytes);
+    ftyp.writeData(out);
+    cutMoov.writeData(out);
+    if (key.mdat) {
+      cutMdat.writeHeader(out);
+    }
+    out.flush();
+    cutMoov.releaseData();
+    key.entry = null;
+    return new CutHeader(ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer(), mdatSkip);
+  }
+
+  public long getHits() {
+    return cache.getHits();
+  }
+  public long getMisses() {
+    return cache.getMisses();
+  }
+  public long getEvictions() {
+    return cache.getEvictions();
+  }
+
+  /**
+   * Return the total time spent building headers
+   * @return the build time in nanoseconds
+   */
+  public long getLoadTime() {
+    return cache.getLoadTime();
+  }
+
+  /**
+   * Return the memory used by the headers
+   * @return the memory used in bytes
+   */
+  public long getUsed() {
+    return cache.getUsed();
+  }
+
+  @Override
+  public String toString() {
+    return "CutHeaderCache " + cache;
+  }
+}
@@ -0,0 +1,380 @@
+package mp4.util;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+
+import mp4.util.atom.Atom;
+import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomReader;
+import mp4.util.atom.AtomSource;
+import mp4.util.atom.AtomType;
+import mp4.util.atom.ChannelAtomSource;
+import mp4.util.atom.ContainerAtom;
+import mp4.util.atom.FtypAtom;
+import mp4.util.atom.LeafAtom;
+import mp4.util.atom.MdatAtom;
+import mp4.util.atom.MoovAtom;
+import mp4.util.atom.StblAtom;
+import mp4.util.atom.TrakAtom;
+
+/**
+ * A cache of parsed mp4 files, for a process that cuts the same files
+ * many times.  Each entry has the ftyp and moov atoms of a file, with all
+ * their data read in to memory, and the location of the mdat atom.  The
+ * entries are shared by every thread, so they must not be changed.
+ * Cutting the moov atom creates new atoms and leaves it alone, and
+ * getMdat() returns a new mdat atom for each cut.
+ *
+ * A file is found by its canonical path, size and modification time, so
+ * a file that changes is parsed again.  The least recently used entries
+ * are evicted when the memory used by the entries is over the budget.
+ * When many threads ask for a file that isn't in the cache, it is only
+ * parsed once, and the other threads wait for it.
+ *
+ * The indexes of the sample tables, which are otherwise built by the
+ * first cut that needs them, are built when a file is parsed, so the
+ * memory they use is counted in the budget.
+ *
+ * Each entry returned by get() must be given back with Entry.release()
+ * when the caller is done with it.  The data of an evicted entry, which
+ * may be off heap, is freed once no caller is using it.
+ */
+public class MoovCache {
+  // the estimated memory used by each atom object, besides its data
+  private static final long ATOM_OVERHEAD = 96;
+
+  /**
+   * The parsed atoms of one file
+   */
+  public static class Entry {
+    // identifies the version of the file
+    private final String id;
+    private final FtypAtom ftyp;
+    private final MoovAtom moov;
+    private final MdatAtom mdat;
+    // the estimated memory used by the atoms and the indexes
+    private final long footprint;
+    // the number of callers using the entry
+    private int users;
+    // true once the entry has left the cache
+    private boolean evicted;
+
+    Entry(String id, FtypAtom ftyp, MoovAtom moov, MdatAtom mdat, long footprint) {
+      this.id = id;
+      this.ftyp = ftyp;
+      this.moov = moov;
+      this.mdat = mdat;
+      this.footprint = footprint;
+    }
+
+    /**
+     * Return a string that identifies the path, size and modification
+     * time of the file
+     * @return the file identity
+     */
+    public String getId() {
+      return id;
+    }
+    public FtypAtom getFtyp() {
+      return ftyp;
+    }
+    public MoovAtom getMoov() {
+      return moov;
+    }
+    public long getFootprint() {
+      return footprint;
+    }
+
+    /**
+     * Add a user of the entry
+     * @return false if the entry has been freed and can't be used
+     */
+    synchronized boolean retain() {
+      if (evicted && users == 0) {
+        return false;
+      }
+      users++;
+      return true;
+    }
+
+    /**
+     * Give back the entry.  The data is freed if the entry has been
+     * evicted and this was its last user.
+     */
+    public synchronized void release() {
+      if (--users == 0 && evicted) {
+        free();
+      }
+    }
+
+    /**
+     * Mark the entry as evicted, and free its data if it isn't being used
+     */
+    synchronized void evict() {
+      evicted = true;
+      if (users == 0) {
+        free();
+      }
+    }
+
+    /**
+     * Free the data of the atoms, including any off-heap storage
+     */
+    private void free() {
+      ftyp.releaseData();
+      moov.releaseData();
+      System.out.println("DBG: freed moov cache entry " + id);
+    }
+
+    /**
+     * Return a new mdat atom that reads its data from the source.  The
+     * mdat atom is changed by a cut, so each cut needs its own.
+     * @param source the atom source for the file
+     * @return the mdat atom
+     */
+    public MdatAtom getMdat(AtomSource source) {
+      MdatAtom copy = new MdatAtom(mdat);
+      copy.setSource(source);
+      return copy;
+    }
+  }
+
+  /**
+   * Identifies a version of a file
+   */
+  private static class Key {
+    private final Path path;
+    private final long size;
+    private final long modified;
+
+    Key(Path path, long size, long modified) {
+      this.path = path;
+      this.size = size;
+      this.modified = modified;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return path.equals(k.path) && size == k.size && modified == k.modified;
+    }
+
+    @Override
+    public int hashCode() {
+      return path.hashCode() * 31 + (int) (size ^ modified);
+    }
+
+    @Override
+    public String toString() {
+      return path + " " + size + " " + modified;
+    }
+  }
+
+  // the entries, loaded by parsing the file
+  private final BoundedCache<Key, Entry> cache;
+
+  /**
+   * Create a cache
+   * @param budget the memory budget for the entries, in bytes
+   */
+  public MoovCache(long budget) {
+    cache = new BoundedCache<Key, Entry>(budget) {
+      @Override
+      protected Entry load(Key key) throws Exception {
+        return MoovCache.load(key);
+      }
+      @Override
+      protected long weigh(Entry entry) {
+        return entry.getFootprint();
+      }
+      @Override
+      protected void evicted(Entry entry) {
+        entry.evict();
+      }
+    };
+  }
+
+  /**
+   * Return the parsed atoms of a file, parsing the file if it isn't in the
+   * cache.  The entry must be given back with release().
+   * @param file the mp4 file
+   * @return the cache entry
+   * @throws IOException if there is an error reading the file
+   * @throws AtomException if the file isn't a valid mp4 file
+   */
+  public Entry get(Path file) throws IOException, AtomException {
+    Path path = file.toRealPath();
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    Key key = new Key(path, attrs.size(), attrs.lastModifiedTime().toMillis());
+    while (true) {
+      Entry entry = cache.get(key);
+      // an entry evicted and freed since it was found is parsed again
+      if (entry.retain()) {
+        return entry;
+      }
+    }
+  }
+
+  /**
+   * Parse a file and read the data of the ftyp and moov atoms.  The file
+   * is closed afterwards.
+   * @param key identifies the file
+   * @return the cache entry
+   * @throws IOException if there is an error reading the file
+   * @throws AtomException if the file isn't a valid mp4 file
+   */
+  private static Entry load(Key key) throws IOException, AtomException {
+    FileChannel channel = FileChannel.open(key.path, StandardOpenOption.READ);
+    try {
+      return parse(key.toString(), new ChannelAtomSource(channel));
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Parse an mp4 file, read the data of the ftyp and moov atoms, and build
+   * the indexes of the sample tables, so the entry doesn't use the source
+   * afterwards.  The entry isn't cached.
+   * @param id identifies the file
+   * @param source the atom source for the file
+   * @return the parsed atoms
+   * @throws IOException if there is an error reading the file
+   * @throws AtomException if the file isn't a valid mp4 file
+   */
+  static Entry parse(String id, AtomSource source) throws IOException, AtomException {
+    AtomReader reader = new AtomReader(source);
+    Mp4Parser parser = new Mp4Parser(reader);
+    FtypAtom ftyp = null;
+    MoovAtom moov = null;
+    MdatAtom mdat = null;
+    Atom atom;
+    while ((atom = reader.nextAtom()) != null) {
+      int type = atom.getType();
+      if (type == AtomType.FTYP) {
+        atom.accept(parser);
+        ftyp = (FtypAtom) atom;
+      }
+      else if (type == AtomType.MOOV) {
+        atom.accept(parser);
+        moov = (MoovAtom) atom;
+      }
+      else if (type == AtomType.MDAT) {
+        mdat = (MdatAtom) atom;
+      }
+      reader.seek(atom.getOffset() + atom.size());
+    }
+    if (ftyp == null || moov == null || mdat == null) {
+      throw new AtomException("Missing ftyp, moov, or mdat atom in " + id);
+    }
+    long footprint = loadAll(ftyp) + loadAll(moov) + loadIndexes(moov);
+    return new Entry(id, ftyp, moov, mdat, footprint);
+  }
+
+  /**
+   * Read the data of an atom and its children
+   * @param atom the atom
+   * @return the estimated memory used by the atoms
+   */
+  private static long loadAll(Atom atom) {
+    long footprint = ATOM_OVERHEAD;
+    if (atom.isContainer()) {
+      for (Atom child : ((ContainerAtom) atom).getChildren()) {
+        footprint += loadAll(child);
+      }
+    }
+    else {
+      ((LeafAtom) atom).loadData();
+      footprint += atom.dataSize();
+    }
+    return footprint;
+  }
+
+  /**
+   * Build the indexes that a cut uses on the sample tables of the tracks
+   * @param moov the moov atom
+   * @return the estimated memory used by the indexes
+   */
+  private static long loadIndexes(MoovAtom moov) {
+    long footprint = 0;
+    for (Iterator<TrakAtom> i = moov.getTracks(); i.hasNext(); ) {
+      StblAtom stbl = i.next().getMdia().getMinf().getStbl();
+      footprint += ATOM_OVERHEAD + stbl.getStts().loadIndex();
+      if (stbl.getCtts() != null) {
+        footprint += ATOM_OVERHEAD + stbl.getCtts().loadIndex();
+      }
+      footprint += ATOM_OVERHEAD + stbl.getSyncSampleIndex().load();
+      footprint += ATOM_OVERHEAD + stbl.getSampleLocator().load();
+    }
+    return footprint;
+  }
+
+  /**
+   * Return the number of requests that found the file in the cache
+   * @return the number of hits
+   */
+  public long getHits() {
+    return cache.getHits();
+  }
+
+  /**
+   * Return the number of requests that parsed the file
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return cache.getMisses();
+  }
+
+  /**
+   * Return the number of entries evicted to stay within the budget
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return cache.getEvictions();
+  }
+
+  /**
+   * Return the total time spent parsing files
+   * @return the load time in nanoseconds
+   */
+  public long getLoadTime() {
+    return cache.getLoadTime();
+  }
+
+  /**
+   * Return the number of loads that failed
+   * @return the number of failed loads
+   */
+  public long getLoadFailures() {
+    return cache.getLoadFailures();
+  }
+
+  /**
+   * Return the estimated memory used by the entries
+   * @return the memory used in bytes
+   */
+  public long getUsed() {
+    return cache.getUsed();
+  }
+
+  /**
+   * Return the number of entries, including the ones that are loading
+   * @return the number of entries
+   */
+  public int size() {
+    return cache.size();
+  }
+
+  @Override
+  public String toString() {
+    return "MoovCache " + cache;
+  }
+}
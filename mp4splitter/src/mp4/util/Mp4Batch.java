@@ -0,0 +1,370 @@
+package mp4.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomSerializer;
+import mp4.util.atom.AtomSource;
+import mp4.util.atom.BufferPool;
+import mp4.util.atom.ChannelAtomSource;
+import mp4.util.atom.MdatAtom;
+import mp4.util.atom.MoovAtom;
+
+/**
+ * Cuts many clips from one mpeg4 file.  The file is parsed once, and the
+ * mdat data is read once, in file order, for all the clips.  Each buffer
+ * that is read is written to every clip whose data includes it, so data
+ * shared by clips that overlap is only read once.
+ *
+ * The clips are listed in a file with one clip on each line:
+ *   start end output
+ * where start and end are in seconds, and end is "-" for the end of the
+ * movie.  Blank lines and lines that start with # are skipped.
+ *
+ * At most maxOpen outputs are open at once.  A clip that starts while
+ * that many clips are being written waits for another pass over the file.
+ * The data is read through one buffer from the shared buffer pool.
+ */
+public class Mp4Batch {
+  public static String inputFile;
+  public static String listFile;
+  public static int maxOpen = 64;
+  public static boolean parallelCut = false;
+  public static int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+  public static int buffers = BufferPool.DEFAULT_DEPTH;
+
+  /**
+   * A clip and its progress
+   */
+  private static class Clip {
+    // the clip, as listed
+    final float start;
+    final float end;
+    final String output;
+    // the cut movie, until its header is written
+    MoovAtom cutMoov;
+    MdatAtom cutMdat;
+    // the range of the input with the clip's mdat data
+    long from;
+    long to;
+    // the output, while the clip is being written
+    FileChannel out;
+
+    Clip(float start, float end, String output) {
+      this.start = start;
+      this.end = end;
+      this.output = output;
+    }
+  }
+
+  // the parsed input file
+  private final MoovCache.Entry entry;
+  // the input file
+  private final AtomSource source;
+  // the clips, in order of their data
+  private final List<Clip> clips = new ArrayList<Clip>();
+
+  /**
+   * Parse the input file from its atom source, which is also used to read
+   * the mdat data
+   * @param file the mp4 file
+   * @param source the atom source for the file
+   * @throws IOException if there is an error reading the file
+   * @throws AtomException if the file isn't a valid mp4 file
+   */
+  public Mp4Batch(Path file, AtomSource source) throws IOException, AtomException {
+    this.entry = MoovCache.parse(file.toString(), source);
+    this.source = source;
+  }
+
+  /**
+   * Cut the movie for a clip and find its range of mdat data.  The header
+   * isn't written until the sweep reaches the clip.
+   * @param start the start of the clip, in seconds
+   * @param end the end of the clip, in seconds, or 0 for the end of the movie
+   * @param output the output file
+   */
+  public void addClip(float start, float end, String output) {
+    Clip clip = new Clip(start, end, output);
+    MoovAtom moov = entry.getMoov();
+    clip.cutMoov = moov.cut(start, parallelCut);
+    if (end > start) {
+      clip.cutMoov.trim(end - start);
+    }
+    long mdatSkip = clip.cutMoov.firstDataByteOffset() - moov.firstDataByteOffset();
+    clip.cutMdat = entry.getMdat(source).cut(mdatSkip);
+    if (end > start) {
+      clip.cutMdat.trim(clip.cutMoov.lastDataByteOffset() - clip.cutMdat.getDataOffset());
+    }
+    clip.from = clip.cutMdat.getDataOffset();
+    clip.to = clip.from + clip.cutMdat.dataSize();
+    System.out.println("DBG: clip " + output + " data " + clip.from + " to " + clip.to);
+    clips.add(clip);
+  }
+
+  /**
+   * Write all the clips.  Each pass reads the data from the first clip
+   * that hasn't been written to the end of the last clip that is open.
+   * @throws IOException if there is an error reading or writing the data
+   */
+  public void sweep() throws IOException {
+    List<Clip> pending = new ArrayList<Clip>(clips);
+    Collections.sort(pending, new Comparator<Clip>() {
+      public int compare(Clip a, Clip b) {
+        return Long.compare(a.from, b.from);
+      }
+    });
+    BufferPool pool = BufferPool.getShared();
+    ByteBuffer buf;
+    try {
+      buf = pool.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for a buffer");
+    }
+    int passes = 0;
+    long bytesRead = 0;
+    try {
+      while (!pending.isEmpty()) {
+        List<Clip> deferred = new ArrayList<Clip>();
+        bytesRead += pass(pending, deferred, buf);
+        pending = deferred;
+        passes++;
+      }
+    } finally {
+      pool.release(buf);
+    }
+    System.out.println("DBG: wrote " + clips.size() + " clips in " + passes + " passes, read " + bytesRead + " bytes");
+  }
+
+  /**
+   * Make one pass over the data.  A clip is opened when the pass reaches
+   * the start of its data, unless maxOpen clips are already open, and is
+   * closed after the end of its data.
+   * @param pending the clips to write, in order of their data
+   * @param deferred the clips left for the next pass
+   * @param buf the buffer for the data
+   * @return the number of bytes read
+   * @throws IOException if there is an error reading or writing the data
+   */
+  private long pass(List<Clip> pending, List<Clip> deferred, ByteBuffer buf) throws IOException {
+    List<Clip> open = new ArrayList<Clip>();
+    long bytesRead = 0;
+    int next = 0;
+    long pos = 0;
+    try {
+      while (next < pending.size() || !open.isEmpty()) {
+        if (open.isEmpty()) {
+          // skip the data that no clip needs
+          pos = Math.max(pos, pending.get(next).from);
+        }
+        long limit = pos + buf.capacity();
+        while (next < pending.size() && pending.get(next).from < limit) {
+          Clip clip = pending.get(next++);
+          if (open.size() < maxOpen) {
+            open(clip);
+            open.add(clip);
+          }
+          else {
+            deferred.add(clip);
+          }
+        }
+        long end = pos;
+        for (Clip clip : open) {
+          end = Math.max(end, Math.min(limit, clip.to));
+        }
+        if (end == pos) {
+          // only empty clips are open
+          closeFinished(open, pos);
+          continue;
+        }
+
+        buf.clear();
+        buf.limit((int) (end - pos));
+        while (buf.hasRemaining()) {
+          if (source.read(buf, pos + buf.position()) < 0) {
+            throw new IOException("Unexpected end of file in mdat atom");
+          }
+        }
+        bytesRead += end - pos;
+        for (Clip clip : open) {
+          long from = Math.max(pos, clip.from);
+          long to = Math.min(end, clip.to);
+          if (from < to) {
+            ByteBuffer part = buf.duplicate();
+            part.limit((int) (to - pos));
+            part.position((int) (from - pos));
+            while (part.hasRemaining()) {
+              clip.out.write(part);
+            }
+          }
+        }
+        pos = end;
+        closeFinished(open, pos);
+      }
+    } finally {
+      for (Clip clip : open) {
+        clip.out.close();
+      }
+    }
+    return bytesRead;
+  }
+
+  /**
+   * Close the clips whose data ends before the position
+   * @param open the open clips
+   * @param pos the position in the input
+   * @throws IOException if there is an error closing an output
+   */
+  private static void closeFinished(List<Clip> open, long pos) throws IOException {
+    for (int i = open.size() - 1; i >= 0; i--) {
+      Clip clip = open.get(i);
+      if (clip.to <= pos) {
+        clip.out.close();
+        open.remove(i);
+      }
+    }
+  }
+
+  /**
+   * Open the output of a clip and write its ftyp, moov and mdat headers,
+   * the way Mp4Split does.  The cut movie isn't needed afterwards.
+   * @param clip the clip
+   * @throws IOException if there is an error writing the header
+   */
+  private void open(Clip clip) throws IOException {
+    AtomSerializer serializer = new AtomSerializer();
+    serializer.add(entry.getFtyp());
+    serializer.add(clip.cutMoov);
+    serializer.addHeader(clip.cutMdat);
+    serializer.layout();
+    long outputDataOffset = entry.getFtyp().size() + clip.cutMoov.size() + clip.cutMdat.getHeaderSize();
+    clip.cutMoov.fixupOffsets(-(clip.cutMdat.getDataOffset() - outputDataOffset));
+    clip.out = FileChannel.open(Paths.get(clip.output), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      serializer.write(clip.out);
+    } catch (IOException e) {
+      clip.out.close();
+      throw e;
+    }
+    clip.cutMoov.releaseData();
+    clip.cutMoov = null;
+    clip.cutMdat = null;
+  }
+
+  /**
+   * Read the list of clips
+   * @param list the file with the clips
+   * @throws IOException if there is an error reading the list
+   */
+  private void readList(Path list) throws IOException {
+    BufferedReader in = Files.newBufferedReader(list);
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#")) {
+          continue;
+        }
+        String[] fields = line.split("\\s+");
+        if (fields.length != 3) {
+          throw new IOException("Invalid clip " + line);
+        }
+        float start = Float.valueOf(fields[0]);
+        float end = 0;
+        if (!fields[1].equals("-")) {
+          end = Float.valueOf(fields[1]);
+          if (end <= start) {
+            throw new IOException("Clip ends before it starts " + line);
+          }
+        }
+        addClip(start, end, fields[2]);
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Process the command line arguments.
+   * @param args the user-specified arguments
+   */
+  private static void processArgs(String[] args) {
+    int i = 0;
+    while (i < args.length) {
+      String arg = args[i];
+      if (arg.equals("-in")) {
+        inputFile = args[++i];
+      }
+      else if (arg.equals("-list")) {
+        listFile = args[++i];
+      }
+      else if (arg.equals("-max_open")) {
+        maxOpen = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-parallel_cut")) {
+        parallelCut = true;
+      }
+      else if (arg.equals("-buffer_size")) {
+        bufferSize = Integer.valueOf(args[++i]) * 1024;
+      }
+      else if (arg.equals("-buffers")) {
+        buffers = Integer.valueOf(args[++i]);
+      }
+      else {
+        help();
+      }
+      i++;
+    }
+    if (inputFile == null || listFile == null || maxOpen < 1) {
+      help();
+    }
+    BufferPool.configure(bufferSize, buffers);
+  }
+
+  private static void help() {
+    System.out.println("Mp4Batch <args>");
+    System.out.println("  -in <inputfile.mp4>");
+    System.out.println("  -list <clips>\teach line is: start end|- output");
+    System.out.println("  [-max_open <num>]\tdefault=64");
+    System.out.println("  [-parallel_cut]\tcut the tracks in parallel");
+    System.out.println("  [-buffer_size <KB>]\tdefault=" + BufferPool.DEFAULT_BUFFER_SIZE / 1024);
+    System.out.println("  [-buffers <num>]\tdefault=" + BufferPool.DEFAULT_DEPTH);
+    System.exit(-1);
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(String[] args) {
+    processArgs(args);
+    Path input = Paths.get(inputFile);
+    try {
+      FileChannel channel = FileChannel.open(input, StandardOpenOption.READ);
+      try {
+        Mp4Batch batch = new Mp4Batch(input, new ChannelAtomSource(channel));
+        batch.readList(Paths.get(listFile));
+        batch.sweep();
+      } finally {
+        channel.close();
+      }
+    } catch (AtomException e) {
+      System.err.println("Error parseing Mp4 file " + e);
+    } catch (IOException e) {
+      System.err.println("Error writing output ");
+      e.printStackTrace();
+    }
+  }
+}
@@ -1,19 +1,23 @@
 package mp4.util;
 
-import java.io.DataInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import mp4.util.atom.Atom;
 import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomReader;
+import mp4.util.atom.ChannelAtomSource;
+import mp4.util.atom.Co64Atom;
 import mp4.util.atom.CttsAtom;
 import mp4.util.atom.DefaultAtomVisitor;
 import mp4.util.atom.ElstAtom;
 import mp4.util.atom.FtypAtom;
 import mp4.util.atom.HdlrAtom;
 import mp4.util.atom.LeafAtom;
+import mp4.util.atom.MappedAtomSource;
 import mp4.util.atom.MdhdAtom;
 import mp4.util.atom.MvhdAtom;
 import mp4.util.atom.StcoAtom;
@@ -27,7 +31,7 @@ import mp4.util.atom.TkhdAtom;
 
 public class Mp4Dump extends DefaultAtomVisitor {
   // the input mp4 file
-  private DataInputStream mp4file;
+  private AtomReader mp4file;
   // the output stream
   private PrintStream out;
   // the current indentation level
@@ -38,6 +42,7 @@ public class Mp4Dump extends DefaultAtomVisitor {
   private static String outputFile = null;
   private static String inputFile = null; 
   private static int maxEntries = Integer.MAX_VALUE;
+  private static boolean mmap = false;
 
   /**
    * Constructor for the Mpeg-4 file reader.  It opens the mp4 file.
@@ -49,11 +54,17 @@ public class Mp4Dump extends DefaultAtomVisitor {
     this.out = System.out;
     this.mediaHandler = null;
     try {
-      mp4file = new DataInputStream(new FileInputStream(inputfn));
+      FileChannel channel = FileChannel.open(Paths.get(inputfn), StandardOpenOption.READ);
+      if (mmap) {
+        mp4file = new AtomReader(new MappedAtomSource(channel));
+      }
+      else {
+        mp4file = new AtomReader(new ChannelAtomSource(channel));
+      }
       if (outputfn != null) {
         this.out = new PrintStream(outputfn);
       }
-    } catch (FileNotFoundException e) {
+    } catch (IOException e) {
       System.err.println("File not found " + inputfn);
       e.printStackTrace();
       System.exit(-1);
@@ -77,7 +88,7 @@ public class Mp4Dump extends DefaultAtomVisitor {
   private void printLeafHeader(LeafAtom atom) throws AtomException {
     indent();
     out.print(atom);
-    atom.readData(mp4file);
+    atom.readData(mp4file.getSource());
   }
 
   
@@ -96,26 +107,15 @@ public class Mp4Dump extends DefaultAtomVisitor {
     out.println(atom);
     if (atom.isContainer()) {
       level = level + 1;
-      long bytesRead = 0;
-      long bytesToRead = atom.dataSize();
-      while (bytesRead < bytesToRead) {
-        bytesRead += printAtom();
-      }
-      level = level - 1;
-    }
-    else {
-      try {
-        // some more ugly code to deal with unsigned vs. signed problems
-        long dataSize = atom.dataSize();
-        while (dataSize > Integer.MAX_VALUE) {
-          mp4file.skipBytes(Integer.MAX_VALUE);
-          dataSize -= Integer.MAX_VALUE;
+      long end = atom.getOffset() + atom.size();
+      while (mp4file.position() < end) {
+        if (printAtom() == -1) {
+          throw new AtomException("Unexpected end of file in " + atom);
         }
-        mp4file.skipBytes((int)dataSize);
-      } catch (IOException e) {
-        throw new AtomException("Unable to read mp4 file");
       }
+      level = level - 1;
     }
+    // a leaf is skipped, the next atom is read from the end of this one
   }
   
   @Override
@@ -174,6 +174,18 @@ public class Mp4Dump extends DefaultAtomVisitor {
     out.println();
   }
 
+  @Override
+  public void visit(Co64Atom atom) throws AtomException {
+    printLeafHeader(atom);
+    out.println(" entries " + atom.getNumEntries());
+    level = level + 1;
+    for (int i = 0; i < atom.getNumEntries() && i < maxEntries; i++) {
+      indent();
+      out.println((i+1) + " " + atom.getChunkOffset(i+1));
+    }
+    level = level - 1;
+  }
+
   @Override
   public void visit(StcoAtom atom) throws AtomException {
     printLeafHeader(atom);
@@ -278,44 +290,13 @@ public class Mp4Dump extends DefaultAtomVisitor {
    * @throws AtomException
    */
   private long printAtom() throws AtomException {
-    // get the atom size
-    byte[] word = new byte[Atom.ATOM_WORD];
-    int num;
-    try {
-      num = mp4file.read(word);
-    } catch (IOException e1) {
-      throw new AtomException("IOException while reading file");
-    }
-    // check for end of file
-    if (num == -1) {
+    Atom atom = mp4file.nextAtom();
+    if (atom == null) {
       return -1;
     }
-    if (num != Atom.ATOM_WORD) {
-      throw new AtomException("Unable to read enough bytes for atom");
-    }
-    long size = Atom.byteArrayToUnsignedInt(word, 0);
-    // get the atom type
-    try {
-      num = mp4file.read(word);
-    } catch (IOException e1) {
-      throw new AtomException("IOException while reading file");
-    }
-    if (num != Atom.ATOM_WORD) {
-      throw new AtomException("Unable to read enough bytes for atom");  
-    }
-    try {
-      Class<?> cls = Class.forName(Atom.typeToClassName(word));
-      Atom atom = (Atom) cls.newInstance();
-      atom.setSize(size);
-      atom.accept(this);
-    } catch (ClassNotFoundException e) {
-      throw new AtomException("Class not found " + e);
-    } catch (InstantiationException e) {
-      throw new AtomException("Unable to instantiate atom");
-    } catch (IllegalAccessException e) {
-      throw new AtomException("Unabel to access atom object");
-    }
-    return size;
+    atom.accept(this);
+    mp4file.seek(atom.getOffset() + atom.size());
+    return atom.size();
   }
     
   public void printDuration(long timeScale, long duration) {
@@ -353,6 +334,9 @@ public class Mp4Dump extends DefaultAtomVisitor {
       else if (arg.equals("-top")) {
         maxEntries = Integer.valueOf(args[++i]);
       }
+      else if (arg.equals("-mmap")) {
+        mmap = true;
+      }
       else {
         help();
       }
@@ -368,6 +352,7 @@ public class Mp4Dump extends DefaultAtomVisitor {
     System.out.println("  -in inputfile.mp4");
     System.out.println("  [-out outputfile.txt]\tdefault=System.out");
     System.out.println("  [-top num]\tdefault=all");
+    System.out.println("  [-mmap]\tparse the mp4 file using a memory mapping");
     System.exit(-1);
   }
   
@@ -0,0 +1,329 @@
+package mp4.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import mp4.util.atom.Atom;
+import mp4.util.atom.AtomError;
+import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomFactory;
+import mp4.util.atom.AtomSource;
+import mp4.util.atom.ContainerAtom;
+import mp4.util.atom.FtypAtom;
+import mp4.util.atom.LeafAtom;
+import mp4.util.atom.MdatAtom;
+import mp4.util.atom.MoovAtom;
+import mp4.util.atom.StssAtom;
+import mp4.util.atom.SyncSampleIndex;
+
+/**
+ * An index file kept next to an mp4 file, so that later cuts of the same
+ * file don't need to parse it.  The index has the layout of the ftyp,
+ * moov and mdat atoms, which is the type, offset and size of every atom
+ * in them, and the key frames of each track.  Reading the index creates
+ * the same atoms that the parser would, without reading any atom headers
+ * from the mp4 file.  The atom data is still read from the mp4 file when
+ * it's needed.
+ *
+ * The index records the size and modification time of the mp4 file, and
+ * a hash of the moov atom.  An index that doesn't match the file is
+ * ignored.
+ *
+ * The index file is big-endian:
+ *   magic, version (int)
+ *   file size, modification time, moov hash (long)
+ *   number of top-level atoms (int)
+ *   each atom in pre-order: type (int), offset (long), size (long),
+ *     header size (int), number of children (int)
+ *   number of key frame tables (int)
+ *   each table: atom number in pre-order (int), number of entries (int),
+ *     the entries (int)
+ *   CRC32 of everything before it (long)
+ */
+public class Mp4Index {
+  // identifies an index file, "MP4I"
+  public static final int MAGIC = 0x4d503449;
+  // the version of the file format
+  public static final int VERSION = 1;
+  // the suffix added to the mp4 file name
+  public static final String SUFFIX = ".idx";
+  // the number of bytes of the moov atom hashed at a time
+  private static final int HASH_SIZE = 1024 * 1024;
+
+  // the top-level atoms
+  private final FtypAtom ftyp;
+  private final MoovAtom moov;
+  private final MdatAtom mdat;
+
+  /**
+   * Create an index of the top-level atoms of an mp4 file
+   * @param ftyp the ftyp atom
+   * @param moov the moov atom
+   * @param mdat the mdat atom
+   */
+  public Mp4Index(FtypAtom ftyp, MoovAtom moov, MdatAtom mdat) {
+    this.ftyp = ftyp;
+    this.moov = moov;
+    this.mdat = mdat;
+  }
+
+  public FtypAtom getFtyp() {
+    return ftyp;
+  }
+  public MoovAtom getMoov() {
+    return moov;
+  }
+  public MdatAtom getMdat() {
+    return mdat;
+  }
+
+  /**
+   * Return the path of the index file for an mp4 file
+   * @param input the mp4 file
+   * @return the index file
+   */
+  public static Path indexPath(Path input) {
+    return input.resolveSibling(input.getFileName() + SUFFIX);
+  }
+
+  /**
+   * Return the hash of the moov atom.  The whole atom is hashed, so an
+   * edit anywhere in the tables invalidates the index.
+   * @param source the mp4 file
+   * @param offset the offset of the moov atom
+   * @param size the size of the moov atom
+   * @return the hash
+   * @throws IOException if there is an error reading the file
+   */
+  private static long moovHash(AtomSource source, long offset, long size) throws IOException {
+    CRC32 crc = new CRC32();
+    ByteBuffer buf = ByteBuffer.allocateDirect((int) Math.min(size, HASH_SIZE));
+    long pos = 0;
+    while (pos < size) {
+      buf.clear();
+      buf.limit((int) Math.min(size - pos, buf.capacity()));
+      int n = source.read(buf, offset + pos);
+      if (n < 0) {
+        throw new EOFException("End of file in the moov atom");
+      }
+      buf.flip();
+      crc.update(buf);
+      pos += n;
+    }
+    return (crc.getValue() << 32) | (size & 0xffffffffL);
+  }
+
+  /**
+   * Write the index file for an mp4 file.  The index is written to a
+   * temporary file that replaces the old index, so a reader never sees
+   * part of an index.
+   * @param input the mp4 file
+   * @param source the atom source for the mp4 file
+   * @throws IOException if there is an error writing the index
+   */
+  public void write(Path input, AtomSource source) throws IOException {
+    List<Atom> atoms = new ArrayList<Atom>();
+    List<Integer> children = new ArrayList<Integer>();
+    addAtom(ftyp, atoms, children);
+    addAtom(moov, atoms, children);
+    addAtom(mdat, atoms, children);
+
+    Path index = indexPath(input);
+    Path temp = Files.createTempFile(index.toAbsolutePath().getParent(), index.getFileName().toString(), ".tmp");
+    try {
+      CRC32 crc = new CRC32();
+      DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temp)), crc));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(Files.size(input));
+        out.writeLong(Files.getLastModifiedTime(input).toMillis());
+        out.writeLong(moovHash(source, moov.getOffset(), moov.size()));
+        out.writeInt(3);
+        List<Integer> stss = new ArrayList<Integer>();
+        for (int i = 0; i < atoms.size(); i++) {
+          Atom atom = atoms.get(i);
+          out.writeInt(atom.getType());
+          out.writeLong(atom.getOffset());
+          out.writeLong(atom.size());
+          out.writeInt(atom.getHeaderSize());
+          out.writeInt(children.get(i));
+          if (atom instanceof StssAtom) {
+            stss.add(i);
+          }
+        }
+        out.writeInt(stss.size());
+        for (int i : stss) {
+          StssAtom atom = (StssAtom) atoms.get(i);
+          long entries = atom.getNumEntries();
+          out.writeInt(i);
+          out.writeInt((int) entries);
+          for (long e = 0; e < entries; e++) {
+            out.writeInt((int) atom.getSampleEntry(e));
+          }
+        }
+        out.writeLong(crc.getValue());
+      } finally {
+        out.close();
+      }
+      Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  /**
+   * Add an atom and its children to the list in pre-order
+   * @param atom the atom
+   * @param atoms the atoms in pre-order
+   * @param children the number of children of each atom
+   */
+  private static void addAtom(Atom atom, List<Atom> atoms, List<Integer> children) {
+    atoms.add(atom);
+    if (!atom.isContainer()) {
+      children.add(0);
+      return;
+    }
+    List<Atom> list = ((ContainerAtom) atom).getChildren();
+    children.add(list.size());
+    for (Atom child : list) {
+      addAtom(child, atoms, children);
+    }
+  }
+
+  /**
+   * Read the index file for an mp4 file and create its atoms.  The index
+   * file is memory mapped.
+   * @param input the mp4 file
+   * @param source the atom source for the mp4 file
+   * @return the index, or null if there isn't a valid index for the file
+   * @throws IOException if there is an error reading the mp4 file
+   */
+  public static Mp4Index read(Path input, AtomSource source) throws IOException {
+    Path index = indexPath(input);
+    MappedByteBuffer buf;
+    try {
+      FileChannel channel = FileChannel.open(index, StandardOpenOption.READ);
+      try {
+        buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        channel.close();
+      }
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+    // check the whole index before using any of it
+    if (buf.limit() < 8) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer contents = buf.duplicate();
+    contents.limit(buf.limit() - 8);
+    crc.update(contents);
+    if (buf.getLong(buf.limit() - 8) != crc.getValue()) {
+      return null;
+    }
+    buf.limit(buf.limit() - 8);
+    try {
+      if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+        return null;
+      }
+      if (buf.getLong() != Files.size(input) ||
+          buf.getLong() != Files.getLastModifiedTime(input).toMillis()) {
+        return null;
+      }
+      long hash = buf.getLong();
+      if (buf.getInt() != 3) {
+        return null;
+      }
+      List<Atom> atoms = new ArrayList<Atom>();
+      Atom ftyp = readAtom(buf, source, atoms);
+      Atom moov = readAtom(buf, source, atoms);
+      Atom mdat = readAtom(buf, source, atoms);
+      if (!(ftyp instanceof FtypAtom) || !(moov instanceof MoovAtom) || !(mdat instanceof MdatAtom)) {
+        return null;
+      }
+      if (moov.getOffset() < 0 || moov.size() < Atom.ATOM_HEADER_SIZE ||
+          moov.getOffset() + moov.size() > source.size()) {
+        return null;
+      }
+      if (hash != moovHash(source, moov.getOffset(), moov.size())) {
+        return null;
+      }
+      int tables = buf.getInt();
+      for (int t = 0; t < tables; t++) {
+        int atomNum = buf.getInt();
+        if (atomNum < 0 || atomNum >= atoms.size() || !(atoms.get(atomNum) instanceof StssAtom)) {
+          return null;
+        }
+        int entries = buf.getInt();
+        if (entries < 0 || entries > buf.remaining() / 4) {
+          return null;
+        }
+        long[] syncSamples = new long[entries];
+        for (int i = 0; i < entries; i++) {
+          syncSamples[i] = buf.getInt() & 0xffffffffL;
+        }
+        ((StssAtom) atoms.get(atomNum)).setIndex(new SyncSampleIndex(syncSamples));
+      }
+      return new Mp4Index((FtypAtom) ftyp, (MoovAtom) moov, (MdatAtom) mdat);
+    } catch (BufferUnderflowException e) {
+      // the index is truncated
+    } catch (AtomException e) {
+      // the index doesn't describe valid atoms
+    } catch (AtomError e) {
+      // a container was given a child it can't hold
+    }
+    return null;
+  }
+
+  /**
+   * Create an atom and its children from the index.  Leaf atoms read their
+   * data from the source when it's needed, as they do when parsed.
+   * @param buf the index data
+   * @param source the atom source for the mp4 file
+   * @param atoms the atoms in pre-order
+   * @return the atom
+   * @throws AtomException if the index doesn't describe valid atoms
+   */
+  private static Atom readAtom(ByteBuffer buf, AtomSource source, List<Atom> atoms) throws AtomException {
+    Atom atom = AtomFactory.create(buf.getInt());
+    atom.setOffset(buf.getLong());
+    atom.setSize(buf.getLong());
+    int headerSize = buf.getInt();
+    int numChildren = buf.getInt();
+    atoms.add(atom);
+    if (atom instanceof MdatAtom) {
+      ((MdatAtom) atom).setHeaderSize(headerSize);
+      ((MdatAtom) atom).setSource(source);
+    }
+    else if (atom.isContainer()) {
+      for (int i = 0; i < numChildren; i++) {
+        ((ContainerAtom) atom).addChild(readAtom(buf, source, atoms));
+      }
+    }
+    else if (numChildren == 0 && atom instanceof LeafAtom) {
+      ((LeafAtom) atom).readData(source);
+    }
+    else {
+      throw new AtomException("Leaf atom " + atom + " has children in the index");
+    }
+    return atom;
+  }
+}
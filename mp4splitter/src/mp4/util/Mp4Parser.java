@@ -0,0 +1,80 @@
+package mp4.util;
+
+import mp4.util.atom.Atom;
+import mp4.util.atom.AtomException;
+import mp4.util.atom.AtomReader;
+import mp4.util.atom.ContainerAtom;
+import mp4.util.atom.DefaultAtomVisitor;
+import mp4.util.atom.LeafAtom;
+import mp4.util.atom.MdatAtom;
+
+/**
+ * This class parses atoms from an mpeg4 file.  Container atoms are parsed
+ * recursively and leaf atoms read their data, except for the mdat atom,
+ * which only remembers where its data is.
+ */
+public class Mp4Parser extends DefaultAtomVisitor {
+  // the input mp4 file
+  private AtomReader mp4file;
+
+  /**
+   * Create a parser
+   * @param mp4file the reader for the mp4 file
+   */
+  public Mp4Parser(AtomReader mp4file) {
+    this.mp4file = mp4file;
+  }
+
+  /**
+   * Return the reader used by the parser
+   * @return the reader for the mp4 file
+   */
+  public AtomReader getReader() {
+    return mp4file;
+  }
+
+  @Override
+  protected void defaultAction(Atom atom) throws AtomException {
+    if (atom.isContainer()) {
+      long end = atom.getOffset() + atom.size();
+      mp4file.seek(atom.getOffset() + Atom.ATOM_HEADER_SIZE);
+      while (mp4file.position() < end) {
+        Atom child = parseAtom();
+        if (child == null) {
+          throw new AtomException("Unexpected end of file in " + atom);
+        }
+        ((ContainerAtom)atom).addChild(child);
+      }
+    }
+    else {
+      // the default action for a leaf is to read the data in to a buffer
+      ((LeafAtom)atom).readData(mp4file.getSource());
+    }
+  }
+
+  /**
+   * Don't the the mdat atom since that's the biggest segment of the
+   * file.  It contains the video and sound data.  Plus, we'll just
+   * skip over the beginning when we cut the movie.
+   */
+  @Override
+  public void visit(MdatAtom atom) throws AtomException {
+    atom.setSource(mp4file.getSource());
+  }
+
+  /**
+   * Parse an atom from the mpeg4 file.
+   * @return the atom, or null at the end of the file
+   * @throws AtomException
+   */
+  public Atom parseAtom() throws AtomException {
+    Atom atom = mp4file.nextAtom();
+    if (atom == null) {
+      return null;
+    }
+    atom.accept(this);
+    // the next atom follows this one, whatever the visitor has read
+    mp4file.seek(atom.getOffset() + atom.size());
+    return atom;
+  }
+}
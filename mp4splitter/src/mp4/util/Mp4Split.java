@@ -1,19 +1,24 @@
 package mp4.util;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 import mp4.util.atom.Atom;
 import mp4.util.atom.AtomException;
-import mp4.util.atom.ContainerAtom;
-import mp4.util.atom.DefaultAtomVisitor;
+import mp4.util.atom.AtomReader;
+import mp4.util.atom.AtomSerializer;
+import mp4.util.atom.AtomType;
+import mp4.util.atom.BufferPool;
+import mp4.util.atom.ByteStream;
+import mp4.util.atom.ChannelAtomSource;
 import mp4.util.atom.FtypAtom;
-import mp4.util.atom.LeafAtom;
+import mp4.util.atom.MappedAtomSource;
 import mp4.util.atom.MdatAtom;
 import mp4.util.atom.MoovAtom;
 
@@ -30,119 +35,150 @@ import mp4.util.atom.MoovAtom;
  * Splitting the mpeg4 file requires rewritting the stbl atom container
  * with new data and cutting off the mdat section.
  */
-public class Mp4Split extends DefaultAtomVisitor {
+public class Mp4Split {
   // the input mp4 file
-  private DataInputStream mp4file;
+  private AtomReader mp4file;
+  // the parser for the ftyp and moov atoms
+  private Mp4Parser parser;
+  // the top-level atoms
+  private FtypAtom ftypAtom;
+  private MoovAtom moovAtom;
+  private MdatAtom mdatAtom;
   
   public static String inputFile;
   public static String outputFile;
   public static boolean mdat = true;
   public static float time;
+  public static boolean direct = false;
+  public static boolean mmap = false;
+  public static boolean parallelCut = false;
+  public static int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+  public static int buffers = BufferPool.DEFAULT_DEPTH;
+  public static long offHeap = Integer.MAX_VALUE;
+  public static boolean index = false;
+  public static String cacheDir;
+  public static long cacheQuota = 1024L * 1024 * 1024;
+  public static boolean cacheLink = false;
+  public static int threads = 1;
   
-  @Override
-  protected void defaultAction(Atom atom) throws AtomException {
-    if (atom.isContainer()) {
-      long bytesRead = 0;
-      long bytesToRead = atom.dataSize();
-      while (bytesRead < bytesToRead) {
-        Atom child = parseAtom();
-        ((ContainerAtom)atom).addChild(child);
-        bytesRead += child.size();
+  /**
+   * Constructor for the Mpeg-4 file splitter.  It opens the 
+   * @param fn
+   */
+  public Mp4Split(String fn) {
+    try {
+      FileChannel channel = FileChannel.open(Paths.get(fn), StandardOpenOption.READ);
+      if (mmap) {
+        mp4file = new AtomReader(new MappedAtomSource(channel));
       }
-    }
-    else {
-      // the default action for a leaf is to read the data in to a buffer
-      ((LeafAtom)atom).readData(mp4file);
+      else {
+        mp4file = new AtomReader(new ChannelAtomSource(channel));
+      }
+      parser = new Mp4Parser(mp4file);
+      System.out.println("DBG: file size " + mp4file.size());
+    } catch (IOException e) {
+      System.err.println("File not found " + fn);
+      System.exit(-1);
     }
   }
-
+    
   /**
-   * Don't the the mdat atom since that's the biggest segment of the 
-   * file.  It contains the video and sound data.  Plus, we'll just
-   * skip over the beginning when we cut the movie.
+   * Find the top-level atoms by walking their headers.  Only the headers
+   * are read, except for the ftyp and moov atoms, which are parsed wherever
+   * they are in the file.  The mdat atom may come before or after the moov
+   * atom, and its data is never read.
+   * @throws AtomException if the file doesn't have the required atoms
    */
-  @Override
-  public void visit(MdatAtom atom) throws AtomException {
-    atom.setInputStream(mp4file);
+  private void probe() throws AtomException {
+    mp4file.seek(0);
+    Atom atom;
+    while ((atom = mp4file.nextAtom()) != null) {
+      System.out.println("DBG: top-level " + AtomType.toString(atom.getType()) + " at " + atom.getOffset() + " size " + atom.size());
+      int type = atom.getType();
+      if (type == AtomType.FTYP) {
+        atom.accept(parser);
+        ftypAtom = (FtypAtom) atom;
+      }
+      else if (type == AtomType.MOOV) {
+        atom.accept(parser);
+        moovAtom = (MoovAtom) atom;
+      }
+      else if (type == AtomType.MDAT) {
+        mdatAtom = (MdatAtom) atom;
+        mdatAtom.setSource(mp4file.getSource());
+      }
+      mp4file.seek(atom.getOffset() + atom.size());
+    }
+    if (ftypAtom == null || moovAtom == null || mdatAtom == null) {
+      throw new AtomException("Missing ftyp, moov, or mdat atom");
+    }
   }
   
   /**
-   * Parse an atom from the mpeg4 file.
-   * @return the number of bytes read
-   * @throws AtomException
+   * Find the top-level atoms using the index file for the input, if there
+   * is a valid one.  Otherwise the file is probed and the index file is
+   * written for the next time.
+   * @throws AtomException if the file doesn't have the required atoms
+   * @throws IOException if there is an error reading the input
    */
-  private Atom parseAtom() throws AtomException {
-    // get the atom size
-    byte[] word = new byte[Atom.ATOM_WORD];
-    int num;
-    try {
-      num = mp4file.read(word);
-    } catch (IOException e1) {
-      throw new AtomException("IOException while reading file");
-    }
-    // check for end of file
-    if (num == -1) {
-      return null;
-    }
-    if (num != Atom.ATOM_WORD) {
-      throw new AtomException("Unable to read enough bytes for atom");
-    }
-    long size = Atom.byteArrayToUnsignedInt(word, 0);
-    // get the atom type
-    try {
-      num = mp4file.read(word);
-    } catch (IOException e1) {
-      throw new AtomException("IOException while reading file");
-    }
-    if (num != Atom.ATOM_WORD) {
-      throw new AtomException("Unable to read enough bytes for atom");  
+  private void load() throws AtomException, IOException {
+    Path input = Paths.get(inputFile);
+    Mp4Index idx = Mp4Index.read(input, mp4file.getSource());
+    if (idx != null) {
+      System.out.println("DBG: using index " + Mp4Index.indexPath(input));
+      ftypAtom = idx.getFtyp();
+      moovAtom = idx.getMoov();
+      mdatAtom = idx.getMdat();
+      return;
     }
+    probe();
     try {
-      Class<?> cls = Class.forName(Atom.typeToClassName(word));
-      Atom atom = (Atom) cls.newInstance();
-      atom.setSize(size);
-      atom.accept(this);
-      return atom;
-    } catch (ClassNotFoundException e) {
-      throw new AtomException("Class not found");
-    } catch (InstantiationException e) {
-      throw new AtomException("Unable to instantiate atom");
-    } catch (IllegalAccessException e) {
-      throw new AtomException("Unabel to access atom object");
+      new Mp4Index(ftypAtom, moovAtom, mdatAtom).write(input, mp4file.getSource());
+    } catch (IOException e) {
+      // the cut doesn't need the index, so carry on without it
+      System.out.println("DBG: unable to write index " + e);
     }
   }
-
+    
   /**
-   * Constructor for the Mpeg-4 file splitter.  It opens the 
-   * @param fn
+   * Cut the input file and write the output file
+   * @return true if the output was written
    */
-  public Mp4Split(String fn) {
-    try {
-      mp4file = new DataInputStream(new FileInputStream(fn));
-      System.out.println("DBG: file size " + new File(fn).length());
-    } catch (FileNotFoundException e) {
-      System.err.println("File not found " + fn);
-      System.exit(-1);
-    }
-  }
-    
-  public void splitMp4() {
+  public boolean splitMp4() {
+    MoovAtom cutMoov = null;
     try {
-      FtypAtom ftyp = (FtypAtom) parseAtom();
-      MoovAtom moov = (MoovAtom) parseAtom();
-      MdatAtom mdat = (MdatAtom) parseAtom();
+      if (index) {
+        load();
+      }
+      else {
+        probe();
+      }
+      FtypAtom ftyp = ftypAtom;
+      MoovAtom moov = moovAtom;
+      MdatAtom mdat = mdatAtom;
       
       System.out.println("DBG: moov size " + moov.dataSize());
       System.out.println("DBG: mdat size " + mdat.dataSize());
   
-      MoovAtom cutMoov = moov.cut(time);
+      cutMoov = moov.cut(time, parallelCut);
       System.out.println("DBG: moov chunk " + moov.firstDataByteOffset());
       System.out.println("DBG: cut moov chunk " + cutMoov.firstDataByteOffset());
       long mdatSkip = cutMoov.firstDataByteOffset() - moov.firstDataByteOffset();
       MdatAtom cutMdat = mdat.cut(mdatSkip);
       
-      // update stco segment by mdatSkip + difference in moov size
-      long updateAmount = mdatSkip + (moov.size() - cutMoov.size());
+      // lay out the output, which is ftyp, moov, mdat, whatever the order
+      // of the input.  this computes the size of the new moov atom
+      AtomSerializer serializer = new AtomSerializer();
+      serializer.add(ftyp);
+      serializer.add(cutMoov);
+      if (Mp4Split.mdat) {
+        serializer.addHeader(cutMdat);
+      }
+      long headerSize = serializer.layout();
+      
+      // update stco segment by the distance the data moves
+      long outputDataOffset = ftyp.size() + cutMoov.size() + cutMdat.getHeaderSize();
+      long updateAmount = cutMdat.getDataOffset() - outputDataOffset;
       
       System.out.println("DBG: updateAmount " + updateAmount);
       cutMoov.fixupOffsets(-updateAmount);
@@ -151,12 +187,25 @@ public class Mp4Split extends DefaultAtomVisitor {
       
       System.out.println("DBG: Cut Movie time " + cutMoov.getMvhd().getDurationNormalized() + " sec ");
       
-      DataOutputStream dos = new DataOutputStream(new FileOutputStream(outputFile));
-      ftyp.writeData(dos);
-      cutMoov.writeData(dos);
+      if (Mp4Split.mdat && threads > 1) {
+        writeStriped(serializer, headerSize, cutMdat);
+        return true;
+      }
+      
+      FileOutputStream fos = new FileOutputStream(outputFile);
+      FileChannel out = fos.getChannel();
+      // the ftyp, moov, and mdat header go in one gathering write
+      serializer.write(out);
       if (Mp4Split.mdat) {
-        cutMdat.writeData(dos);
+        if (direct) {
+          cutMdat.writeBodyDirect(Paths.get(inputFile), Paths.get(outputFile), out);
+        }
+        else {
+          cutMdat.writeBody(out);
+        }
       }
+      fos.close();
+      return true;
       
      } catch (AtomException e) {
       System.err.println("Error parseing Mp4 file " + e);
@@ -165,7 +214,74 @@ public class Mp4Split extends DefaultAtomVisitor {
     } catch (IOException e) {
       System.err.println("Error writing output ");
       e.printStackTrace();
+    } finally {
+      // give back the off-heap storage of the atoms once they're written
+      if (cutMoov != null) {
+        cutMoov.releaseData();
+      }
+      if (moovAtom != null) {
+        moovAtom.releaseData();
+      }
+      try {
+        mp4file.close();
+      } catch (IOException e) {
+        System.err.println("Error closing input " + e);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Write the output using several threads.  The layout of the output is
+   * known, so the mdat data is copied first, in stripes, to its place in
+   * the file.  Then the header is written at the start of the file, and
+   * the file is synced once.
+   * @param serializer the laid out ftyp, moov and mdat header
+   * @param headerSize the size of the header
+   * @param cutMdat the cut mdat atom
+   * @throws IOException if there is an error writing the output
+   */
+  private void writeStriped(AtomSerializer serializer, long headerSize, MdatAtom cutMdat) throws IOException {
+    FileChannel out = FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      cutMdat.writeBodyStriped(out, headerSize, threads);
+      out.position(0);
+      serializer.write(out);
+      out.force(true);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Copy the output from the cache directory, or cut the input in to the
+   * cache and copy it from there.  The cache is found by the input file
+   * and the cut parameters, so a hit doesn't open the input.
+   * @return true if the output was written
+   * @throws IOException if there is an error using the cache
+   */
+  private static boolean splitCached() throws IOException {
+    OutputCache cache = new OutputCache(Paths.get(cacheDir), cacheQuota);
+    String key = OutputCache.key(Paths.get(inputFile), time, mdat);
+    Path output = Paths.get(outputFile);
+    if (cache.fetch(key, output, cacheLink)) {
+      System.out.println("DBG: cache hit " + key);
+      return true;
+    }
+    System.out.println("DBG: cache miss " + key);
+    Path temp = cache.newTempFile();
+    try {
+      outputFile = temp.toString();
+      if (!new Mp4Split(inputFile).splitMp4()) {
+        return false;
+      }
+      cache.store(key, temp);
+    } finally {
+      outputFile = output.toString();
+      Files.deleteIfExists(temp);
     }
+    return cache.fetch(key, output, cacheLink);
   }
   
   /**
@@ -188,14 +304,52 @@ public class Mp4Split extends DefaultAtomVisitor {
       else if (arg.equals("-no_mdat")) {
         mdat = false;
       }
+      else if (arg.equals("-mmap")) {
+        mmap = true;
+      }
+      else if (arg.equals("-parallel_cut")) {
+        parallelCut = true;
+      }
+      else if (arg.equals("-direct")) {
+        direct = true;
+      }
+      else if (arg.equals("-buffer_size")) {
+        bufferSize = Integer.valueOf(args[++i]) * 1024;
+      }
+      else if (arg.equals("-buffers")) {
+        buffers = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-index")) {
+        index = true;
+      }
+      else if (arg.equals("-threads")) {
+        threads = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-cache")) {
+        cacheDir = args[++i];
+      }
+      else if (arg.equals("-cache_quota")) {
+        cacheQuota = Long.valueOf(args[++i]) * 1024 * 1024;
+      }
+      else if (arg.equals("-cache_link")) {
+        cacheLink = true;
+      }
+      else if (arg.equals("-offheap")) {
+        offHeap = Long.valueOf(args[++i]) * 1024 * 1024;
+      }
       else {
         help();
       }
       i++;
     }
-    if (inputFile == null) {
+    // the direct copy is single threaded, so it can't be combined with
+    // -threads
+    if (inputFile == null || threads < 1 || (direct && threads > 1)) {
       help();
     }
+    // each copy thread needs its own buffer
+    BufferPool.configure(bufferSize, Math.max(buffers, threads));
+    ByteStream.setOffHeapThreshold(offHeap);
   }
   
   private static void help() {
@@ -204,6 +358,17 @@ public class Mp4Split extends DefaultAtomVisitor {
     System.out.println("  -out <outputfile.mp4>");
     System.out.println("  -time <seconds>");
     System.out.println("  [-no_mdat]");
+    System.out.println("  [-mmap]\tparse the mp4 file using a memory mapping");
+    System.out.println("  [-parallel_cut]\tcut the tracks in parallel");
+    System.out.println("  [-direct]\tcopy the mdat atom using direct I/O");
+    System.out.println("  [-buffer_size <KB>]\tdefault=" + BufferPool.DEFAULT_BUFFER_SIZE / 1024);
+    System.out.println("  [-buffers <num>]\tdefault=" + BufferPool.DEFAULT_DEPTH);
+    System.out.println("  [-offheap <MB>]\tkeep atom data of at least this size off heap");
+    System.out.println("  [-index]\tuse or create an index file next to the input");
+    System.out.println("  [-threads <num>]\tcopy the mdat atom with this many threads, not with -direct");
+    System.out.println("  [-cache <dir>]\tkeep the output in a cache directory and reuse it");
+    System.out.println("  [-cache_quota <MB>]\tdefault=1024");
+    System.out.println("  [-cache_link]\thard link the output to the cached file");
     System.exit(-1);
   }
     
@@ -212,6 +377,14 @@ public class Mp4Split extends DefaultAtomVisitor {
    */
   public static void main(String[] args) {
     processArgs(args);
+    if (cacheDir != null) {
+      try {
+        splitCached();
+      } catch (IOException e) {
+        System.err.println("Error using the output cache " + e);
+      }
+      return;
+    }
     Mp4Split splitter = new Mp4Split(inputFile);
     splitter.splitMp4();
   }
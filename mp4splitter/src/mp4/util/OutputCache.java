@@ -0,0 +1,347 @@
+package mp4.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A directory of cut files, so a cut that has been made before is copied
+ * instead of made again.  Each file is named by a digest of the input
+ * file's path, size and modification time and the cut parameters, so a
+ * cut can be found without parsing the input.
+ *
+ * The directory has an index with the digest, size and last use time of
+ * each file.  When the files are over the quota, the least recently used
+ * files are deleted.  The index is changed while holding a lock on a lock
+ * file, so many processes can share the directory.  A new file is written
+ * to a temporary file and renamed, so a reader never sees part of a file.
+ *
+ * The index file is big-endian:
+ *   magic, version (int)
+ *   each entry: digest (32 bytes), size, last use time (long)
+ */
+public class OutputCache {
+  // identifies an index file, "MP4C"
+  private static final int MAGIC = 0x4d503443;
+  // the version of the index format
+  private static final int VERSION = 1;
+  // the size of a digest in bytes
+  private static final int DIGEST_SIZE = 32;
+  // the names of the index and lock files
+  private static final String INDEX = "index";
+  private static final String LOCK = "lock";
+  // the suffix of the cached files
+  private static final String SUFFIX = ".mp4";
+
+  /**
+   * An entry in the index
+   */
+  private static class Entry {
+    // the digest, in hex
+    final String key;
+    // the size of the file
+    final long size;
+    // the last time the file was used, in milliseconds
+    long lastUse;
+
+    Entry(String key, long size, long lastUse) {
+      this.key = key;
+      this.size = size;
+      this.lastUse = lastUse;
+    }
+  }
+
+  // the cache directory
+  private final Path dir;
+  // the maximum total size of the files
+  private final long quota;
+
+  /**
+   * Create a cache in the directory.  The directory is created if it
+   * doesn't exist.
+   * @param dir the cache directory
+   * @param quota the maximum total size of the cached files, in bytes
+   * @throws IOException if the directory can't be created
+   */
+  public OutputCache(Path dir, long quota) throws IOException {
+    this.dir = dir;
+    this.quota = quota;
+    Files.createDirectories(dir);
+  }
+
+  /**
+   * Return the key for a cut.  The key is a digest of the input file's
+   * real path, size and modification time, and the cut parameters.
+   * @param input the input file
+   * @param time the time of the cut, in seconds
+   * @param mdat true if the cut includes the mdat atom
+   * @return the key, in hex
+   * @throws IOException if the input can't be found
+   */
+  public static String key(Path input, float time, boolean mdat) throws IOException {
+    Path path = input.toRealPath();
+    BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+    String id = path + "\n" + attrs.size() + "\n" + attrs.lastModifiedTime().toMillis() +
+        "\n" + Float.floatToIntBits(time) + "\n" + mdat;
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("SHA-256 is not available", e);
+    }
+    byte[] hash = digest.digest(id.getBytes(StandardCharsets.UTF_8));
+    return hex(hash);
+  }
+
+  /**
+   * Return bytes as a hex string
+   * @param bytes the bytes
+   * @return the hex string
+   */
+  private static String hex(byte[] bytes) {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes) {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Return the path of the cached file for a key
+   * @param key the key
+   * @return the cached file
+   */
+  private Path file(String key) {
+    return dir.resolve(key + SUFFIX);
+  }
+
+  /**
+   * Return a new temporary file in the cache directory, where a cut can be
+   * written before it's stored
+   * @return the temporary file
+   * @throws IOException if the file can't be created
+   */
+  public Path newTempFile() throws IOException {
+    Path temp = Files.createTempFile(dir, "cut", ".tmp");
+    // a temporary file is only readable by its owner, but the cut isn't
+    try {
+      Files.setPosixFilePermissions(temp, PosixFilePermissions.fromString("rw-r--r--"));
+    } catch (UnsupportedOperationException e) {
+      // not a posix file system
+    }
+    return temp;
+  }
+
+  /**
+   * Copy the cached file for a key to the output.  With link, the output
+   * is a hard link to the cached file if the file system allows it, and
+   * the output must not be changed afterwards.
+   * @param key the key
+   * @param output where the file goes
+   * @param link true to link the output to the cached file
+   * @return true if the file was in the cache
+   * @throws IOException if there is an error copying the file
+   */
+  public boolean fetch(String key, Path output, boolean link) throws IOException {
+    Path file = file(key);
+    if (!Files.exists(file)) {
+      return false;
+    }
+    try {
+      Files.deleteIfExists(output);
+      boolean linked = false;
+      if (link) {
+        try {
+          Files.createLink(output, file);
+          linked = true;
+        } catch (UnsupportedOperationException e) {
+          // fall back to a copy
+        } catch (IOException e) {
+          // a different file system, so fall back to a copy
+        }
+      }
+      if (!linked) {
+        Files.copy(file, output, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } catch (NoSuchFileException e) {
+      // evicted by another process
+      return false;
+    }
+    touch(key, -1);
+    return true;
+  }
+
+  /**
+   * Move a cut in to the cache and evict the least recently used files
+   * until the cache is within its quota.
+   * @param key the key
+   * @param temp the temporary file with the cut, from newTempFile()
+   * @throws IOException if there is an error storing the file
+   */
+  public void store(String key, Path temp) throws IOException {
+    long size = Files.size(temp);
+    try {
+      Files.move(temp, file(key), StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // another process stored the same cut
+      Files.deleteIfExists(temp);
+    }
+    touch(key, size);
+  }
+
+  /**
+   * Update the last use time of a file, add it to the index if it's new,
+   * and evict files that are over the quota.
+   * @param key the key of the file
+   * @param size the size of a new file, or -1 if it's already cached
+   * @throws IOException if there is an error updating the index
+   */
+  private void touch(String key, long size) throws IOException {
+    FileChannel lock = FileChannel.open(dir.resolve(LOCK), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    try {
+      FileLock l = lock.lock();
+      try {
+        List<Entry> entries = readIndex();
+        long now = System.currentTimeMillis();
+        Entry entry = null;
+        for (Entry e : entries) {
+          if (e.key.equals(key)) {
+            entry = e;
+          }
+        }
+        if (entry == null) {
+          entry = new Entry(key, size >= 0 ? size : Files.size(file(key)), now);
+          entries.add(entry);
+        }
+        entry.lastUse = now;
+        evict(entries, entry);
+        writeIndex(entries);
+      } finally {
+        l.release();
+      }
+    } finally {
+      lock.close();
+    }
+  }
+
+  /**
+   * Delete the least recently used files until the total size is within
+   * the quota.  The file that was just used is kept.
+   * @param entries the index entries, which are updated
+   * @param keep the entry that was just used
+   * @throws IOException if a file can't be deleted
+   */
+  private void evict(List<Entry> entries, Entry keep) throws IOException {
+    long total = 0;
+    for (Entry e : entries) {
+      total += e.size;
+    }
+    if (total <= quota) {
+      return;
+    }
+    List<Entry> byUse = new ArrayList<Entry>(entries);
+    Collections.sort(byUse, new Comparator<Entry>() {
+      public int compare(Entry a, Entry b) {
+        return Long.compare(a.lastUse, b.lastUse);
+      }
+    });
+    for (Entry e : byUse) {
+      if (total <= quota) {
+        break;
+      }
+      if (e == keep) {
+        continue;
+      }
+      Files.deleteIfExists(file(e.key));
+      System.out.println("DBG: evicted " + e.key + " size " + e.size);
+      entries.remove(e);
+      total -= e.size;
+    }
+  }
+
+  /**
+   * Read the index.  Entries whose file is missing are dropped, and a
+   * missing or damaged index is treated as empty.
+   * @return the entries
+   * @throws IOException if there is an error reading the index
+   */
+  private List<Entry> readIndex() throws IOException {
+    List<Entry> entries = new ArrayList<Entry>();
+    Path index = dir.resolve(INDEX);
+    if (!Files.exists(index)) {
+      return entries;
+    }
+    DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(index)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        return entries;
+      }
+      byte[] digest = new byte[DIGEST_SIZE];
+      while (true) {
+        try {
+          in.readFully(digest);
+        } catch (EOFException e) {
+          break;
+        }
+        Entry e = new Entry(hex(digest), in.readLong(), in.readLong());
+        if (Files.exists(file(e.key))) {
+          entries.add(e);
+        }
+      }
+    } catch (EOFException e) {
+      // a damaged index loses the last entry
+    } finally {
+      in.close();
+    }
+    return entries;
+  }
+
+  /**
+   * Write the index to a temporary file and rename it over the old one
+   * @param entries the entries
+   * @throws IOException if there is an error writing the index
+   */
+  private void writeIndex(List<Entry> entries) throws IOException {
+    Path temp = Files.createTempFile(dir, INDEX, ".tmp");
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+      try {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        for (Entry e : entries) {
+          for (int i = 0; i < DIGEST_SIZE; i++) {
+            out.writeByte(Integer.parseInt(e.key.substring(2 * i, 2 * i + 2), 16));
+          }
+          out.writeLong(e.size);
+          out.writeLong(e.lastUse);
+        }
+      } finally {
+        out.close();
+      }
+      Files.move(temp, dir.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package mp4.util;
+
+import java.util.Random;
+
+import mp4.util.atom.SttsAtom;
+
+/**
+ * A microbenchmark for the stts lookups.  It builds a time-to-sample table
+ * with random runs, and times timeToSample() and sampleToTime(), which
+ * binary-search the prefix sums of the table, against a scan of the table
+ * from the first entry, which is how the lookups used to work.  Both ways
+ * must give the same sum over all the lookups.
+ */
+public class SttsBench {
+  public static int entries = 100000;
+  public static int lookups = 2000;
+  public static int rounds = 5;
+  public static long seed = 1;
+
+  // the longest run in the table, and the longest sample duration
+  private static final int MAX_COUNT = 8;
+  private static final int MAX_DURATION = 3000;
+
+  /**
+   * Create a table with random runs
+   * @param random the random numbers
+   * @return the stts atom
+   */
+  private static SttsAtom buildTable(Random random) {
+    SttsAtom stts = new SttsAtom();
+    stts.allocateData(entries);
+    stts.setNumEntries(entries);
+    for (int i = 0; i < entries; i++) {
+      stts.setSampleCount(i, 1 + random.nextInt(MAX_COUNT));
+      stts.setSampleDuration(i, 1 + random.nextInt(MAX_DURATION));
+    }
+    return stts;
+  }
+
+  /**
+   * Convert a time to a sample by scanning the table from the start
+   * @param stts the table
+   * @param time the media time value
+   * @return the sample number for the time
+   */
+  private static long scanTimeToSample(SttsAtom stts, long time) {
+    long entries = stts.getNumEntries();
+    long lowerBoundTime = 0;
+    long lowerBoundSample = 1;
+    for (int i = 0; i < entries; i++) {
+      long count = stts.getSampleCount(i);
+      long duration = stts.getSampleDuration(i);
+      if ((time - lowerBoundTime) < (count * duration)) {
+        return ((time - lowerBoundTime) / duration) + lowerBoundSample;
+      }
+      lowerBoundTime += count * duration;
+      lowerBoundSample += count;
+    }
+    return 0;
+  }
+
+  /**
+   * Convert a sample to a time by scanning the table from the start
+   * @param stts the table
+   * @param sampleNum the sample number
+   * @return the time for the sample
+   */
+  private static long scanSampleToTime(SttsAtom stts, long sampleNum) {
+    long lowerBoundTime = 0;
+    long lowerBoundSample = 1;
+    long numEntries = stts.getNumEntries();
+    for (int i = 0; i < numEntries; i++) {
+      long count = stts.getSampleCount(i);
+      long duration = stts.getSampleDuration(i);
+      if ((sampleNum - lowerBoundSample) < count) {
+        return ((sampleNum - lowerBoundSample) * duration) + lowerBoundTime;
+      }
+      lowerBoundTime += count * duration;
+      lowerBoundSample += count;
+    }
+    return 0;
+  }
+
+  /**
+   * Time the lookups and check that both ways agree
+   * @return true if the sums of the lookups are the same
+   */
+  public static boolean run() {
+    Random random = new Random(seed);
+    SttsAtom stts = buildTable(random);
+    long duration = stts.computeDuration();
+    long numSamples = stts.timeToSample(duration - 1);
+    long[] times = new long[lookups];
+    long[] samples = new long[lookups];
+    for (int i = 0; i < lookups; i++) {
+      times[i] = (long) (random.nextDouble() * duration);
+      samples[i] = 1 + (long) (random.nextDouble() * numSamples);
+    }
+    System.out.println("stts entries " + entries + " samples " + numSamples + " duration " + duration +
+        " lookups " + lookups);
+
+    boolean same = true;
+    for (int round = 0; round < rounds; round++) {
+      long start = System.nanoTime();
+      long scanSum = 0;
+      for (long t : times) {
+        scanSum += scanTimeToSample(stts, t);
+      }
+      long scanTime = System.nanoTime();
+      for (long s : samples) {
+        scanSum += scanSampleToTime(stts, s);
+      }
+      long scanSample = System.nanoTime();
+      long searchSum = 0;
+      for (long t : times) {
+        searchSum += stts.timeToSample(t);
+      }
+      long searchTime = System.nanoTime();
+      for (long s : samples) {
+        searchSum += stts.sampleToTime(s);
+      }
+      long searchSample = System.nanoTime();
+
+      System.out.println("round " + round +
+          " timeToSample scan " + (scanTime - start) / lookups + " ns" +
+          " search " + (searchTime - scanSample) / lookups + " ns," +
+          " sampleToTime scan " + (scanSample - scanTime) / lookups + " ns" +
+          " search " + (searchSample - searchTime) / lookups + " ns");
+      if (scanSum != searchSum) {
+        System.out.println("sums differ, scan " + scanSum + " search " + searchSum);
+        same = false;
+      }
+    }
+    return same;
+  }
+
+  /**
+   * Process the command line arguments.
+   * @param args the user-specified arguments
+   */
+  private static void processArgs(String[] args) {
+    int i = 0;
+    while (i < args.length) {
+      String arg = args[i];
+      if (arg.equals("-entries")) {
+        entries = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-lookups")) {
+        lookups = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-rounds")) {
+        rounds = Integer.valueOf(args[++i]);
+      }
+      else if (arg.equals("-seed")) {
+        seed = Long.valueOf(args[++i]);
+      }
+      else {
+        help();
+      }
+      i++;
+    }
+    if (entries < 1 || lookups < 1 || rounds < 1) {
+      help();
+    }
+  }
+
+  private static void help() {
+    System.out.println("SttsBench <args>");
+    System.out.println("  [-entries <num>]\tdefault=" + entries);
+    System.out.println("  [-lookups <num>]\tdefault=" + lookups);
+    System.out.println("  [-rounds <num>]\tdefault=" + rounds);
+    System.out.println("  [-seed <num>]\tdefault=" + seed);
+    System.exit(-1);
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(String[] args) {
+    processArgs(args);
+    if (!run()) {
+      System.exit(-1);
+    }
+  }
+}
@@ -2,6 +2,7 @@ package mp4.util.atom;
 
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents an atom in the mpeg-4 file.  See the mpeg-4 file
@@ -16,8 +17,10 @@ import java.io.IOException;
 public abstract class Atom {
   // the size of the atom, an unsigned int so we use a long
   protected long size;
-  // the type, represented using the characters in the byte stream
-  protected byte[] type;
+  // the type, the four characters of the type as an integer
+  protected final int type;
+  // the position of the atom in the file it was read from
+  protected long offset;
   
   // The basic unit size of an atom, in bytes
   public static final int ATOM_WORD = 4;
@@ -29,7 +32,7 @@ public abstract class Atom {
    * @param size the size inclusive of the size and type 
    * @param type the atom's type
    */
-  protected Atom(long size, byte[] type) {
+  protected Atom(long size, int type) {
     this.size = size;
     this.type = type;
   }
@@ -41,6 +44,7 @@ public abstract class Atom {
   protected Atom(Atom old) {
     this.size = old.size;
     this.type = old.type;
+    this.offset = old.offset;
   }
   
   /**
@@ -48,7 +52,7 @@ public abstract class Atom {
    * to be filled in later.
    * @param type the atom's type
    */
-  protected Atom(byte[] type) {
+  protected Atom(int type) {
     this.type = type;
   }
   
@@ -60,6 +64,23 @@ public abstract class Atom {
     this.size = size;
   }
   
+  /**
+   * Set the position of the atom in the file it is read from.  The position
+   * is the start of the atom header.
+   * @param offset the absolute file position of the atom
+   */
+  public void setOffset(long offset) {
+    this.offset = offset;
+  }
+  
+  /**
+   * Return the position of the atom in the file it was read from.
+   * @return the absolute file position of the atom header
+   */
+  public long getOffset() {
+    return offset;
+  }
+  
   /**
    * Return the size of the atom
    * @return
@@ -80,7 +101,7 @@ public abstract class Atom {
    * @return the atom's type as an integer
    */
   public int getType() {
-    return getAtomValue(type);
+    return type;
   }
   
   /**
@@ -88,6 +109,12 @@ public abstract class Atom {
    */
   public abstract boolean isContainer();
   
+  /**
+   * Free the data of the atom, including any off-heap storage.  The atom
+   * must not be used afterwards.
+   */
+  public abstract void releaseData();
+  
   /**
    * The visitor pattern accept method
    * @param v an atom visitor
@@ -108,10 +135,25 @@ public abstract class Atom {
    * @throws IOException if there is an error writing the data
    */
   public void writeHeader(DataOutput out) throws IOException {
-    byte[] sizeData = new byte[ATOM_WORD];
-    unsignedIntToByteArray(sizeData, 0, size);
-    out.write(sizeData);
-    out.write(type);
+    out.writeInt((int) size);
+    out.writeInt(type);
+  }
+  
+  /**
+   * Return the size of the atom header
+   * @return the size of the atom header
+   */
+  public int getHeaderSize() {
+    return ATOM_HEADER_SIZE;
+  }
+  
+  /**
+   * Put the atom header in to a buffer at the buffer's position.  The
+   * buffer must have room for getHeaderSize() bytes.
+   * @param buf the buffer
+   */
+  void putHeader(ByteBuffer buf) {
+    buf.putInt((int) size).putInt(type);
   }
   
   /**
@@ -119,7 +161,7 @@ public abstract class Atom {
    * @return the string for the atom
    */
   public String toString() {
-    return "Atom " + new String(type) + " size " + size;
+    return "Atom " + AtomType.toString(type) + " size " + size;
   }
   
   /**
@@ -170,18 +212,4 @@ public abstract class Atom {
     return Atom.byteArrayToInt(val, 0);
   }
   
-  /**
-   * Convert the type name to a class name.  The class name converts
-   * the first character of the type to uppercase, then prepends
-   * the package name, and appends 'Atom' string.
-   * 
-   * @param typ the type represented as a byte array
-   * @return the class name for the type
-   */
-  public static String typeToClassName(byte[] typ) {
-    String str = new String(typ);
-    String clsName = str.substring(0, 1).toUpperCase() + str.substring(1);
-    return "mp4.util.atom." + new String(clsName) + "Atom";
-  }
-  
 }
\ No newline at end of file
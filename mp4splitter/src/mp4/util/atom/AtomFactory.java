@@ -0,0 +1,96 @@
+package mp4.util.atom;
+
+import java.util.function.Supplier;
+
+/**
+ * Create atoms by type.  The registry is an open addressing hash table
+ * keyed by the integer type, so a lookup doesn't allocate.  A type that
+ * isn't registered creates an {@link UnknownAtom}.
+ */
+public final class AtomFactory {
+  // the table size, a power of two larger than twice the number of types
+  private static final int TABLE_SIZE = 128;
+  // the registered types, 0 is an empty slot
+  private static final int[] types = new int[TABLE_SIZE];
+  // the constructor for each registered type
+  private static final Supplier<?>[] suppliers = new Supplier<?>[TABLE_SIZE];
+  
+  static {
+    register(AtomType.CDSC, CdscAtom::new);
+    register(AtomType.CHAP, ChapAtom::new);
+    register(AtomType.CO64, Co64Atom::new);
+    register(AtomType.CTTS, CttsAtom::new);
+    register(AtomType.DINF, DinfAtom::new);
+    register(AtomType.DREF, DrefAtom::new);
+    register(AtomType.EDTS, EdtsAtom::new);
+    register(AtomType.ELST, ElstAtom::new);
+    register(AtomType.FREE, FreeAtom::new);
+    register(AtomType.FTYP, FtypAtom::new);
+    register(AtomType.GMHD, GmhdAtom::new);
+    register(AtomType.HDLR, HdlrAtom::new);
+    register(AtomType.HINT, HintAtom::new);
+    register(AtomType.IODS, IodsAtom::new);
+    register(AtomType.MDAT, MdatAtom::new);
+    register(AtomType.MDHD, MdhdAtom::new);
+    register(AtomType.MDIA, MdiaAtom::new);
+    register(AtomType.MINF, MinfAtom::new);
+    register(AtomType.MOOV, MoovAtom::new);
+    register(AtomType.MVHD, MvhdAtom::new);
+    register(AtomType.SMHD, SmhdAtom::new);
+    register(AtomType.STBL, StblAtom::new);
+    register(AtomType.STCO, StcoAtom::new);
+    register(AtomType.STSC, StscAtom::new);
+    register(AtomType.STSD, StsdAtom::new);
+    register(AtomType.STSS, StssAtom::new);
+    register(AtomType.STSZ, StszAtom::new);
+    register(AtomType.STTS, SttsAtom::new);
+    register(AtomType.TKHD, TkhdAtom::new);
+    register(AtomType.TRAK, TrakAtom::new);
+    register(AtomType.TREF, TrefAtom::new);
+    register(AtomType.UDTA, UdtaAtom::new);
+    register(AtomType.VMHD, VmhdAtom::new);
+  }
+  
+  private AtomFactory() {
+  }
+  
+  /**
+   * Register the constructor for an atom type
+   * @param type the atom type
+   * @param supplier creates an empty atom of the type
+   */
+  private static void register(int type, Supplier<? extends Atom> supplier) {
+    int slot = slot(type);
+    while (types[slot] != 0) {
+      slot = (slot + 1) & (TABLE_SIZE - 1);
+    }
+    types[slot] = type;
+    suppliers[slot] = supplier;
+  }
+  
+  /**
+   * Create an empty atom of the specified type.
+   * @param type the atom type
+   * @return a new atom, which is an unknown atom if the type isn't registered
+   */
+  public static Atom create(int type) {
+    int slot = slot(type);
+    while (types[slot] != 0) {
+      if (types[slot] == type) {
+        return (Atom) suppliers[slot].get();
+      }
+      slot = (slot + 1) & (TABLE_SIZE - 1);
+    }
+    return new UnknownAtom(type);
+  }
+  
+  /**
+   * Return the first table slot for the type
+   * @param type the atom type
+   * @return the slot number
+   */
+  private static int slot(int type) {
+    int h = type * 0x9e3779b9;
+    return (h >>> 16) & (TABLE_SIZE - 1);
+  }
+}
@@ -0,0 +1,253 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Reads the atoms sequentially from an atom source.  The reader keeps a 
+ * current position and a small read-ahead buffer, so reading an atom header,
+ * or a small atom, does not need a separate system call.  The reader is 
+ * an atom source itself; reads that fall within the read-ahead buffer are
+ * served from it.
+ * 
+ * A reader is not thread safe.  Each thread needs its own reader, but the
+ * readers may share the underlying source.
+ */
+public class AtomReader implements AtomSource {
+  // the size of the read-ahead buffer
+  private static final int READ_AHEAD = 8*1024;
+  
+  // where the data comes from
+  private final AtomSource source;
+  // the read-ahead data
+  private final byte[] window;
+  // the source position of the first byte in the window
+  private long windowStart;
+  // the number of valid bytes in the window
+  private int windowLength;
+  // the current position
+  private long position;
+  // the size of the source
+  private long size = -1;
+  
+  /**
+   * Create a reader for the atom source.  The reader starts at position 0.
+   * @param source the atom source
+   */
+  public AtomReader(AtomSource source) {
+    this.source = source;
+    this.window = new byte[READ_AHEAD];
+  }
+  
+  /**
+   * Return the underlying atom source.  Atoms that keep a reference to the
+   * data should use the source, not the reader.
+   * @return the underlying atom source
+   */
+  public AtomSource getSource() {
+    return source;
+  }
+  
+  /**
+   * Return the current position of the reader.
+   * @return the current position
+   */
+  public long position() {
+    return position;
+  }
+  
+  /**
+   * Move the reader to the specified position.
+   * @param position the new position
+   */
+  public void seek(long position) {
+    this.position = position;
+  }
+  
+  /**
+   * Return true if the current position is before the end of the source.
+   * @return true if there is more data to read
+   * @throws IOException if the size cannot be determined
+   */
+  public boolean hasMore() throws IOException {
+    return position < size();
+  }
+  
+  /**
+   * Read an unsigned int (4 bytes) at the current position and advance
+   * the position.
+   * @return the unsigned int value
+   * @throws IOException if there are not enough bytes
+   */
+  public long readUnsignedInt() throws IOException {
+    int off = ensure(Atom.ATOM_WORD);
+    position += Atom.ATOM_WORD;
+    return Atom.byteArrayToUnsignedInt(window, off);
+  }
+  
+  /**
+   * Read a 64-bit value at the current position and advance the position.
+   * @return the long value
+   * @throws IOException if there are not enough bytes
+   */
+  public long readLong() throws IOException {
+    return (readUnsignedInt() << 32) | readUnsignedInt();
+  }
+  
+  /**
+   * Read bytes in to the array at the current position and advance
+   * the position.
+   * @param b where the bytes go
+   * @throws IOException if there are not enough bytes
+   */
+  public void readFully(byte[] b) throws IOException {
+    int off = ensure(b.length);
+    System.arraycopy(window, off, b, 0, b.length);
+    position += b.length;
+  }
+  
+  /**
+   * Read the atom header at the current position and create the atom.
+   * The atom's offset and size are set, but its contents aren't read.
+   * The reader is left at the end of the header.  A 64-bit size is only
+   * allowed for the mdat atom, and a size of 0 means the atom extends
+   * to the end of the file.
+   * @return the new atom, or null at the end of the source
+   * @throws AtomException if the header is not valid
+   */
+  public Atom nextAtom() throws AtomException {
+    long offset = position;
+    try {
+      if (!hasMore()) {
+        return null;
+      }
+      long atomSize = readUnsignedInt();
+      int type = (int) readUnsignedInt();
+      int headerSize = Atom.ATOM_HEADER_SIZE;
+      if (atomSize == 1) {
+        // 64-bit size follows the type
+        atomSize = readLong();
+        headerSize = MdatAtom.LARGE_HEADER_SIZE;
+      }
+      else if (atomSize == 0) {
+        atomSize = size() - offset;
+      }
+      if (atomSize < headerSize) {
+        throw new AtomException("Invalid atom size " + atomSize + " at " + offset);
+      }
+      Atom atom = AtomFactory.create(type);
+      atom.setOffset(offset);
+      atom.setSize(atomSize);
+      if (headerSize != Atom.ATOM_HEADER_SIZE) {
+        if (!(atom instanceof MdatAtom)) {
+          throw new AtomException("Unable to handle 64-bit size for " + atom);
+        }
+        ((MdatAtom) atom).setHeaderSize(headerSize);
+      }
+      return atom;
+    } catch (IOException e) {
+      throw new AtomException("Unable to read enough bytes for atom");
+    }
+  }
+
+  @Override
+  public long size() throws IOException {
+    if (size < 0) {
+      size = source.size();
+    }
+    return size;
+  }
+  
+  /**
+   * Read bytes at the specified position.  The current position of the 
+   * reader is not changed.  Small reads are served from the read-ahead buffer.
+   */
+  @Override
+  public int read(ByteBuffer dst, long pos) throws IOException {
+    int len = dst.remaining();
+    if (!inWindow(pos, 1)) {
+      if (len >= READ_AHEAD) {
+        return source.read(dst, pos);
+      }
+      fill(pos);
+      if (windowLength == 0) {
+        return -1;
+      }
+    }
+    int off = (int) (pos - windowStart);
+    int num = Math.min(len, windowLength - off);
+    dst.put(window, off, num);
+    return num;
+  }
+  
+  /**
+   * Return the bytes at the specified position.  Bytes in the read-ahead
+   * buffer are copied, otherwise the source provides the buffer.
+   */
+  @Override
+  public ByteBuffer getData(long pos, int length) throws IOException {
+    if (inWindow(pos, length)) {
+      ByteBuffer buf = ByteBuffer.allocate(length);
+      buf.put(window, (int) (pos - windowStart), length);
+      buf.flip();
+      return buf;
+    }
+    return source.getData(pos, length);
+  }
+  
+  @Override
+  public long transferTo(long pos, long count, WritableByteChannel target) throws IOException {
+    return source.transferTo(pos, count, target);
+  }
+  
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+  
+  /**
+   * Make sure the window contains the bytes at the current position.
+   * @param len the number of bytes needed
+   * @return the window offset of the current position
+   * @throws IOException if there are not enough bytes in the source
+   */
+  private int ensure(int len) throws IOException {
+    if (!inWindow(position, len)) {
+      fill(position);
+      if (windowLength < len) {
+        throw new EOFException("Unexpected end of file at " + position);
+      }
+    }
+    return (int) (position - windowStart);
+  }
+  
+  /**
+   * Return true if the bytes are in the read-ahead window
+   * @param pos the source position
+   * @param len the number of bytes
+   * @return true if all the bytes are in the window
+   */
+  private boolean inWindow(long pos, int len) {
+    return pos >= windowStart && pos + len <= windowStart + windowLength;
+  }
+  
+  /**
+   * Fill the read-ahead window starting at the specified position
+   * @param pos the source position
+   * @throws IOException if there is an error reading the data
+   */
+  private void fill(long pos) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(window);
+    windowStart = pos;
+    windowLength = 0;
+    while (buf.hasRemaining()) {
+      int num = source.read(buf, pos + buf.position());
+      if (num < 0) {
+        break;
+      }
+    }
+    windowLength = buf.position();
+  }
+}
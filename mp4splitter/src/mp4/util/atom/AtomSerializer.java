@@ -0,0 +1,237 @@
+package mp4.util.atom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a sequence of atoms to a channel in two phases.
+ *
+ * The layout phase walks the atoms once and computes the size of every
+ * container from its children, so the sizes don't need to be recomputed
+ * by hand after the atoms change.
+ *
+ * The write phase collects the atom headers and the leaf data in a list
+ * of buffers that share the atoms' data, and writes the list with
+ * gathering writes.  The whole sequence usually takes one write instead
+ * of one for each atom.  The headers and other small pieces are copied
+ * in to a direct staging buffer, so the list has a few large buffers
+ * instead of thousands of tiny ones.  Large leaf data that hasn't been
+ * read is copied from the source by the channel instead.
+ *
+ * An atom may be added with only its header, such as an mdat atom whose
+ * data is copied separately.
+ */
+public class AtomSerializer {
+  // the size of a staging buffer
+  private static final int STAGING_SIZE = 64 * 1024;
+  // pieces smaller than this are copied in to a staging buffer
+  private static final int SMALL_SIZE = 4 * 1024;
+  
+  // the atoms, in order
+  private final List<Atom> atoms = new ArrayList<Atom>();
+  // the atoms that are written without their data
+  private final List<Atom> headerOnly = new ArrayList<Atom>();
+  // true if the atoms have been laid out
+  private boolean laidOut;
+  // the channel where the atoms are written
+  private GatheringByteChannel out;
+  // the buffers that haven't been written yet
+  private final List<ByteBuffer> pending = new ArrayList<ByteBuffer>();
+  // the buffer with the small pieces
+  private ByteBuffer staging;
+  // the start of the staged bytes that aren't in the pending list yet
+  private int stagingStart;
+
+  /**
+   * Add an atom, with its children or data.
+   * @param atom the atom
+   */
+  public void add(Atom atom) {
+    atoms.add(atom);
+    laidOut = false;
+  }
+
+  /**
+   * Add the header of an atom, without its data.
+   * @param atom the atom
+   */
+  public void addHeader(Atom atom) {
+    atoms.add(atom);
+    headerOnly.add(atom);
+    laidOut = false;
+  }
+
+  /**
+   * Compute the size of each container atom and the total size of the
+   * output.
+   * @return the number of bytes written by write()
+   */
+  public long layout() {
+    long total = 0;
+    for (Atom atom : atoms) {
+      if (headerOnly.contains(atom)) {
+        total += atom.getHeaderSize();
+      }
+      else {
+        total += layout(atom);
+      }
+    }
+    laidOut = true;
+    return total;
+  }
+
+  /**
+   * Compute the size of an atom and its children
+   * @param atom the atom
+   * @return the size of the atom
+   */
+  private long layout(Atom atom) {
+    if (atom.isContainer()) {
+      long size = atom.getHeaderSize();
+      for (Atom child : ((ContainerAtom) atom).getChildren()) {
+        size += layout(child);
+      }
+      atom.setSize(size);
+    }
+    return atom.size();
+  }
+
+  /**
+   * Write the atoms to the channel, at the channel's position.  The atoms
+   * are laid out first if they haven't been.
+   * @param out where the atoms go
+   * @throws IOException if there is an error writing the data
+   */
+  public void write(GatheringByteChannel out) throws IOException {
+    if (!laidOut) {
+      layout();
+    }
+    this.out = out;
+    try {
+      for (Atom atom : atoms) {
+        if (headerOnly.contains(atom)) {
+          addHeaderBuffer(atom);
+        }
+        else {
+          serialize(atom);
+        }
+      }
+      flush();
+    } finally {
+      pending.clear();
+      staging = null;
+      this.out = null;
+    }
+  }
+
+  /**
+   * Add the buffers for an atom and its children
+   * @param atom the atom
+   * @throws IOException if there is an error writing the data
+   */
+  private void serialize(Atom atom) throws IOException {
+    addHeaderBuffer(atom);
+    if (atom.isContainer()) {
+      for (Atom child : ((ContainerAtom) atom).getChildren()) {
+        serialize(child);
+      }
+    }
+    else {
+      ((LeafAtom) atom).serializeData(this);
+    }
+  }
+
+  /**
+   * Put the atom header in the staging buffer
+   * @param atom the atom
+   */
+  private void addHeaderBuffer(Atom atom) {
+    atom.putHeader(stage(atom.getHeaderSize()));
+  }
+
+  /**
+   * Add a buffer to the output.  The buffer is written from its position
+   * to its limit.  A small buffer is copied, and a large one is shared.
+   * @param buf the buffer
+   */
+  void addBuffer(ByteBuffer buf) {
+    if (buf.remaining() < SMALL_SIZE) {
+      stage(buf.remaining()).put(buf.duplicate());
+    }
+    else {
+      addStaged();
+      pending.add(buf);
+    }
+  }
+
+  /**
+   * Return the staging buffer, with room for the specified number of
+   * bytes.  A full staging buffer is replaced by a new one.
+   * @param len the number of bytes
+   * @return the staging buffer
+   */
+  private ByteBuffer stage(int len) {
+    if (staging == null || staging.remaining() < len) {
+      addStaged();
+      staging = ByteBuffer.allocateDirect(Math.max(len, STAGING_SIZE));
+      stagingStart = 0;
+    }
+    return staging;
+  }
+
+  /**
+   * Add the staged bytes to the pending buffers
+   */
+  private void addStaged() {
+    if (staging != null && staging.position() > stagingStart) {
+      pending.add(staging.slice(stagingStart, staging.position() - stagingStart));
+      stagingStart = staging.position();
+    }
+  }
+
+  /**
+   * Copy data from an atom source to the output.  The buffers before the
+   * data are written first.
+   * @param source the atom source
+   * @param position the position of the data in the source
+   * @param count the number of bytes
+   * @throws IOException if there is an error copying the data
+   */
+  void addSource(AtomSource source, long position, long count) throws IOException {
+    flush();
+    while (count > 0) {
+      long moved = source.transferTo(position, count, out);
+      if (moved <= 0) {
+        throw new IOException("Unexpected end of file at " + position);
+      }
+      position += moved;
+      count -= moved;
+    }
+  }
+
+  /**
+   * Write the pending buffers with gathering writes.  A write may not take
+   * all the buffers, so the writes continue until the buffers are empty.
+   * @throws IOException if there is an error writing the data
+   */
+  private void flush() throws IOException {
+    addStaged();
+    ByteBuffer[] bufs = pending.toArray(new ByteBuffer[pending.size()]);
+    pending.clear();
+    int first = 0;
+    while (first < bufs.length) {
+      out.write(bufs, first, bufs.length - first);
+      while (first < bufs.length && !bufs[first].hasRemaining()) {
+        first++;
+      }
+    }
+    // the staged bytes have been written, so the buffer can be reused
+    if (staging != null) {
+      staging.clear();
+      stagingStart = 0;
+    }
+  }
+}
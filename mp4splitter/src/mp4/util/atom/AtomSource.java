@@ -0,0 +1,59 @@
+package mp4.util.atom;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The source of the mp4 data.  The data is read at absolute positions,
+ * so an atom only needs to remember where it starts in the source, and
+ * not where some stream happens to be.  Implementations must allow 
+ * concurrent reads from multiple threads.
+ */
+public interface AtomSource {
+
+  /**
+   * Return the size of the source in bytes
+   * @return the size of the source in bytes
+   * @throws IOException if the size cannot be determined
+   */
+  public long size() throws IOException;
+  
+  /**
+   * Read bytes from the source, starting at the specified position, in to 
+   * the buffer.  The position of the source is not changed.
+   * @param dst where the bytes go
+   * @param position the position in the source
+   * @return the number of bytes read, or -1 at the end of the source
+   * @throws IOException if there is an error reading the data
+   */
+  public int read(ByteBuffer dst, long position) throws IOException;
+  
+  /**
+   * Return a buffer with the bytes at the specified position.  The buffer
+   * may be a view of the source instead of a copy, but changes to the 
+   * buffer are never written back to the source.
+   * @param position the position in the source
+   * @param length the number of bytes
+   * @return a buffer whose remaining bytes are the requested data
+   * @throws IOException if there are not enough bytes in the source
+   */
+  public ByteBuffer getData(long position, int length) throws IOException;
+  
+  /**
+   * Transfer bytes from the source to the target channel.  If possible, 
+   * the bytes are moved by the operating system without entering the heap.
+   * @param position the position in the source
+   * @param count the maximum number of bytes to transfer
+   * @param target where the bytes go
+   * @return the number of bytes transferred
+   * @throws IOException if there is an error transferring the data
+   */
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException;
+  
+  /**
+   * Close the source.
+   * @throws IOException if there is an error closing the source
+   */
+  public void close() throws IOException;
+}
@@ -0,0 +1,67 @@
+package mp4.util.atom;
+
+/**
+ * The atom types, as integers.  An atom type is four characters, which
+ * fit in an int, so the type is compared and looked up without building
+ * a string or array.
+ */
+public final class AtomType {
+  public static final int CDSC = value("cdsc");
+  public static final int CHAP = value("chap");
+  public static final int CO64 = value("co64");
+  public static final int CTTS = value("ctts");
+  public static final int DINF = value("dinf");
+  public static final int DREF = value("dref");
+  public static final int EDTS = value("edts");
+  public static final int ELST = value("elst");
+  public static final int FREE = value("free");
+  public static final int FTYP = value("ftyp");
+  public static final int GMHD = value("gmhd");
+  public static final int HDLR = value("hdlr");
+  public static final int HINT = value("hint");
+  public static final int IODS = value("iods");
+  public static final int MDAT = value("mdat");
+  public static final int MDHD = value("mdhd");
+  public static final int MDIA = value("mdia");
+  public static final int MINF = value("minf");
+  public static final int MOOV = value("moov");
+  public static final int MVHD = value("mvhd");
+  public static final int SMHD = value("smhd");
+  public static final int STBL = value("stbl");
+  public static final int STCO = value("stco");
+  public static final int STSC = value("stsc");
+  public static final int STSD = value("stsd");
+  public static final int STSS = value("stss");
+  public static final int STSZ = value("stsz");
+  public static final int STTS = value("stts");
+  public static final int TKHD = value("tkhd");
+  public static final int TRAK = value("trak");
+  public static final int TREF = value("tref");
+  public static final int UDTA = value("udta");
+  public static final int VMHD = value("vmhd");
+
+  private AtomType() {
+  }
+  
+  /**
+   * Convert the four characters of the type to an integer value
+   * @param typ the type name
+   * @return the integer
+   */
+  private static int value(String typ) {
+    return (typ.charAt(0) << 24) | (typ.charAt(1) << 16) | (typ.charAt(2) << 8) | typ.charAt(3);
+  }
+  
+  /**
+   * Convert the integer type to its characters
+   * @param type the atom type
+   * @return the type as a string
+   */
+  public static String toString(int type) {
+    char[] c = new char[Atom.ATOM_WORD];
+    for (int i = 0; i < Atom.ATOM_WORD; i++) {
+      c[i] = (char) ((type >>> (24 - 8 * i)) & 0xff);
+    }
+    return new String(c);
+  }
+}
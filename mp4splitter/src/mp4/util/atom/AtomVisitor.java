@@ -37,4 +37,5 @@ public abstract class AtomVisitor {
   public abstract void visit(TrefAtom atom) throws AtomException;
   public abstract void visit(UdtaAtom atom) throws AtomException;
   public abstract void visit(VmhdAtom atom) throws AtomException;
+  public abstract void visit(UnknownAtom atom) throws AtomException;
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+package mp4.util.atom;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A pool of direct byte buffers used to copy the media data.  The shared
+ * pool lives for the life of the JVM, so once the buffers have been
+ * allocated, copying the mdat atom does not allocate any more memory.
+ */
+public class BufferPool {
+  // the default size of each buffer, in bytes
+  public static final int DEFAULT_BUFFER_SIZE = 4*1024*1024;
+  // the default number of buffers in the pool
+  public static final int DEFAULT_DEPTH = 4;
+  
+  // the pool shared by all the copies in the JVM
+  private static BufferPool shared;
+  
+  // the size of each buffer
+  private final int bufferSize;
+  // the maximum number of buffers in the pool
+  private final int depth;
+  // the buffers that are not in use
+  private final ArrayBlockingQueue<ByteBuffer> free;
+  // the number of buffers allocated so far
+  private int allocated;
+  
+  /**
+   * Create a pool of direct buffers.  The buffers are allocated on demand.
+   * @param bufferSize the size of each buffer in bytes
+   * @param depth the maximum number of buffers
+   */
+  public BufferPool(int bufferSize, int depth) {
+    if (bufferSize <= 0 || depth <= 0) {
+      throw new IllegalArgumentException("Invalid buffer pool size " + bufferSize + "x" + depth);
+    }
+    this.bufferSize = bufferSize;
+    this.depth = depth;
+    this.free = new ArrayBlockingQueue<ByteBuffer>(depth);
+  }
+  
+  /**
+   * Return the pool shared by the JVM.  The pool is created with the default
+   * values if it has not been configured.
+   * @return the shared buffer pool
+   */
+  public static synchronized BufferPool getShared() {
+    if (shared == null) {
+      shared = new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_DEPTH);
+    }
+    return shared;
+  }
+  
+  /**
+   * Change the buffer size and the number of buffers of the shared pool.
+   * The existing pool is kept if the values do not change.
+   * @param bufferSize the size of each buffer in bytes
+   * @param depth the maximum number of buffers
+   */
+  public static synchronized void configure(int bufferSize, int depth) {
+    if (shared == null || shared.bufferSize != bufferSize || shared.depth != depth) {
+      shared = new BufferPool(bufferSize, depth);
+    }
+  }
+  
+  /**
+   * Return the size of each buffer
+   * @return the size of each buffer
+   */
+  public int getBufferSize() {
+    return bufferSize;
+  }
+  
+  /**
+   * Return the maximum number of buffers in the pool
+   * @return the maximum number of buffers
+   */
+  public int getDepth() {
+    return depth;
+  }
+  
+  /**
+   * Get a cleared buffer from the pool.  Waits for a buffer to be released
+   * if all of them are in use.
+   * @return a cleared buffer
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public ByteBuffer acquire() throws InterruptedException {
+    ByteBuffer buf = free.poll();
+    if (buf == null) {
+      synchronized (this) {
+        if (allocated < depth) {
+          allocated++;
+          return ByteBuffer.allocateDirect(bufferSize);
+        }
+      }
+      buf = free.take();
+    }
+    buf.clear();
+    return buf;
+  }
+  
+  /**
+   * Return a buffer to the pool.
+   * @param buf a buffer obtained from acquire
+   */
+  public void release(ByteBuffer buf) {
+    free.offer(buf);
+  }
+}
@@ -1,9 +1,8 @@
 package mp4.util.atom;
 
-import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * A byte stream class contains the data from the mp4 file.  We use this
@@ -11,17 +10,46 @@ import java.util.Arrays;
  *  - an array that can grow & shrink
  *  - to keep track of the current index value in order to append easily
  *  - create a stream that's larger than 2B elements (Integer.MAX_VALUE)
+ *  - to use the data in place when the file is memory mapped
+ *  - to share the data of another stream until one of them changes
+ *
+ * A stream whose size is at least the off-heap threshold keeps its data
+ * in segmented off-heap storage instead of a buffer.  Such a stream is
+ * never a view, and its storage is freed by release().
+ *
+ * A stream may be a view, which is a small header of its own followed by
+ * a body that shares the data of another stream.  A constant can be added
+ * to each 32-bit word of the body without touching the shared data.  The
+ * view is copied in to a flat buffer the first time the body changes.
  */
 public class ByteStream {
-  // the byte stream data
-  private byte[] data;
-  // the number of bytes used in the stream
-  private int used;
+  // the byte stream data, either a heap buffer or a view of a mapped file.
+  // for a view, this is the header
+  private ByteBuffer data;
+  // the number of bytes used in the stream, including the body
+  private long used;
+  // the off-heap storage of a large stream, or null if data is used
+  private SegmentedStorage store;
+  // the shared data following the header of a view, null if not a view
+  private ByteBuffer body;
+  // the offset of the body in the stream, which is the header size
+  private int split;
+  // the amount added to each 32-bit word of the body
+  private int delta;
+  // the smallest and largest unsigned word in the body, after the delta,
+  // or null if they haven't been computed
+  private long[] bodyRange;
+  // true if another stream shares the data, so it's copied before a change
+  private boolean shared;
   
   // Initial size if one is not specified
   private static final int INIT_SIZE = 4096;
   // The amount we increase the array by
   private static final int GROW_FACTOR = 2;
+  // The size of the pieces used to write a mapped stream
+  private static final int WRITE_SIZE = 64*1024;
+  // streams of at least this size are kept off heap
+  private static long offHeapThreshold = Integer.MAX_VALUE;
   
   /**
    * Construct an empty byte stream with the default initial size
@@ -35,23 +63,169 @@ public class ByteStream {
    * @param size the initial size
    */
   public ByteStream(long size) {
-    if (size > Integer.MAX_VALUE) {
-      throw new AtomError("Unable to handle data size larger than int");
+    if (size >= offHeapThreshold) {
+      store = new SegmentedStorage(size);
+    }
+    else {
+      data = ByteBuffer.wrap(new byte[(int) size]);
     }
-    data = new byte[(int) size];
     this.used = 0;
   }
   
+  /**
+   * Construct a byte stream that uses the data in the buffer, without
+   * copying it.  The stream contains all the bytes remaining in the buffer.
+   * A read-only buffer is copied when the stream is first changed.
+   * @param buf the buffer with the data
+   */
+  public ByteStream(ByteBuffer buf) {
+    data = buf.slice();
+    used = data.capacity();
+  }
+  
   /**
    * Copy constructor for a byte stream.
    * @param old the stream to copy
    */
   public ByteStream(ByteStream old) {
-    data = new byte[old.data.length];
-    System.arraycopy(old.data, 0, data, 0, data.length);
+    if (old.store != null) {
+      store = old.store.copy(old.used);
+    }
+    else if (old.body == null) {
+      // share the data, and both streams copy it before a change
+      data = old.data.asReadOnlyBuffer();
+      old.shared = true;
+    }
+    else {
+      data = ByteBuffer.allocate(old.split);
+      data.put(old.data.duplicate().clear().limit(old.split));
+      body = old.body;
+      split = old.split;
+      delta = old.delta;
+    }
     used = old.used;
   }
   
+  /**
+   * Read a byte stream from an atom source.  A small stream uses the buffer
+   * returned by the source, and a large one is read in to off-heap storage.
+   * @param source the atom source
+   * @param pos the position of the data in the source
+   * @param len the number of bytes
+   * @return the new stream
+   * @throws IOException if there is an error reading the source
+   */
+  public static ByteStream read(AtomSource source, long pos, long len) throws IOException {
+    if (len < offHeapThreshold) {
+      return new ByteStream(source.getData(pos, (int) len));
+    }
+    ByteStream bs = new ByteStream(len);
+    bs.store.read(source, pos, len);
+    bs.used = len;
+    return bs;
+  }
+  
+  /**
+   * Set the size at which new streams are kept off heap.  Streams larger
+   * than 2GB are always off heap.
+   * @param size the threshold in bytes
+   */
+  public static void setOffHeapThreshold(long size) {
+    offHeapThreshold = Math.min(size, Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Free the data of the stream.  Off-heap storage is given back right
+   * away instead of waiting for the garbage collector.  The stream is
+   * empty afterwards.
+   */
+  public void release() {
+    if (store != null) {
+      store.release();
+      store = null;
+    }
+    data = ByteBuffer.allocate(0);
+    body = null;
+    split = 0;
+    delta = 0;
+    bodyRange = null;
+    shared = false;
+    used = 0;
+  }
+  
+  /**
+   * Create a view that shares part of this stream.  The view starts with
+   * a header of zero bytes, followed by the bytes of this stream in the
+   * specified range.  Neither stream sees changes made to the other.
+   * @param headerSize the size of the view's own header
+   * @param from the offset of the first shared byte
+   * @param to the offset after the last shared byte
+   * @return the new stream
+   */
+  public ByteStream slice(int headerSize, long from, long to) {
+    if (from > to || to > used) {
+      throw new AtomError("Invalid range for byte stream slice " + from + " " + to);
+    }
+    if (store != null) {
+      // off-heap data isn't shared, so copy the range
+      ByteStream copy = new ByteStream(headerSize + (to - from));
+      copy.reserveSpace(headerSize + (to - from));
+      byte[] b = new byte[(int) Math.min(to - from, WRITE_SIZE)];
+      for (long off = from; off < to; off += b.length) {
+        int n = (int) Math.min(b.length, to - off);
+        store.get(off, b, 0, n);
+        copy.addData(headerSize + (off - from), b, n);
+      }
+      return copy;
+    }
+    ByteStream view = new ByteStream(ByteBuffer.allocate(headerSize));
+    view.used = headerSize + (to - from);
+    view.split = headerSize;
+    if (body == null) {
+      view.body = data.slice((int) from, (int) (to - from)).asReadOnlyBuffer();
+      shared = true;
+    }
+    else if (from >= split && (delta == 0 || (from - split) % 4 == 0)) {
+      view.body = body.slice((int) from - split, (int) (to - from));
+      view.delta = delta;
+    }
+    else {
+      // the range includes the header of this view, so copy it
+      view.body = ByteBuffer.wrap(getData(from, to)).asReadOnlyBuffer();
+    }
+    return view;
+  }
+  
+  /**
+   * Add a value to each unsigned 32-bit word in the specified range.  If
+   * the range is the body of a view, the value is recorded instead of
+   * changing each word.
+   * @param from the offset of the first word
+   * @param to the offset after the last word
+   * @param val the value added to each word
+   * @throws AtomError if a word no longer fits in 32 bits
+   */
+  public void rebase(long from, long to, long val) {
+    if (store != null) {
+      store.rebaseInts(from, to - (to - from) % 4, val);
+      return;
+    }
+    if (body != null && from == split && to == used && (to - from) % 4 == 0) {
+      if (bodyRange == null) {
+        bodyRange = TableTransform.unsignedRange(body, 0, (int) used - split, delta);
+      }
+      if (bodyRange[0] + val < 0 || bodyRange[1] + val > 0xffffffffL) {
+        throw new AtomError("Table entry does not fit in 32 bits after adding " + val);
+      }
+      bodyRange[0] += val;
+      bodyRange[1] += val;
+      delta += (int) val;
+      return;
+    }
+    makeWritable();
+    TableTransform.rebaseInts(data, (int) from, (int) (to - (to - from) % 4), val);
+  }
+  
   /**
    * Return the space used by the byte stream
    * @return the space used by the byte stream
@@ -65,21 +239,25 @@ public class ByteStream {
    * @param size the number of bytes to reserve
    */
   public void reserveSpace(long size) {
-    if (used + size > data.length) {
-      grow();
-    }
+    makeWritable();
+    ensureCapacity(used + size);
     used += size;
   }
   
   /**
-   * Read data from an input stream into the byte stream
-   * @param in the input stream
-   * @return the number of bytes read
+   * Add a value to each 64-bit word in the specified range.
+   * @param from the offset of the first word
+   * @param to the offset after the last word
+   * @param val the value added to each word
+   * @throws AtomError if a word becomes negative
    */
-  public int read(DataInputStream in) throws IOException {
-    int num = in.read(data);
-    used += num;
-    return num;
+  public void rebaseLongs(long from, long to, long val) {
+    if (store != null) {
+      store.rebaseLongs(from, to - (to - from) % 8, val);
+      return;
+    }
+    makeWritable();
+    TableTransform.rebaseLongs(data, (int) from, (int) (to - (to - from) % 8), val);
   }
   
   /**
@@ -87,10 +265,10 @@ public class ByteStream {
    * @param b the byte to add
    */
   public void addData(byte b) {
-    data[used++] = b;
-    if (used == data.length) {
-      grow();
-    }
+    makeWritable();
+    ensureCapacity(used + 1);
+    used++;
+    addData(used - 1, b);
   }
  
   /**
@@ -98,9 +276,14 @@ public class ByteStream {
    * @param offset the offset from the start
    * @param b the value to add
    */
-  public final void addData(int offset, byte b) {
+  public final void addData(long offset, byte b) {
     assert offset + 1 <= used;
-    data[offset] = b;
+    if (store != null) {
+      store.put(offset, b);
+      return;
+    }
+    makeWritable(offset, 1);
+    data.put((int) offset, b);
   }
   
   /**
@@ -109,10 +292,10 @@ public class ByteStream {
    * @param len the number of bytes from the byte array 
    */
   public final void addData(byte[] b, int len) {
-    if (used + len >= data.length) {
-      grow();
-    }
-    System.arraycopy(b, 0, data, used, len);
+    makeWritable();
+    ensureCapacity(used + len);
+    used += len;
+    addData(used - len, b, len);
   }
   
   /**
@@ -120,9 +303,25 @@ public class ByteStream {
    * @param offset the offset in the byte stream
    * @param b the byte array whose contends are added to the byte stream
    */
-  public final void addData(int offset, byte[] b) {
-    assert offset + b.length <= used;
-    System.arraycopy(b, 0, data, offset, b.length);
+  public final void addData(long offset, byte[] b) {
+    addData(offset, b, b.length);
+  }
+  
+  /**
+   * Add the first bytes of an array to the byte stream at the specified
+   * offset.
+   * @param offset the offset in the byte stream
+   * @param b the byte array
+   * @param len the number of bytes from the byte array
+   */
+  private void addData(long offset, byte[] b, int len) {
+    assert offset + len <= used;
+    if (store != null) {
+      store.put(offset, b, 0, len);
+      return;
+    }
+    makeWritable(offset, len);
+    data.put((int) offset, b, 0, len);
   }
   
   /**
@@ -130,9 +329,20 @@ public class ByteStream {
    * @param offset the offset
    * @return the byte value at the specified offset
    */
-  public final byte getData(int offset) {
+  public final byte getData(long offset) {
     assert offset <= used;
-    return data[offset];
+    if (store != null) {
+      return store.get(offset);
+    }
+    if (body == null || offset < split) {
+      return data.get((int) offset);
+    }
+    int off = (int) offset - split;
+    if (delta == 0) {
+      return body.get(off);
+    }
+    int word = body.getInt(off & ~3) + delta;
+    return (byte) (word >> (24 - 8 * (off & 3)));
   }
   
   /**
@@ -141,49 +351,92 @@ public class ByteStream {
    * @param to the ending offset of the data
    * @return a copy of the byte data from the stream
    */
-  public final byte[] getData(int from, int to) {
+  public final byte[] getData(long from, long to) {
     assert from + to <= used;
-    return Arrays.copyOfRange(data, from, to);
+    byte[] b = new byte[(int) (to - from)];
+    if (store != null) {
+      store.get(from, b, 0, b.length);
+    }
+    else if (body == null) {
+      data.get((int) from, b);
+    }
+    else {
+      for (int i = 0; i < b.length; i++) {
+        b[i] = getData(from + i);
+      }
+    }
+    return b;
   }
     
+  /**
+   * Return the big-endian 32-bit value at the specified offset.
+   * @param off offset of the value
+   * @return the int value
+   */
+  public final int getInt(long off) {
+    if (store != null) {
+      return store.getInt(off);
+    }
+    if (body == null || off + 4 <= split) {
+      return data.getInt((int) off);
+    }
+    if (off >= split && ((off - split) & 3) == 0) {
+      return body.getInt((int) off - split) + delta;
+    }
+    return ((getData(off) & 0xff) << 24) | ((getData(off+1) & 0xff) << 16) |
+      ((getData(off+2) & 0xff) << 8) | (getData(off+3) & 0xff);
+  }
+  
   /**
    * Java doesn't have unsigned types, so we need to use the next
    * larger signed type.
-   * @param b the byte array
    * @param off offset to start the conversion
-   * @return the unsigned integer value of the byte array
+   * @return the unsigned integer value
    */
-  public final long getUnsignedInt(int off) {
-    return ((long)(data[off] & 0xff) << 24) |
-    ((long)(data[off+1] & 0xff) << 16) |
-    ((long)(data[off+2] & 0xff) << 8) |
-    (long)(data[off+3] & 0xff);  
+  public final long getUnsignedInt(long off) {
+    return getInt(off) & 0xffffffffL;
+  }
+  
+  /**
+   * Return the big-endian 64-bit value at the specified offset.
+   * @param off offset of the value
+   * @return the long value
+   */
+  public final long getLong(long off) {
+    if (store != null) {
+      return store.getLong(off);
+    }
+    if (body == null || off + 8 <= split) {
+      return data.getLong((int) off);
+    }
+    return ((long) getInt(off) << 32) | (getInt(off + 4) & 0xffffffffL);
   }
   
   /**
    * Java doesn't have unsigned types, so we need to use the next
    * larger signed type.
-   * @param b the byte array
    * @param off offset to start the conversion
-   * @return the unsigned integer value of the byte array
+   * @return the unsigned short value
    */
-  public final int getUnsignedShort(int off) {
-    return ((data[off] & 0xff) << 8) | (data[off+1] & 0xff);  
+  public final int getUnsignedShort(long off) {
+    if (store != null) {
+      return store.getShort(off) & 0xffff;
+    }
+    if (body == null || off + 2 <= split) {
+      return data.getShort((int) off) & 0xffff;
+    }
+    return ((getData(off) & 0xff) << 8) | (getData(off+1) & 0xff);  
   }
   
   /**
-   * Get a fixed point value from two 16 bit values located in a
-   * 32-bit word.
+   * Get a 16.16 fixed point value from a 32-bit word.  The high 16 bits
+   * are the integer part and the low 16 bits are the fraction.
    * @param off the offset in the byte array where value is located
    * @return the fixed point value of the 32-bit data.
    */
-  public final double getFixedPoint(int off) {
-    int integerPart = ((data[off] & 0xff) << 8) |
-      ((data[off+1] & 0xff));
-    int fractionPart = ((data[off+2] & 0xff) << 8) |
-      ((data[off+3] & 0xff));
-    double val = Double.valueOf(integerPart + "." + fractionPart).doubleValue();
-    return val;
+  public final double getFixedPoint(long off) {
+    int val = getInt(off);
+    return (val >>> 16) + (val & 0xffff) / 65536.0;
   }
   
   /**
@@ -192,7 +445,7 @@ public class ByteStream {
    * @param integerPart the integer part of the fixed point value
    * @param fractionPart the fraction part of the fixed point value
    */
-  public void addFixedPoint(int off, int integerPart, int fractionPart) {
+  public void addFixedPoint(long off, int integerPart, int fractionPart) {
     addUnsignedShort(off, integerPart);
     addUnsignedShort(off+2, fractionPart);
   }
@@ -202,11 +455,10 @@ public class ByteStream {
    * @param data the data
    */
   public void addUnsignedInt(long val) {
+    makeWritable();
+    ensureCapacity(used + 4);
     used += 4;
-    if (used >= data.length) {
-      grow();
-    }
-    addUnsignedInt(0, val);
+    addUnsignedInt(used - 4, val);
   }
   
   /**
@@ -216,14 +468,34 @@ public class ByteStream {
    * @param offset the offset from the start of the byte stream
    * @param val the integer value to add to the stream
    */
-  public void addUnsignedInt(int offset, long val) {
+  public void addUnsignedInt(long offset, long val) {
     if (offset + 4 > used) {
       throw new AtomError("Not enough space allocated for the data");
     }
-    data[offset++] = (byte) ((val >> 24) & 0xff);
-    data[offset++] = (byte) ((val >> 16) & 0xff);
-    data[offset++] = (byte) ((val >> 8) & 0xff);
-    data[offset] = (byte) (val & 0xff);
+    if (store != null) {
+      store.putInt(offset, (int) val);
+      return;
+    }
+    makeWritable(offset, 4);
+    data.putInt((int) offset, (int) val);
+  }
+  
+  /**
+   * Add a 64-bit value to the byte stream at the specified offset.  The
+   * space must already be allocated.
+   * @param offset the offset from the start of the byte stream
+   * @param val the value to add to the stream
+   */
+  public void addLong(long offset, long val) {
+    if (offset + 8 > used) {
+      throw new AtomError("Not enough space allocated for the data");
+    }
+    if (store != null) {
+      store.putLong(offset, val);
+      return;
+    }
+    makeWritable(offset, 8);
+    data.putLong((int) offset, val);
   }
   
   /**
@@ -231,12 +503,16 @@ public class ByteStream {
    * @param offset the byte stream offset
    * @param val the value to add.
    */
-  public void addUnsignedShort(int offset, int val) {
+  public void addUnsignedShort(long offset, int val) {
     if (offset + 2 > used) {
       throw new AtomError("Not enough space allocated for the data");
     }
-    data[offset++] = (byte) ((val >> 8) & 0xff);
-    data[offset] = (byte) (val & 0xff);
+    if (store != null) {
+      store.putShort(offset, (short) val);
+      return;
+    }
+    makeWritable(offset, 2);
+    data.putShort((int) offset, (short) val);
   }
   
   /**
@@ -245,15 +521,161 @@ public class ByteStream {
    * @throws IOException if there is an error writing the data
    */
   public void writeData(DataOutput out) throws IOException {
-    out.write(data, 0, used);
+    if (store != null) {
+      store.write(out, 0, used);
+      return;
+    }
+    if (body == null) {
+      writeBuffer(out, data, (int) used);
+      return;
+    }
+    writeBuffer(out, data, split);
+    int bodySize = (int) used - split;
+    if (delta == 0) {
+      writeBuffer(out, body, bodySize);
+      return;
+    }
+    // add the delta to each word of the body as it's written
+    ByteBuffer b = ByteBuffer.allocate(Math.min(bodySize, WRITE_SIZE));
+    for (int off = 0; off < bodySize; off += b.capacity()) {
+      int len = Math.min(b.capacity(), bodySize - off);
+      int i = len & ~3;
+      TableTransform.copyRebased(body, off, b, 0, i, delta);
+      for (; i < len; i++) {
+        b.put(i, getData(split + off + i));
+      }
+      out.write(b.array(), 0, len);
+    }
+  }
+  
+  /**
+   * Add buffers with the data of the stream to a serializer.  The buffers
+   * share the stream's data, except for the body of a view with a delta,
+   * which is copied with the delta added to each word.
+   * @param out the serializer
+   */
+  void addBuffers(AtomSerializer out) {
+    if (store != null) {
+      store.addBuffers(out, used);
+      return;
+    }
+    if (body == null) {
+      out.addBuffer(data.slice(0, (int) used));
+      return;
+    }
+    out.addBuffer(data.slice(0, split));
+    int bodySize = (int) used - split;
+    if (delta == 0) {
+      out.addBuffer(body.slice(0, bodySize));
+      return;
+    }
+    ByteBuffer b = ByteBuffer.allocate(bodySize);
+    int len = bodySize & ~3;
+    TableTransform.copyRebased(body, 0, b, 0, len, delta);
+    for (int i = len; i < bodySize; i++) {
+      b.put(i, getData(split + i));
+    }
+    out.addBuffer(b);
+  }
+  
+  /**
+   * Write the first bytes of a buffer to the specified location.  A heap
+   * buffer is written directly, otherwise the bytes are copied in pieces.
+   * @param out where the data goes
+   * @param buf the buffer
+   * @param len the number of bytes from the start of the buffer
+   * @throws IOException if there is an error writing the data
+   */
+  private static void writeBuffer(DataOutput out, ByteBuffer buf, int len) throws IOException {
+    if (buf.hasArray()) {
+      out.write(buf.array(), buf.arrayOffset(), len);
+      return;
+    }
+    byte[] b = new byte[Math.min(len, WRITE_SIZE)];
+    for (int off = 0; off < len; off += b.length) {
+      int n = Math.min(b.length, len - off);
+      buf.get(off, b, 0, n);
+      out.write(b, 0, n);
+    }
   }
   
   /**
-   * Grow the array and copy the data from the old to the new array
+   * Make the stream writable before a change in the specified range.  The
+   * header of a view is not shared, so it can be changed in place.
+   * @param offset the offset of the change
+   * @param len the number of bytes changed
    */
-  private void grow() {
-    byte[] newdata = new byte[data.length * GROW_FACTOR];
-    System.arraycopy(data, 0, newdata, 0, used);
+  private void makeWritable(long offset, int len) {
+    if (body != null && offset + len <= split) {
+      return;
+    }
+    makeWritable();
+  }
+  
+  /**
+   * Copy the data in to a heap buffer before the first change to a
+   * read-only or shared stream, such as one that uses mapped data.  A view
+   * is copied in to a flat buffer with the delta added to the body.
+   */
+  private void makeWritable() {
+    if (body != null) {
+      int bodySize = (int) used - split;
+      ByteBuffer newdata = ByteBuffer.allocate((int) used);
+      newdata.put(data.duplicate().clear().limit(split));
+      if (delta == 0) {
+        newdata.put(body.duplicate().clear());
+      }
+      else {
+        int off = bodySize & ~3;
+        TableTransform.copyRebased(body, 0, newdata, split, off, delta);
+        newdata.position(split + off);
+        for (; off < bodySize; off++) {
+          newdata.put(getData(split + off));
+        }
+      }
+      data = newdata;
+      body = null;
+      split = 0;
+      delta = 0;
+      bodyRange = null;
+      shared = false;
+    }
+    else if (store == null && (shared || data.isReadOnly())) {
+      ByteBuffer newdata = ByteBuffer.allocate(data.capacity());
+      newdata.put(data.duplicate().clear());
+      data = newdata;
+      shared = false;
+    }
+  }
+  
+  /**
+   * Make sure the stream can hold the specified number of bytes.  Off-heap
+   * storage adds segments.  A buffer grows by copying the data to a larger
+   * buffer, or moves off heap once it reaches the threshold.
+   * @param size the number of bytes needed
+   */
+  private void ensureCapacity(long size) {
+    if (store != null) {
+      store.ensureCapacity(size);
+      return;
+    }
+    if (size <= data.capacity()) {
+      return;
+    }
+    long newsize = Math.max(Math.max((long) data.capacity() * GROW_FACTOR, INIT_SIZE), size);
+    if (newsize >= offHeapThreshold) {
+      store = new SegmentedStorage(newsize);
+      byte[] b = new byte[(int) Math.min(used, WRITE_SIZE)];
+      for (int off = 0; off < used; off += b.length) {
+        int n = (int) Math.min(b.length, used - off);
+        data.get(off, b, 0, n);
+        store.put(off, b, 0, n);
+      }
+      data = null;
+      return;
+    }
+    ByteBuffer newdata = ByteBuffer.allocate((int) newsize);
+    newdata.put(data.duplicate().clear().limit((int) used));
     data = newdata;
   }
 }
@@ -10,7 +10,7 @@ public class CdscAtom extends LeafAtom implements ITrefTypeAtom {
    * Construct an empty cdsc track reference type
    */
   public CdscAtom() {
-    super(new byte[]{'c','d','s','c'});
+    super(AtomType.CDSC);
   }
 
   /**
@@ -0,0 +1,87 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An atom source backed by a seekable channel.  A file channel supports
+ * positional reads and zero-copy transfers directly.  For any other 
+ * seekable channel, the position is set before each read.
+ */
+public class ChannelAtomSource implements AtomSource {
+  // the size of the buffer used to transfer data from a non-file channel
+  private static final int TRANSFER_SIZE = 64*1024;
+  
+  // the channel with the mp4 data
+  private final SeekableByteChannel channel;
+  // the same channel, if it is a file channel
+  private final FileChannel fileChannel;
+  
+  /**
+   * Create an atom source for the specified channel
+   * @param channel the channel with the mp4 data
+   */
+  public ChannelAtomSource(SeekableByteChannel channel) {
+    this.channel = channel;
+    if (channel instanceof FileChannel) {
+      this.fileChannel = (FileChannel) channel;
+    }
+    else {
+      this.fileChannel = null;
+    }
+  }
+  
+  @Override
+  public long size() throws IOException {
+    return channel.size();
+  }
+  
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    if (fileChannel != null) {
+      return fileChannel.read(dst, position);
+    }
+    synchronized (channel) {
+      channel.position(position);
+      return channel.read(dst);
+    }
+  }
+  
+  @Override
+  public ByteBuffer getData(long position, int length) throws IOException {
+    ByteBuffer buf = ByteBuffer.allocate(length);
+    while (buf.hasRemaining()) {
+      if (read(buf, position + buf.position()) < 0) {
+        throw new EOFException("Unexpected end of file at " + (position + buf.position()));
+      }
+    }
+    buf.flip();
+    return buf;
+  }
+  
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    if (fileChannel != null) {
+      return fileChannel.transferTo(position, count, target);
+    }
+    ByteBuffer buf = ByteBuffer.allocate((int) Math.min(TRANSFER_SIZE, count));
+    int num = read(buf, position);
+    if (num <= 0) {
+      return 0;
+    }
+    buf.flip();
+    while (buf.hasRemaining()) {
+      target.write(buf);
+    }
+    return num;
+  }
+  
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
@@ -10,7 +10,7 @@ public class ChapAtom extends LeafAtom implements ITrefTypeAtom {
    * Construct an empty cdsc track reference type
    */
   public ChapAtom() {
-    super(new byte[]{'c','h','a','p'});
+    super(AtomType.CHAP);
   }
 
   /**
@@ -0,0 +1,117 @@
+package mp4.util.atom;
+
+/**
+ * A chunk offset table, which is an stco atom with 32-bit offsets or a
+ * co64 atom with 64-bit offsets.  The two tables only differ in the size
+ * of an entry, so the sample table uses whichever one the file has.
+ */
+public abstract class ChunkOffsetAtom extends LeafAtom {
+  protected static final int ENTRIES_OFFSET = 4;
+  protected static final int TABLE_OFFSET = 8;
+  
+  /**
+   * Construct an empty atom
+   * @param type the atom type
+   */
+  protected ChunkOffsetAtom(int type) {
+    super(type);
+  }
+  
+  /**
+   * Copy constructor.  Perform a deep copy.
+   * @param old the version to copy
+   */
+  protected ChunkOffsetAtom(ChunkOffsetAtom old) {
+    super(old);
+  }
+  
+  /**
+   * Return the size of an entry in the table
+   * @return the entry size in bytes
+   */
+  protected abstract int getEntrySize();
+  
+  /**
+   * Return a new empty atom of the same type
+   * @return the new atom
+   */
+  protected abstract ChunkOffsetAtom newAtom();
+  
+  /**
+   * Allocate space for the atom's data.
+   */
+  @Override
+  public void allocateData(long numEntries) {
+    long size = TABLE_OFFSET + (numEntries * getEntrySize());
+    super.allocateData(size);
+  }
+  
+  /**
+   * Return the number of entries in the table
+   * @return the number of entries
+   */
+  public long getNumEntries() {
+    return data().getUnsignedInt(ENTRIES_OFFSET);
+  }
+  
+  /**
+   * Set the number of entries in the table
+   * @param numEntries the number of entries
+   */
+  public void setNumEntries(long numEntries) {
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
+  }
+  
+  /**
+   * Get the chunk offset for the specified chunk.  The chunk
+   * values are 1 based, while the table is 0 based.
+   * @param chunk the chunk number
+   * @return the offset for the chunk
+   */
+  public abstract long getChunkOffset(long chunk);
+  
+  /**
+   * Set the chunk offset for specified table index
+   * @param index the table index number
+   * @param offset the chunk offset
+   */
+  public abstract void setChunkOffset(long index, long offset);
+  
+  /**
+   * Perform a fixup of the offsets in the table.  Each existing value
+   * changes by the specified amount.
+   * @param delta the amount to update each offset
+   */
+  public abstract void fixupOffsets(long delta);
+  
+  /**
+   * Split the atom at the specified chunk.  Any entry prior to the
+   * specified chunk is discarded, and the new table is created with the
+   * entries subsequent to the specified chunk.  The new table shares the
+   * entries with this table until one of them changes.
+   * @param chunkNum the chunk where the atom should be split
+   * @return the new atom
+   */
+  public ChunkOffsetAtom cut(long chunkNum) {
+    ChunkOffsetAtom cutAtom = newAtom();
+    long numEntries = getNumEntries();
+    long from = TABLE_OFFSET + (chunkNum - 1) * getEntrySize();
+    long to = TABLE_OFFSET + numEntries * getEntrySize();
+    cutAtom.setData(data().slice(TABLE_OFFSET, from, to));
+    cutAtom.setNumEntries(numEntries - chunkNum + 1);
+    return cutAtom;
+  }
+  
+  /**
+   * Trim the table after the specified number of chunks.  The atom is
+   * changed in place.
+   * @param numChunks the number of chunks to keep
+   */
+  public void trim(long numChunks) {
+    if (numChunks >= getNumEntries()) {
+      return;
+    }
+    setData(truncatedData(TABLE_OFFSET, TABLE_OFFSET + numChunks * getEntrySize()));
+    setNumEntries(numChunks);
+  }
+}
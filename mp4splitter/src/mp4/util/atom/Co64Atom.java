@@ -4,11 +4,66 @@
 package mp4.util.atom;
 
 
-
-public class Co64Atom extends LeafAtom {
+/**
+ * The 64-bit chunk offset table, used instead of the stco atom when the
+ * chunk offsets don't fit in 32 bits.
+ */
+public class Co64Atom extends ChunkOffsetAtom {
+  private static final int ENTRY_SIZE = 8;
+  
   public Co64Atom() {
-    super(new byte[]{'c','o','6','4'});
+    super(AtomType.CO64);
+  }
+  
+  /**
+   * Copy constructor.  Perform a deep copy.
+   * @param old the version to copy
+   */
+  public Co64Atom(Co64Atom old) {
+    super(old);
+  }
+  
+  @Override
+  protected int getEntrySize() {
+    return ENTRY_SIZE;
+  }
+  
+  @Override
+  protected ChunkOffsetAtom newAtom() {
+    return new Co64Atom();
+  }
+  
+  /**
+   * Get the chunk offset for the specified chunk.  The chunk
+   * values are 1 based, while the table is 0 based.
+   * @param chunk the chunk number
+   * @return the offset for the chunk
+   */
+  @Override
+  public long getChunkOffset(long chunk) {
+    return data().getLong(TABLE_OFFSET + ((chunk - 1) * ENTRY_SIZE));
+  }
+  
+  /**
+   * Set the chunk offset for specified table index
+   * @param index the table index number
+   * @param offset the chunk offset
+   */
+  @Override
+  public void setChunkOffset(long index, long offset) {
+    data().addLong(TABLE_OFFSET + (index * ENTRY_SIZE), offset);
+  }
+  
+  /**
+   * Perform a fixup of the offsets in the co64 atom.  Each existing value
+   * changes by the specified amount.
+   * @param delta the amount to update each offset
+   */
+  @Override
+  public void fixupOffsets(long delta) {
+    data().rebaseLongs(TABLE_OFFSET, TABLE_OFFSET + getNumEntries() * ENTRY_SIZE, delta);
   }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this);
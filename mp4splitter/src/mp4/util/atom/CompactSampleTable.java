@@ -0,0 +1,239 @@
+package mp4.util.atom;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compact copy of a sample table, for keeping the tables of many files
+ * in memory.  The sample sizes and the chunk offsets, which are most of
+ * the table, are stored in packed arrays.  The sizes are variable length
+ * integers, and the offsets are the variable length differences between
+ * adjacent chunks.  The other atoms in the table are small, so they are
+ * kept as they are, in copies that don't refer to the file or share data
+ * with the original table.  A table with a co64 atom, or with an offset
+ * that doesn't fit in 32 bits, is converted back with a co64 atom.
+ *
+ * The sizes and offsets can be read from the compact table directly, and
+ * toStblAtom() converts it back to a regular stbl atom for cutting and
+ * writing.
+ */
+public class CompactSampleTable {
+  // the number of table entries decoded at a time
+  private static final int DECODE_SIZE = 4096;
+
+  // the atoms that are kept as they are
+  private final StsdAtom stsd;
+  private final SttsAtom stts;
+  private final StscAtom stsc;
+  private final CttsAtom ctts;
+  private final StssAtom stss;
+  // the unknown children of the stbl atom
+  private final List<UnknownAtom> unknown = new ArrayList<UnknownAtom>();
+  // the version and flags of the stsz and chunk offset atoms
+  private final int stszVersion;
+  private final int stcoVersion;
+  // true if the chunk offsets are written in a co64 atom
+  private final boolean co64;
+  // the size of every sample, or 0 if the sizes are in the table
+  private final long sampleSize;
+  // the number of samples
+  private final long numSamples;
+  // the size of each sample, or null if they are all the same size
+  private final PackedLongArray sizes;
+  // the offset of each chunk
+  private final PackedLongArray offsets;
+
+  /**
+   * Create a compact copy of a sample table
+   * @param stbl the sample table
+   */
+  public CompactSampleTable(StblAtom stbl) {
+    stsd = copy(new StsdAtom(stbl.getStsd()));
+    stts = copy(new SttsAtom(stbl.getStts()));
+    stsc = copy(new StscAtom(stbl.getStsc()));
+    ctts = stbl.getCtts() == null ? null : copy(new CttsAtom(stbl.getCtts()));
+    stss = stbl.getStss() == null ? null : copy(new StssAtom(stbl.getStss()));
+    for (Atom child : stbl.getChildren()) {
+      if (child instanceof UnknownAtom) {
+        unknown.add(copy(new UnknownAtom((UnknownAtom) child)));
+      }
+    }
+
+    StszAtom stsz = stbl.getStsz();
+    stszVersion = stsz.data().getInt(0);
+    sampleSize = stsz.getSampleSize();
+    numSamples = stsz.getNumEntries();
+    if (sampleSize > 0) {
+      sizes = null;
+    }
+    else {
+      sizes = new PackedLongArray(false, checkCount(numSamples));
+      for (long s = 1; s <= numSamples; s++) {
+        sizes.add(stsz.getTableSampleSize(s));
+      }
+      sizes.trim();
+    }
+
+    ChunkOffsetAtom chunkOffsets = stbl.getChunkOffsets();
+    stcoVersion = chunkOffsets.data().getInt(0);
+    long numChunks = chunkOffsets.getNumEntries();
+    offsets = new PackedLongArray(true, checkCount(numChunks));
+    long maxOffset = 0;
+    for (long c = 1; c <= numChunks; c++) {
+      long offset = chunkOffsets.getChunkOffset(c);
+      maxOffset = Math.max(maxOffset, offset);
+      offsets.add(offset);
+    }
+    offsets.trim();
+    co64 = chunkOffsets instanceof Co64Atom || maxOffset > 0xffffffffL;
+  }
+
+  /**
+   * Give a copied atom its own data, so it doesn't refer to the file
+   * @param atom the copied atom
+   * @return the atom
+   */
+  private static <T extends LeafAtom> T copy(T atom) {
+    atom.copyData();
+    return atom;
+  }
+
+  /**
+   * Check that a table fits in a packed array
+   * @param count the number of table entries
+   * @return the number of entries as an int
+   */
+  private static int checkCount(long count) {
+    if (count > Integer.MAX_VALUE) {
+      throw new AtomError("Unable to handle table with " + count + " entries");
+    }
+    return (int) count;
+  }
+
+  /**
+   * Return the number of samples
+   * @return the number of samples
+   */
+  public long getNumSamples() {
+    return numSamples;
+  }
+
+  /**
+   * Return the number of chunks
+   * @return the number of chunks
+   */
+  public long getNumChunks() {
+    return offsets.size();
+  }
+
+  /**
+   * Return the size of a sample.  The sample numbers are 1 based.
+   * @param sampleNum the sample number
+   * @return the size of the sample
+   */
+  public long getSampleSize(long sampleNum) {
+    if (sizes == null) {
+      return sampleSize;
+    }
+    return sizes.get((int) (sampleNum - 1));
+  }
+
+  /**
+   * Return the offset of a chunk.  The chunk numbers are 1 based.
+   * @param chunk the chunk number
+   * @return the offset of the chunk
+   */
+  public long getChunkOffset(long chunk) {
+    return offsets.get((int) (chunk - 1));
+  }
+
+  /**
+   * Return the approximate number of bytes used by the compact table
+   * @return the memory size in bytes
+   */
+  public long memorySize() {
+    long total = offsets.memorySize() + stsd.size() + stts.size() + stsc.size();
+    if (sizes != null) {
+      total += sizes.memorySize();
+    }
+    if (ctts != null) {
+      total += ctts.size();
+    }
+    if (stss != null) {
+      total += stss.size();
+    }
+    for (UnknownAtom child : unknown) {
+      total += child.size();
+    }
+    return total;
+  }
+
+  /**
+   * Convert the compact table back to an stbl atom.  The new atom doesn't
+   * share anything that can change with the compact table, so the compact
+   * table can be converted again.
+   * @return the stbl atom
+   */
+  public StblAtom toStblAtom() {
+    StblAtom stbl = new StblAtom();
+    stbl.addChild(new StsdAtom(stsd));
+    stbl.addChild(new SttsAtom(stts));
+    stbl.addChild(toStszAtom());
+    stbl.addChild(new StscAtom(stsc));
+    stbl.addChild(toChunkOffsetAtom());
+    if (ctts != null) {
+      stbl.addChild(new CttsAtom(ctts));
+    }
+    if (stss != null) {
+      stbl.addChild(new StssAtom(stss));
+    }
+    for (UnknownAtom child : unknown) {
+      stbl.addChild(new UnknownAtom(child));
+    }
+    return stbl;
+  }
+
+  /**
+   * Create the stsz atom from the packed sizes
+   * @return the stsz atom
+   */
+  private StszAtom toStszAtom() {
+    StszAtom stsz = new StszAtom();
+    stsz.allocateData(sizes == null ? 0 : numSamples);
+    stsz.data().addUnsignedInt(0, stszVersion & 0xffffffffL);
+    stsz.setSampleSize(sampleSize);
+    stsz.setNumEntries(numSamples);
+    if (sizes != null) {
+      long[] buf = new long[DECODE_SIZE];
+      for (int i = 0; i < numSamples; i += DECODE_SIZE) {
+        int n = (int) Math.min(DECODE_SIZE, numSamples - i);
+        sizes.get(i, buf, n);
+        for (int j = 0; j < n; j++) {
+          stsz.setTableSampleSize(i + j + 1, buf[j]);
+        }
+      }
+    }
+    return stsz;
+  }
+
+  /**
+   * Create the stco or co64 atom from the packed offsets
+   * @return the chunk offset atom
+   */
+  private ChunkOffsetAtom toChunkOffsetAtom() {
+    ChunkOffsetAtom chunkOffsets = co64 ? new Co64Atom() : new StcoAtom();
+    int numChunks = offsets.size();
+    chunkOffsets.allocateData(numChunks);
+    chunkOffsets.data().addUnsignedInt(0, stcoVersion & 0xffffffffL);
+    chunkOffsets.setNumEntries(numChunks);
+    long[] buf = new long[DECODE_SIZE];
+    for (int i = 0; i < numChunks; i += DECODE_SIZE) {
+      int n = Math.min(DECODE_SIZE, numChunks - i);
+      offsets.get(i, buf, n);
+      for (int j = 0; j < n; j++) {
+        chunkOffsets.setChunkOffset(i + j, buf[j]);
+      }
+    }
+    return chunkOffsets;
+  }
+}
@@ -3,14 +3,20 @@
  */
 package mp4.util.atom;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public abstract class ContainerAtom extends Atom {
+  // the children whose type isn't known, which are written as is
+  private List<UnknownAtom> unknownChildren;
   
   /**
    * Create a container atom
    * @param type the atom's type information
    */
-  protected ContainerAtom(byte[] type) {
+  protected ContainerAtom(int type) {
     super(type);
   }
   
@@ -20,6 +26,7 @@ public abstract class ContainerAtom extends Atom {
    */
   protected ContainerAtom(ContainerAtom old) {
     super(old);
+    copyUnknownChildren(old);
   }
   
   public boolean isContainer() {
@@ -28,9 +35,87 @@ public abstract class ContainerAtom extends Atom {
   
   public abstract void addChild(Atom child);
   
+  /**
+   * Keep a child whose type isn't known.  The child is written after
+   * the known children.
+   * @param child the unknown atom
+   */
+  protected void addUnknownChild(UnknownAtom child) {
+    if (unknownChildren == null) {
+      unknownChildren = new ArrayList<UnknownAtom>();
+    }
+    unknownChildren.add(child);
+  }
+  
+  /**
+   * Copy the unknown children from another container.  A copy refers to
+   * the same source data until the data is read.
+   * @param old the container with the unknown children
+   */
+  protected void copyUnknownChildren(ContainerAtom old) {
+    if (old.unknownChildren == null) {
+      return;
+    }
+    unknownChildren = new ArrayList<UnknownAtom>(old.unknownChildren.size());
+    for (UnknownAtom child : old.unknownChildren) {
+      unknownChildren.add(new UnknownAtom(child));
+    }
+  }
+  
+  /**
+   * Return the children in the order they are written.  The unknown
+   * children are last.
+   * @return the children of the container
+   */
+  public final List<Atom> getChildren() {
+    List<Atom> children = new ArrayList<Atom>();
+    addKnownChildren(children);
+    if (unknownChildren != null) {
+      children.addAll(unknownChildren);
+    }
+    return children;
+  }
+  
+  /**
+   * Add the children whose type is known to the list, in the order they
+   * are written.  Missing optional children are skipped.
+   * @param children the list of children
+   */
+  protected abstract void addKnownChildren(List<Atom> children);
+  
   /**
    * Recompute the size of the container by summing the size of each
-   * contained atom
+   * contained atom.  The sizes of the children must be up to date.
+   */
+  protected void recomputeSize() {
+    long newSize = ATOM_HEADER_SIZE;
+    for (Atom child : getChildren()) {
+      newSize += child.size();
+    }
+    setSize(newSize);
+  }
+  
+  /**
+   * Free the data of the children.  The container must not be used
+   * afterwards.
+   */
+  @Override
+  public void releaseData() {
+    for (Atom child : getChildren()) {
+      child.releaseData();
+    }
+  }
+  
+  /**
+   * Write the container and its children to the specified output
+   * @param out where the data goes
+   * @throws IOException if there is an error writing the data
    */
-  protected abstract void recomputeSize();
+  @Override
+  public void writeData(DataOutput out) throws IOException {
+    writeHeader(out);
+    for (Atom child : getChildren()) {
+      child.writeData(out);
+    }
+  }
 }
\ No newline at end of file
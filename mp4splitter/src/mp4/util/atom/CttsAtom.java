@@ -16,7 +16,7 @@ public class CttsAtom extends TimeToSampleAtom {
    * Constructor 
    */
   public CttsAtom() {
-    super(new byte[]{'c','t','t','s'});
+    super(AtomType.CTTS);
   }
   
   /**
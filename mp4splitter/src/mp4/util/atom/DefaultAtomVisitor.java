@@ -136,4 +136,8 @@ public class DefaultAtomVisitor extends AtomVisitor {
   public void visit(VmhdAtom atom) throws AtomException {
     defaultAction(atom);
   }
+  @Override
+  public void visit(UnknownAtom atom) throws AtomException {
+    defaultAction(atom);
+  }
 }
@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * The data information container atom.
@@ -17,7 +16,7 @@ public class DinfAtom extends ContainerAtom {
    * Construct an empty data inforamation atom
    */
   public DinfAtom() {
-    super(new byte[]{'d','i','n','f'});
+    super(AtomType.DINF);
   }
   
   /**
@@ -43,20 +42,14 @@ public class DinfAtom extends ContainerAtom {
     if (child instanceof DrefAtom) {
       dref = (DrefAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to dref");
     }
   }
  
-  /**
-   * Recompute the size of the dinf atom.  This is a noop size the contents
-   * do not change.
-   */
-  @Override
-  protected void recomputeSize() {
-    setSize(ATOM_HEADER_SIZE + dref.size());
-  }
-
   /**
    * Cut the dinf atom, which does need to change the contents.  So,
    * this method return a copy of the atom.
@@ -71,14 +64,8 @@ public class DinfAtom extends ContainerAtom {
     v.visit(this); 
   }
  
-  /**
-   * Write the dinf atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    dref.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add(dref);
   }
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * Copy a range of one file into another file using direct I/O (O_DIRECT),
+ * so the data does not pass through, or evict anything from, the page cache.
+ * 
+ * Direct I/O requires the file positions, the transfer sizes and the
+ * buffer addresses to be multiples of the file system block size.  The
+ * range produced by cutting the mdat atom starts and ends at arbitrary
+ * positions, so the unaligned head and tail of the output range are copied
+ * using regular I/O.  The aligned middle is read in whole blocks and, when
+ * the input and output ranges are not aligned the same way, shifted into
+ * place before it is written.
+ */
+public class DirectCopier {
+  // the size of the copy buffers
+  private final int bufferSize;
+  
+  /**
+   * Create a direct copier.
+   * @param bufferSize the size of each copy buffer, rounded down to the block size
+   */
+  public DirectCopier(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+  
+  /**
+   * Copy the input range [srcPos, srcPos + count) to the output range
+   * [dstPos, dstPos + count).
+   * @param input the input file
+   * @param srcPos the position of the data in the input file
+   * @param output the output file, which must exist
+   * @param dstPos the position for the data in the output file
+   * @param count the number of bytes to copy
+   * @return the number of bytes copied using direct I/O
+   * @throws IOException if there is an error copying the data
+   * @throws UnsupportedOperationException if the file system does not 
+   *  support direct I/O.  Nothing has been copied in this case.
+   */
+  public long copy(Path input, long srcPos, Path output, long dstPos, long count) throws IOException {
+    long block = Math.max(Files.getFileStore(input).getBlockSize(), 
+        Files.getFileStore(output).getBlockSize());
+    FileChannel directIn;
+    FileChannel directOut = null;
+    FileChannel in = null;
+    FileChannel out = null;
+    directIn = openDirect(input, StandardOpenOption.READ);
+    try {
+      directOut = openDirect(output, StandardOpenOption.WRITE);
+      in = FileChannel.open(input, StandardOpenOption.READ);
+      out = FileChannel.open(output, StandardOpenOption.WRITE);
+      
+      long end = dstPos + count;
+      long alignedStart = alignUp(dstPos, block);
+      long alignedEnd = alignDown(end, block);
+      if (alignedStart >= alignedEnd) {
+        // too small to bother
+        copyBuffered(in, srcPos, out, dstPos, count);
+        return 0;
+      }
+      // the unaligned head and tail
+      copyBuffered(in, srcPos, out, dstPos, alignedStart - dstPos);
+      copyBuffered(in, srcPos + (alignedEnd - dstPos), out, alignedEnd, end - alignedEnd);
+      
+      int size = (int) Math.max(block, alignDown(bufferSize, block));
+      ByteBuffer readBuf = ByteBuffer.allocateDirect((int) (size + 2 * block)).alignedSlice((int) block);
+      ByteBuffer writeBuf = ByteBuffer.allocateDirect((int) (size + block)).alignedSlice((int) block);
+      // the input and output have the same alignment, read straight in to the write buffer
+      boolean sameAlignment = (srcPos - dstPos) % block == 0;
+      for (long pos = alignedStart; pos < alignedEnd; pos += size) {
+        int len = (int) Math.min(size, alignedEnd - pos);
+        long from = srcPos + (pos - dstPos);
+        long readStart = alignDown(from, block);
+        int shift = (int) (from - readStart);
+        ByteBuffer buf = sameAlignment ? writeBuf : readBuf;
+        buf.clear();
+        buf.limit((int) alignUp(shift + len, block));
+        while (buf.position() < shift + len) {
+          if (directIn.read(buf, readStart + buf.position()) < 0) {
+            throw new EOFException("Unexpected end of file in mdat atom");
+          }
+        }
+        if (!sameAlignment) {
+          readBuf.limit(shift + len).position(shift);
+          writeBuf.clear();
+          writeBuf.put(readBuf);
+        }
+        writeBuf.flip();
+        while (writeBuf.hasRemaining()) {
+          directOut.write(writeBuf, pos + writeBuf.position());
+        }
+      }
+      return alignedEnd - alignedStart;
+    } finally {
+      directIn.close();
+      if (directOut != null) {
+        directOut.close();
+      }
+      if (in != null) {
+        in.close();
+      }
+      if (out != null) {
+        out.close();
+      }
+    }
+  }
+  
+  /**
+   * Open a file for direct I/O.  When the direct open fails, the file is
+   * opened again without direct I/O.  If that works, the file system
+   * doesn't support direct I/O, whatever the error was.  Otherwise the
+   * error from the regular open, such as a missing file or no permission,
+   * is a real error.
+   * @param path the file
+   * @param option READ or WRITE
+   * @return the channel
+   * @throws IOException if the file can't be opened
+   * @throws UnsupportedOperationException if the file system does not 
+   *  support direct I/O
+   */
+  private static FileChannel openDirect(Path path, StandardOpenOption option) throws IOException {
+    try {
+      return FileChannel.open(path, option, ExtendedOpenOption.DIRECT);
+    } catch (IOException e) {
+      FileChannel.open(path, option).close();
+      UnsupportedOperationException unsupported =
+          new UnsupportedOperationException("Direct I/O not supported for " + path);
+      unsupported.initCause(e);
+      throw unsupported;
+    }
+  }
+  
+  /**
+   * Copy a small range using regular I/O.
+   * @param in the input channel
+   * @param srcPos the input position
+   * @param out the output channel
+   * @param dstPos the output position
+   * @param count the number of bytes to copy
+   * @throws IOException if there is an error copying the data
+   */
+  private static void copyBuffered(FileChannel in, long srcPos, FileChannel out, long dstPos, long count) throws IOException {
+    if (count <= 0) {
+      return;
+    }
+    ByteBuffer buf = ByteBuffer.allocate((int) count);
+    while (buf.hasRemaining()) {
+      if (in.read(buf, srcPos + buf.position()) < 0) {
+        throw new EOFException("Unexpected end of file in mdat atom");
+      }
+    }
+    buf.flip();
+    while (buf.hasRemaining()) {
+      out.write(buf, dstPos + buf.position());
+    }
+  }
+  
+  private static long alignDown(long value, long block) {
+    return value - (value % block);
+  }
+  
+  private static long alignUp(long value, long block) {
+    return alignDown(value + block - 1, block);
+  }
+}
@@ -9,7 +9,7 @@ package mp4.util.atom;
 public class DrefAtom extends LeafAtom {
   
   public DrefAtom() {
-    super(new byte[]{'d','r','e','f'});
+    super(AtomType.DREF);
   }
   
   /**
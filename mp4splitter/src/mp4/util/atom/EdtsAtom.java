@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * The edit list container atom.
@@ -17,7 +16,7 @@ public class EdtsAtom extends ContainerAtom {
    * Construct an empty edit list container atom.
    */
   public EdtsAtom() {
-    super(new byte[]{'e','d','t','s'});
+    super(AtomType.EDTS);
   }
   
   /**
@@ -67,20 +66,14 @@ public class EdtsAtom extends ContainerAtom {
     if (child instanceof ElstAtom) {
       elst = (ElstAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to edts");
     }
   }
 
-  /**
-   * Recompute the size of the edts atom, which is a noop since the contents
-   * do not change.
-   */
-  @Override
-  protected void recomputeSize() {
-    setSize(ATOM_HEADER_SIZE + elst.size());    
-  }
-
   /**
    * Cut the edit list atom, which does not change the contents.  This method
    * returns a copy.
@@ -95,16 +88,10 @@ public class EdtsAtom extends ContainerAtom {
     v.visit(this);
   }
 
-  /**
-   * Write the edts atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */  
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
+  protected void addKnownChildren(List<Atom> children) {
     if (elst != null) {
-      elst.writeData(out);
+      children.add(elst);
     }
   }
 
@@ -20,7 +20,7 @@ public class ElstAtom extends LeafAtom {
    * Construct an empty elst atom.
    */
   public ElstAtom() {
-    super(new byte[]{'e','l','s','t'});
+    super(AtomType.ELST);
   }
   
   /**
@@ -69,7 +69,8 @@ public class ElstAtom extends LeafAtom {
    * @param duration the new duration value
    */
   public void setDuration(long duration) {
-    for (int i = 0; i < getNumEntries(); i++) {
+    long numEntries = getNumEntries();
+    for (int i = 0; i < numEntries; i++) {
       setDuration(i, duration);
     }
   }
@@ -79,7 +80,7 @@ public class ElstAtom extends LeafAtom {
    * @return the number of entries in the edit list
    */
   public long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+    return data().getUnsignedInt(ENTRIES_OFFSET);
   }
   
   /**
@@ -87,7 +88,7 @@ public class ElstAtom extends LeafAtom {
    * @param numEntries the number of edit list entries
    */
   public void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
   }
   
   /**
@@ -96,7 +97,7 @@ public class ElstAtom extends LeafAtom {
    * @return the track duration for the specified index
    */
   public long getDuration(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + TRACK_DURATION);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + TRACK_DURATION);
   }
   
   /**
@@ -105,7 +106,7 @@ public class ElstAtom extends LeafAtom {
    * @param val the new duration
    */
   public void setDuration(int index, long val) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + TRACK_DURATION, val);
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + TRACK_DURATION, val);
   }
   
   /**
@@ -114,7 +115,7 @@ public class ElstAtom extends LeafAtom {
    * @return the media time for the specified index
    */
   public long getMediaTime(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_TIME);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_TIME);
   }
   
   /**
@@ -123,7 +124,7 @@ public class ElstAtom extends LeafAtom {
    * @param time the new time
    */
   public void setMediaTime(int index, long time) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_TIME, time);
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_TIME, time);
   }
   
   /**
@@ -134,7 +135,7 @@ public class ElstAtom extends LeafAtom {
    * @return the media rate for the specified index
    */
   public double getMediaRate(int index) {
-    return data.getFixedPoint(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_RATE);
+    return data().getFixedPoint(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_RATE);
   }
   
   /**
@@ -143,7 +144,7 @@ public class ElstAtom extends LeafAtom {
    * @param rate the media rate integer portion
    */
   public void setMediaRate(int index, int rate) {
-    data.addFixedPoint(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_RATE, rate, 0);
+    data().addFixedPoint(TABLE_OFFSET + (index * ENTRY_SIZE) + MEDIA_RATE, rate, 0);
   }
   
   @Override
@@ -161,7 +162,8 @@ public class ElstAtom extends LeafAtom {
   public long editTime(float time, long mediaTS, long movieTS) {
     long movieTime = (long)(time * movieTS);
     long mediaTime = (long)(time * mediaTS);
-    for (int i = 0; i < getNumEntries(); i++) {
+    long numEntries = getNumEntries();
+    for (int i = 0; i < numEntries; i++) {
       if (movieTime < getDuration(i) && getMediaTime(i) != -1) {
         // we don't handle dwell edits
         assert getMediaRate(i) != 0;
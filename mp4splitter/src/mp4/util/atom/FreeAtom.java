@@ -9,7 +9,7 @@ public class FreeAtom extends LeafAtom {
    * Construct an empty free atom.
    */
   public FreeAtom() {
-    super(new byte[]{'f','r','e','e'});
+    super(AtomType.FREE);
   }
   
   /**
@@ -14,7 +14,7 @@ public class FtypAtom extends LeafAtom {
    * Construct an empty ftyp atom
    */
   public FtypAtom() {
-    super(new byte[]{'f','t','y','p'});
+    super(AtomType.FTYP);
   }
   
   /**
@@ -35,6 +35,6 @@ public class FtypAtom extends LeafAtom {
    * @return the ISO registered brand name
    */
   public byte[] getMajorBrand() {
-    return data.getData(MAJOR_BRAND_OFFSET, MAJOR_BRAND_OFFSET + ATOM_WORD);
+    return data().getData(MAJOR_BRAND_OFFSET, MAJOR_BRAND_OFFSET + ATOM_WORD);
   }
 }
\ No newline at end of file
@@ -14,7 +14,7 @@ public class GmhdAtom extends LeafAtom implements IMhdAtom {
    * Construct an empty gmhd atom.
    */
   public GmhdAtom() {
-    super(new byte[]{'g','m','h','d'});
+    super(AtomType.GMHD);
   }
   
   /**
@@ -26,7 +26,7 @@ public class HdlrAtom extends LeafAtom {
    * Construct an empty hdlr atom.
    */
   public HdlrAtom() {
-    super(new byte[]{'h','d','l','r'});
+    super(AtomType.HDLR);
   }
   
   /**
@@ -42,7 +42,7 @@ public class HdlrAtom extends LeafAtom {
    * @return the media handler type as a string.
    */
   public String getHandlerType() {
-    return new String(data.getData(HANDLER_TYPE_OFFSET, HANDLER_TYPE_OFFSET + ATOM_WORD));
+    return new String(data().getData(HANDLER_TYPE_OFFSET, HANDLER_TYPE_OFFSET + ATOM_WORD));
   }
   
   /**
@@ -52,14 +52,14 @@ public class HdlrAtom extends LeafAtom {
   public String getName() {
     int length = 0;
     for (int i = NAME_OFFSET; i < size(); i++, length++) {
-      if (data.getData(i) == 0) {
+      if (data().getData(i) == 0) {
         break;
       }
     }
     if (length == 0) {
       return "";
     }
-    return new String(data.getData(NAME_OFFSET, length));
+    return new String(data().getData(NAME_OFFSET, length));
   }
   
   /**
@@ -9,7 +9,7 @@ public class HintAtom extends LeafAtom implements ITrefTypeAtom {
    * Construct an empty hint track reference atom
    */
   public HintAtom() {
-    super(new byte[]{'h','i','n','t'});
+    super(AtomType.HINT);
   }
   
   /**
@@ -6,7 +6,7 @@ package mp4.util.atom;
 public class IodsAtom extends LeafAtom {
   
     public IodsAtom() {
-      super(new byte[]{'i','o','d','s'});
+      super(AtomType.IODS);
     }
     
     /**
@@ -3,13 +3,20 @@
  */
 package mp4.util.atom;
 
-import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public abstract class LeafAtom extends Atom {
-  // the raw mpeg4 data for the atom
-  protected ByteStream data;
+  // the raw mpeg4 data for the atom, null until the data is needed
+  private ByteStream data;
+  // where the data is read from, when it hasn't been read yet
+  private AtomSource dataSource;
+  // the position of the data in the source
+  private long sourceOffset;
+  // the size of the buffer used to write data that hasn't been read
+  private static final int WRITE_SIZE = 64 * 1024;
   
   protected static final int VERSION_OFFSET = 0;
   protected static final int FLAG_OFFSET = 1;
@@ -19,7 +26,7 @@ public abstract class LeafAtom extends Atom {
    * Constructor for a leaf Atom
    * @param type the atom's type
    */
-  protected LeafAtom(byte[] type) {
+  protected LeafAtom(int type) {
     super(type);
   }
   
@@ -29,7 +36,52 @@ public abstract class LeafAtom extends Atom {
    */
   protected LeafAtom(LeafAtom old) {
     super(old);
-    data = new ByteStream(old.data);
+    if (old.data != null) {
+      data = new ByteStream(old.data);
+    }
+    else {
+      // the data hasn't been read, so both atoms refer to the source
+      dataSource = old.dataSource;
+      sourceOffset = old.sourceOffset;
+    }
+  }
+  
+  /**
+   * Return the atom's data, reading it from the source the first time
+   * it's needed.
+   * @return the atom's data
+   */
+  protected ByteStream data() {
+    if (data == null && dataSource != null) {
+      try {
+        data = ByteStream.read(dataSource, sourceOffset, dataSize());
+      } catch (IOException e) {
+        throw new AtomError("IOException while reading mp4 file");
+      }
+      dataSource = null;
+    }
+    return data;
+  }
+  
+  /**
+   * Read the atom's data from the source now, instead of when an accessor
+   * first needs it.  Afterwards the atom doesn't refer to the source, so
+   * the source may be closed.
+   */
+  public void loadData() {
+    data();
+  }
+  
+  /**
+   * Give the atom its own copy of its data, reading it from the source if
+   * it hasn't been read.  Afterwards the atom doesn't share its data with
+   * another atom or a mapped file, and doesn't refer to the source.
+   */
+  public void copyData() {
+    ByteStream old = data();
+    if (old != null) {
+      data = new ByteStream(ByteBuffer.wrap(old.getData(0, old.length())));
+    }
   }
   
   /**
@@ -38,7 +90,7 @@ public abstract class LeafAtom extends Atom {
    * @return
    */
   public byte getVersion() {
-    return data.getData(VERSION_OFFSET);
+    return data().getData(VERSION_OFFSET);
   }
   
   /**
@@ -46,7 +98,7 @@ public abstract class LeafAtom extends Atom {
    * @param version the atom's version
    */
   public void setVersion(byte version) {
-    data.addData(VERSION_OFFSET, version);
+    data().addData(VERSION_OFFSET, version);
   }
   
   /**
@@ -54,7 +106,7 @@ public abstract class LeafAtom extends Atom {
    * @return the flag data from the atom as a byte array
    */
   public byte[] getFlag() {
-    return data.getData(FLAG_OFFSET, FLAG_SIZE);
+    return data().getData(FLAG_OFFSET, FLAG_SIZE);
   }
   
   /**
@@ -62,7 +114,7 @@ public abstract class LeafAtom extends Atom {
    * @param flag the flag info
    */
   public void setFlag(byte[] flag) {
-    data.addData(FLAG_OFFSET, flag);
+    data().addData(FLAG_OFFSET, flag);
   }
   
   /**
@@ -80,21 +132,81 @@ public abstract class LeafAtom extends Atom {
    */
   public void writeData(DataOutput out) throws IOException {
     writeHeader(out);
-    data.writeData(out);
+    if (data != null || dataSource == null) {
+      data().writeData(out);
+      return;
+    }
+    // the data hasn't been read, so copy it from the source to the output
+    ByteBuffer buf = ByteBuffer.allocate((int) Math.min(dataSize(), WRITE_SIZE));
+    long pos = sourceOffset;
+    long end = sourceOffset + dataSize();
+    while (pos < end) {
+      buf.clear();
+      buf.limit((int) Math.min(buf.capacity(), end - pos));
+      int len = dataSource.read(buf, pos);
+      if (len < 0) {
+        throw new EOFException("Unexpected end of file at " + pos);
+      }
+      out.write(buf.array(), 0, len);
+      pos += len;
+    }
   }
   
   /**
-   * Read the data from the input stream in to the atom.
-   * @param in the input stream
-   * @throws AtomException
+   * Add the atom's data to a serializer.  The serializer shares the data
+   * buffers.  Large data that hasn't been read is copied from the source
+   * to the output when it is written.
+   * @param out the serializer
+   * @throws IOException if there is a problem writing the data
    */
-  public void readData(DataInputStream in) throws AtomException {
-    data = new ByteStream(dataSize());
-    try {
-      data.read(in);
-    } catch (IOException e) {
-      throw new AtomException("IOException while reading mp4 file");
+  void serializeData(AtomSerializer out) throws IOException {
+    if (data == null && dataSource != null && dataSize() >= WRITE_SIZE) {
+      out.addSource(dataSource, sourceOffset, dataSize());
+      return;
     }
+    data().addBuffers(out);
+  }
+  
+  /**
+   * Read the data from the atom source in to the atom.  The data follows
+   * the atom header, at the atom's offset.  The data isn't read until an
+   * accessor needs it, and data that is never used is copied from the
+   * source to the output when the atom is written.  If the source is
+   * memory mapped, the atom uses the mapped data without copying it.
+   * Large data is read in to off-heap storage.
+   * @param source the atom source
+   * @throws AtomException
+   */
+  public void readData(AtomSource source) throws AtomException {
+    dataSource = source;
+    sourceOffset = offset + ATOM_HEADER_SIZE;
+    data = null;
+  }
+  
+  /**
+   * Use the byte stream as the atom's data, and set the atom's size.
+   * @param data the new data
+   */
+  protected void setData(ByteStream data) {
+    this.data = data;
+    dataSource = null;
+    setSize(data.length() + ATOM_HEADER_SIZE);
+  }
+  
+  /**
+   * Return a stream with the start of this atom's data, for a table that
+   * is cut short.  The header before the table is copied, and the part of
+   * the table that is kept is shared with this atom's data until one of
+   * them changes.
+   * @param headerSize the size of the header before the table
+   * @param to the offset after the last byte that is kept
+   * @return the new data
+   */
+  protected ByteStream truncatedData(int headerSize, long to) {
+    ByteStream old = data();
+    ByteStream trimmed = old.slice(headerSize, headerSize, to);
+    trimmed.addData(0, old.getData(0, headerSize));
+    return trimmed;
   }
   
   /**
@@ -103,9 +215,23 @@ public abstract class LeafAtom extends Atom {
    */
   public void allocateData(long size) {
     assert data == null;
+    dataSource = null;
     data = new ByteStream(size);
     data.reserveSpace(size);
     setSize(size + ATOM_HEADER_SIZE);
   }
   
+  /**
+   * Free the atom's data, including any off-heap storage.  The atom must
+   * not be used afterwards.
+   */
+  @Override
+  public void releaseData() {
+    if (data != null) {
+      data.release();
+      data = null;
+    }
+    dataSource = null;
+  }
+  
 }
\ No newline at end of file
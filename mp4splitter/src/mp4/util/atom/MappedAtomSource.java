@@ -0,0 +1,103 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An atom source that memory maps the mp4 file.  Leaf atoms use the mapped
+ * data in place, so the sample tables are not copied in to the heap.
+ * 
+ * A mapped buffer is limited to 2GB, so the file is mapped in windows
+ * addressed by a long position.  The windows overlap, which lets almost
+ * every atom be served from a single window.  An atom that still crosses
+ * a window boundary gets its own mapping.  The windows are read-only, so 
+ * an atom copies its data before changing it.
+ */
+public class MappedAtomSource implements AtomSource {
+  // the distance between the start of each window
+  private static final long WINDOW_SIZE = 1L << 30;
+  // the amount each window extends in to the next one
+  private static final long WINDOW_OVERLAP = 64L << 20;
+  
+  // the mapped file
+  private final FileChannel channel;
+  // the size of the file
+  private final long size;
+  // the windows, mapped when they are first used
+  private final ByteBuffer[] windows;
+  
+  /**
+   * Create an atom source that maps the file
+   * @param channel the channel for the mp4 file
+   * @throws IOException if the size of the file cannot be determined
+   */
+  public MappedAtomSource(FileChannel channel) throws IOException {
+    this.channel = channel;
+    this.size = channel.size();
+    this.windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+  }
+  
+  @Override
+  public long size() {
+    return size;
+  }
+  
+  @Override
+  public int read(ByteBuffer dst, long position) throws IOException {
+    if (position >= size) {
+      return -1;
+    }
+    int len = (int) Math.min(dst.remaining(), size - position);
+    int index = (int) (position / WINDOW_SIZE);
+    ByteBuffer window = getWindow(index);
+    int off = (int) (position - index * WINDOW_SIZE);
+    len = Math.min(len, window.capacity() - off);
+    dst.put(window.slice(off, len));
+    return len;
+  }
+  
+  /**
+   * Return a view of the mapped data.
+   */
+  @Override
+  public ByteBuffer getData(long position, int length) throws IOException {
+    if (position + length > size) {
+      throw new EOFException("Unexpected end of file at " + size);
+    }
+    int index = (int) (position / WINDOW_SIZE);
+    ByteBuffer window = getWindow(index);
+    int off = (int) (position - index * WINDOW_SIZE);
+    if (off + length <= window.capacity()) {
+      return window.slice(off, length);
+    }
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+  }
+  
+  @Override
+  public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+    return channel.transferTo(position, count, target);
+  }
+  
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+  
+  /**
+   * Return the window, mapping it if needed
+   * @param index the window number
+   * @return the mapped window
+   * @throws IOException if the window cannot be mapped
+   */
+  private synchronized ByteBuffer getWindow(int index) throws IOException {
+    if (windows[index] == null) {
+      long start = index * WINDOW_SIZE;
+      long length = Math.min(WINDOW_SIZE + WINDOW_OVERLAP, size - start);
+      windows[index] = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+    return windows[index];
+  }
+}
@@ -3,24 +3,36 @@
  */
 package mp4.util.atom;
 
-import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
 
 
 /**
  * The media data atom.  This atom holds the video frames and sound tracks.
  */
 public class MdatAtom extends LeafAtom {
-  // the input stream contains the data.  we use the stream instead of a data file
-  // because the amount of data is so large.
-  private DataInputStream in;
+  // the header size when the atom uses a 64-bit size
+  public static final int LARGE_HEADER_SIZE = 16;
+  
+  // the source contains the data.  we keep a reference to the source instead
+  // of reading the data because the amount of data is so large.
+  private AtomSource source;
+  // the position in the source of the first byte of the data
+  private long dataOffset;
+  // the size of the atom header
+  private int headerSize = ATOM_HEADER_SIZE;
    
   /**
    * Construct an empty mdat atom
    */
   public MdatAtom() {
-    super(new byte[]{'m','d','a','t'});
+    super(AtomType.MDAT);
   }
   
   /**
@@ -29,16 +41,57 @@ public class MdatAtom extends LeafAtom {
    */
   public MdatAtom(MdatAtom old) {
     super(old);
+    source = old.source;
+    dataOffset = old.dataOffset;
+    headerSize = old.headerSize;
+  }
+  
+  /**
+   * Set the source for the mdat atom.  The video and sound data start right
+   * after the atom header, so the atom offset and header size must already
+   * be set.
+   * @param source the atom source with the data
+   */
+  public void setSource(AtomSource source) {
+    this.source = source;
+    this.dataOffset = offset + headerSize;
   }
   
   /**
-   * Set the data input stream for the mdata atom.  The input stream points
-   * at the start of the video and sound data.
-   * @param in the input stream.
+   * Set the size of the atom header.  The header is 16 bytes when the atom
+   * uses a 64-bit size, which is needed for an mdat atom larger than 4 GB.
+   * @param headerSize the header size, ATOM_HEADER_SIZE or LARGE_HEADER_SIZE
    */
-  public void setInputStream(DataInputStream in) {
-    this.in = in;
+  public void setHeaderSize(int headerSize) {
+    this.headerSize = headerSize;
   }
+  
+  /**
+   * Return the size of the atom header
+   * @return the size of the atom header
+   */
+  @Override
+  public int getHeaderSize() {
+    return headerSize;
+  }
+  
+  /**
+   * Return the size of the video and sound data
+   * @return the size of the data part of the atom
+   */
+  @Override
+  public long dataSize() {
+    return size - headerSize;
+  }
+  
+  /**
+   * Return the position in the source of the first byte of the data
+   * @return the position of the data in the source
+   */
+  public long getDataOffset() {
+    return dataOffset;
+  }
+  
   /**
    * Cut the mdat atom by skipping the specified number of bytes.  This 
    * action does not create a new mdat atom.  Instead, it alters the existing
@@ -47,16 +100,66 @@ public class MdatAtom extends LeafAtom {
    * @return an altered mdat atom that has skipped over the approriate data.
    */
   public MdatAtom cut(long skip) {
-    try {
-      in.skipBytes((int)skip);
-      long newSize = dataSize() - skip;
-      setSize(ATOM_HEADER_SIZE + newSize);
-    } catch (IOException e) {
+    if (skip > dataSize()) {
       throw new AtomError("Unable to cut the mdat atom");
     }
+    dataOffset += skip;
+    long newSize = dataSize() - skip;
+    setSize(headerSize + newSize);
     return this;
   }
   
+  /**
+   * Trim the mdat atom so it keeps only the specified number of bytes of
+   * data.  Like cut(), this alters the existing atom.
+   * @param length the number of bytes of data to keep
+   * @return the altered mdat atom
+   */
+  public MdatAtom trim(long length) {
+    if (length > dataSize()) {
+      throw new AtomError("Unable to trim the mdat atom");
+    }
+    setSize(headerSize + length);
+    return this;
+  }
+  
+  /**
+   * Write the atom header, which uses a 64-bit size if the atom was read
+   * with one.
+   * @param out where the output goes
+   * @throws IOException if there is an error writing the data
+   */
+  @Override
+  public void writeHeader(DataOutput out) throws IOException {
+    out.write(headerBuffer().array());
+  }
+  
+  /**
+   * Return the atom header in a buffer that is ready to be written
+   * @return the atom header
+   */
+  private ByteBuffer headerBuffer() {
+    ByteBuffer header = ByteBuffer.allocate(headerSize);
+    putHeader(header);
+    header.flip();
+    return header;
+  }
+  
+  /**
+   * Put the atom header in to a buffer, using a 64-bit size if the atom
+   * was read with one.
+   * @param buf the buffer
+   */
+  @Override
+  void putHeader(ByteBuffer buf) {
+    if (headerSize == LARGE_HEADER_SIZE) {
+      buf.putInt(1).putInt(type).putLong(size);
+    }
+    else {
+      buf.putInt((int) size).putInt(type);
+    }
+  }
+  
   /**
    * Write the video and sound data to the specified output
    * @param out the specified output
@@ -65,14 +168,134 @@ public class MdatAtom extends LeafAtom {
   @Override
   public void writeData(DataOutput out) throws IOException {
     writeHeader(out);
-    long numBytesToRead = dataSize();
-    // read data in using 100 MB chunks
-    byte[] input = new byte[100*1024*1024];
-    while (numBytesToRead > 0) {
-      int read = in.read(input);
-      out.write(input, 0, read);
-      numBytesToRead -= read;
+    copyData(toChannel(out));
+  }
+  
+  /**
+   * Write the video and sound data to the specified channel.  When the
+   * output is a file channel, the data is moved by the operating system
+   * (sendfile or copy_file_range) and never enters the Java heap.
+   * Otherwise, the data is copied through the shared buffer pool.
+   * @param out the channel where the data goes
+   * @throws IOException if there is a problem writing the data
+   */
+  public void writeData(WritableByteChannel out) throws IOException {
+    ByteBuffer header = headerBuffer();
+    while (header.hasRemaining()) {
+      out.write(header);
+    }
+    writeBody(out);
+  }
+  
+  /**
+   * Write the video and sound data to the specified channel, without the
+   * atom header.  The header has already been written, for example by an
+   * AtomSerializer.
+   * @param out the channel where the data goes
+   * @throws IOException if there is a problem writing the data
+   */
+  public void writeBody(WritableByteChannel out) throws IOException {
+    if (!(out instanceof FileChannel)) {
+      copyData(out);
+      return;
+    }
+    long position = dataOffset;
+    long numBytesToMove = dataSize();
+    while (numBytesToMove > 0) {
+      long moved = source.transferTo(position, numBytesToMove, out);
+      System.out.println("DBG: mdat transferTo moved " + moved + " bytes");
+      if (moved <= 0) {
+        throw new IOException("Unexpected end of file in mdat atom");
+      }
+      position += moved;
+      numBytesToMove -= moved;
+    }
+  }
+  
+  /**
+   * Write the video and sound data using direct I/O, which does not go
+   * through the page cache.  The header is written to the channel at its
+   * current position, and the data follows the header.  If the file system
+   * does not support direct I/O, the data is written using the channel.
+   * @param input the name of the mp4 file
+   * @param output the name of the output file
+   * @param out the channel for the output file
+   * @throws IOException if there is a problem writing the data
+   */
+  public void writeDataDirect(Path input, Path output, FileChannel out) throws IOException {
+    ByteBuffer header = headerBuffer();
+    while (header.hasRemaining()) {
+      out.write(header);
+    }
+    writeBodyDirect(input, output, out);
+  }
+  
+  /**
+   * Write the video and sound data using direct I/O, without the atom
+   * header.  The data is written at the channel's current position.
+   * @param input the name of the mp4 file
+   * @param output the name of the output file
+   * @param out the channel for the output file
+   * @throws IOException if there is a problem writing the data
+   */
+  public void writeBodyDirect(Path input, Path output, FileChannel out) throws IOException {
+    long dstPos = out.position();
+    long numBytesToMove = dataSize();
+    DirectCopier copier = new DirectCopier(BufferPool.getShared().getBufferSize());
+    try {
+      long moved = copier.copy(input, dataOffset, output, dstPos, numBytesToMove);
+      System.out.println("DBG: mdat direct I/O moved " + moved + " of " + numBytesToMove + " bytes");
+    } catch (UnsupportedOperationException e) {
+      System.out.println("DBG: " + e.getMessage() + ", using buffered copy");
+      copyData(out);
+      return;
+    }
+    out.position(dstPos + numBytesToMove);
+  }
+  
+  /**
+   * Write the video and sound data at the specified position in the output
+   * file, using several threads that each copy stripes of the data with
+   * positional reads and writes.  The channel's position isn't changed.
+   * @param out the output file
+   * @param position the position for the data in the output file
+   * @param threads the number of copy threads
+   * @throws IOException if there is a problem writing the data
+   */
+  public void writeBodyStriped(FileChannel out, long position, int threads) throws IOException {
+    long moved = new StripedCopier(BufferPool.getShared(), threads).copy(source, dataOffset, out, position, dataSize());
+    System.out.println("DBG: mdat " + threads + " threads moved " + moved + " bytes");
+  }
+  
+  /**
+   * Copy the video and sound data to the output.  The input is read by a
+   * separate thread so the reads and writes overlap.
+   * @param out where the data goes
+   * @throws IOException if there is a problem copying the data
+   */
+  private void copyData(WritableByteChannel out) throws IOException {
+    new PipelinedCopier(BufferPool.getShared()).copy(source, dataOffset, out, dataSize());
+  }
+  
+  /**
+   * Return a channel that writes to the data output.
+   * @param out the data output
+   * @return a channel for the data output
+   */
+  private static WritableByteChannel toChannel(final DataOutput out) {
+    if (out instanceof OutputStream) {
+      return Channels.newChannel((OutputStream) out);
     }
+    return Channels.newChannel(new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+      }
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+      }
+    });
   }
 
   @Override
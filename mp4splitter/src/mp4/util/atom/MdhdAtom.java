@@ -18,7 +18,7 @@ public class MdhdAtom extends LeafAtom {
    * Construct and empty mdhd atom.
    */
   public MdhdAtom() {
-    super(new byte[]{'m','d','h','d'});
+    super(AtomType.MDHD);
   }
   
   /**
@@ -34,7 +34,7 @@ public class MdhdAtom extends LeafAtom {
    * @return the creation time for the atom.
    */
   public long getCreationTime() {
-    return data.getUnsignedInt(CREATION_TIME_OFFSET);
+    return data().getUnsignedInt(CREATION_TIME_OFFSET);
   }
   
   /**
@@ -42,7 +42,7 @@ public class MdhdAtom extends LeafAtom {
    * @param ct the creation time.
    */
   public void setCreationTime(long ct) {
-    data.addUnsignedInt(CREATION_TIME_OFFSET, ct);
+    data().addUnsignedInt(CREATION_TIME_OFFSET, ct);
   }
   
   /**
@@ -51,7 +51,7 @@ public class MdhdAtom extends LeafAtom {
    * @return the modification time for the atom.
    */
   public long getModifactionTime() {
-    return data.getUnsignedInt(MODIFICATION_TIME_OFFSET);
+    return data().getUnsignedInt(MODIFICATION_TIME_OFFSET);
   }
   
   /**
@@ -60,7 +60,7 @@ public class MdhdAtom extends LeafAtom {
    * @param mt the modification time
    */
   public void setModificationTime(long mt) {
-    data.addUnsignedInt(MODIFICATION_TIME_OFFSET, mt);
+    data().addUnsignedInt(MODIFICATION_TIME_OFFSET, mt);
   }
   
   /**
@@ -68,7 +68,7 @@ public class MdhdAtom extends LeafAtom {
    * @return the time scale
    */
   public long getTimeScale() {
-    return data.getUnsignedInt(TIMESCALE_OFFSET);
+    return data().getUnsignedInt(TIMESCALE_OFFSET);
   }
   
   /**
@@ -76,7 +76,7 @@ public class MdhdAtom extends LeafAtom {
    * @param timeScale the media's time scale
    */
   public void setTimeScale(long timeScale) {
-    data.addUnsignedInt(TIMESCALE_OFFSET, timeScale);
+    data().addUnsignedInt(TIMESCALE_OFFSET, timeScale);
   }
   
   /**
@@ -84,7 +84,7 @@ public class MdhdAtom extends LeafAtom {
    * @return the duration
    */
   public long getDuration() {
-    return data.getUnsignedInt(DURATION_OFFSET);
+    return data().getUnsignedInt(DURATION_OFFSET);
   }
   
   /**
@@ -92,7 +92,7 @@ public class MdhdAtom extends LeafAtom {
    * @param duration the duration value
    */
   public void setDuration(long duration) {
-    data.addUnsignedInt(DURATION_OFFSET, duration);
+    data().addUnsignedInt(DURATION_OFFSET, duration);
   }
   
   /**
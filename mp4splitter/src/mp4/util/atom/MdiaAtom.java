@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * Container atom for the media information on a track
@@ -21,7 +20,7 @@ public class MdiaAtom extends ContainerAtom {
    * Constructor for media inforamtion atom
    */
   public MdiaAtom() {
-    super(new byte[]{'m','d','i','a'});
+    super(AtomType.MDIA);
   }
   
   /**
@@ -99,20 +98,14 @@ public class MdiaAtom extends ContainerAtom {
     else if (child instanceof MinfAtom) {
       minf = (MinfAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to mdia");
     }
   }
 
-  /**
-   * Recompute the size ofhte mdia atom, which needs to be done if the
-   * contained atoms change
-   */
-  @Override
-  protected void recomputeSize() {
-    setSize(ATOM_HEADER_SIZE + mdhd.size() + hdlr.size() + minf.size());
-  }
-
   /**
    * Cut the mdia atom at the specified time and return a new object
    * @param time the time at which the atom is cut
@@ -126,25 +119,30 @@ public class MdiaAtom extends ContainerAtom {
     // update the duration of the media
     long newDuration = cutMdia.getMinf().getStbl().getStts().computeDuration();
     cutMdia.getMdhd().setDuration(newDuration);
-    cutMdia.recomputeSize();
+    cutMdia.copyUnknownChildren(this);
     return cutMdia;
   }
   
+  /**
+   * Trim the media at the specified time, which ends a cut.  The atom is
+   * changed in place, so this is used on a media atom created by cut().
+   * @param time the time, in the media time-scale, at which the media ends
+   */
+  public void trim(long time) {
+    StblAtom stbl = minf.getStbl();
+    stbl.trim(time);
+    mdhd.setDuration(stbl.getStts().computeDuration());
+  }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
   }
   
-  /**
-   * Write the mdia atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    mdhd.writeData(out);
-    hdlr.writeData(out);
-    minf.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add(mdhd);
+    children.add(hdlr);
+    children.add(minf);
   }
 }
\ No newline at end of file
@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * The media information container atom.
@@ -21,7 +20,7 @@ public class MinfAtom extends ContainerAtom {
    * Construct an empty minfo atom
    */
   public MinfAtom() {
-    super(new byte[]{'m','i','n','f'});
+    super(AtomType.MINF);
   }
   
   /**
@@ -100,21 +99,14 @@ public class MinfAtom extends ContainerAtom {
     else if (child instanceof StblAtom) {
       stbl = (StblAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to minf");
     }
   }
 
-  /**
-   * Recompute the size of the minf atom, which needs to be done if
-   * any of the child atom sizes have changed.
-   */
-  @Override
-  protected void recomputeSize() {
-    long newSize = mhd.size() + dinf.size() + stbl.size();
-    setSize(ATOM_HEADER_SIZE + newSize);
-  }
-
   /**
    * Cut the atom at the specified time.
    * @param time the media/track normalized time
@@ -125,7 +117,7 @@ public class MinfAtom extends ContainerAtom {
     cutMinf.setMhd(mhd.cut());
     cutMinf.setDinf(dinf.cut());
     cutMinf.setStbl(stbl.cut(time));
-    cutMinf.recomputeSize();
+    cutMinf.copyUnknownChildren(this);
     return cutMinf;
   }
 
@@ -134,16 +126,10 @@ public class MinfAtom extends ContainerAtom {
     v.visit(this); 
   }
 
-  /**
-   * Write the minf atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    mhd.writeData(out);
-    dinf.writeData(out);
-    stbl.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add((Atom) mhd);
+    children.add(dinf);
+    children.add(stbl);
   }
 }
\ No newline at end of file
@@ -3,11 +3,12 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * The movie atom is a top-level atom.  It contains the metadata for a presentation.
@@ -26,7 +27,7 @@ public class MoovAtom extends ContainerAtom {
    * Constructor for movie atom
    */
   public MoovAtom() {
-    super(new byte[]{'m','o','o','v'});
+    super(AtomType.MOOV);
   }
   
   /**
@@ -139,32 +140,18 @@ public class MoovAtom extends ContainerAtom {
       }
       traks.add((TrakAtom) atom);
     }
+    else if (atom instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) atom);
+    }
     else {
       throw new AtomError("Can't add " + atom + " to moov");
     }
   }
   
   /**
-   * Recompute the size of the moov atom, which needs to be done if
-   * any of the child atom sizes have changed.
-   */
-  @Override
-  protected void recomputeSize() {
-    long newSize = mvhd.size();
-    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
-      newSize += i.next().size();
-    }
-    if (iods != null) {
-      newSize += iods.size();
-    }
-    if (udta != null) {
-      newSize += udta.size();
-    }
-    setSize(ATOM_HEADER_SIZE + newSize);
-  }
-
-  /**
-   * Cut the movie atom at the specified time
+   * Cut the movie atom at the specified time.  The sizes of the new
+   * container atoms are computed when the atom is laid out by an
+   * AtomSerializer.
    * @param time the time at which the cut is performed.  Must be converted to movie time.
    * @return the new movie atom
    */
@@ -187,14 +174,7 @@ public class MoovAtom extends ContainerAtom {
     // iterate over each track and cut the track
     for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
       TrakAtom cutTrak = i.next().cut(time, movieTimeScale);
-      cutMoov.addTrack(cutTrak);
-      // need to convert the media time-scale to the movie time-scale
-      long cutDuration = cutTrak.convertDuration(movieTimeScale);
-      System.out.println("DBG: cutDuration " + cutDuration);
-      cutTrak.fixupDuration(cutDuration);
-      if (cutDuration > cutMoov.getMvhd().getDuration()) {
-        cutMoov.getMvhd().setDuration(cutDuration);
-      }
+      long cutDuration = cutMoov.addCutTrack(cutTrak, movieTimeScale);
       if (cutDuration < minDuration) {
         minDuration = cutDuration;
       }
@@ -214,9 +194,160 @@ public class MoovAtom extends ContainerAtom {
         trak.recomputeSize();
       }
     }
-*/    cutMoov.recomputeSize();
+*/    cutMoov.copyUnknownChildren(this);
+    return cutMoov;
+  }
+  
+  /**
+   * Trim every track of a cut movie so it lasts the specified time, and
+   * update the durations.  The movie is changed in place, so this is used
+   * on a movie atom created by cut().  Each track is trimmed from its own
+   * start, since the tracks start at different key frames.
+   * @param duration the duration of the movie, in seconds
+   */
+  public void trim(float duration) {
+    long movieTimeScale = mvhd.getTimeScale();
+    mvhd.setDuration(0);
+    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
+      TrakAtom trak = i.next();
+      trak.trim(duration);
+      long trakDuration = trak.convertDuration(movieTimeScale);
+      trak.fixupDuration(trakDuration);
+      if (trakDuration > mvhd.getDuration()) {
+        mvhd.setDuration(trakDuration);
+      }
+    }
+  }
+  
+  /**
+   * Return the position in the file after the last sample of any track.
+   * With firstDataByteOffset(), this is the range of the mdat data used by
+   * the movie.
+   * @return the offset after the last byte of data
+   */
+  public long lastDataByteOffset() {
+    long offset = 0;
+    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
+      offset = Math.max(offset, i.next().getMdia().getMinf().getStbl().lastDataByteOffset());
+    }
+    return offset;
+  }
+  
+  /**
+   * Cut the movie atom at the specified time, optionally cutting the
+   * tracks in parallel.  The time each track is cut at depends on the
+   * duration of the track before it, so the times are found first by
+   * planning the cut, which only looks up key frames.  Then each track is
+   * cut by its own fork/join task.  The cut tracks are added in track
+   * order, so the result is the same as cut(time).
+   * @param time the time at which the cut is performed
+   * @param parallel true if the tracks are cut in parallel
+   * @return the new movie atom
+   */
+  public MoovAtom cut(float time, boolean parallel) {
+    if (!parallel || traks == null || traks.size() < 2) {
+      return cut(time);
+    }
+    long movieTimeScale = mvhd.getTimeScale();
+    float[] times = cutTimes(time, new long[traks.size()]);
+    System.out.println("DBG: cutting " + traks.size() + " tracks in parallel at " + time + "sec");
+
+    List<CutTask> tasks = new ArrayList<CutTask>();
+    int n = 0;
+    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); n++) {
+      tasks.add(new CutTask(i.next(), times[n], movieTimeScale));
+    }
+    ForkJoinTask.invokeAll(tasks);
+
+    MoovAtom cutMoov = new MoovAtom();
+    cutMoov.setMvhd(mvhd.cut());
+    if (iods != null) {
+      cutMoov.setIods(iods.cut());
+    }
+    if (udta != null) {
+      cutMoov.setUdta(udta.cut());
+    }
+    for (CutTask task : tasks) {
+      cutMoov.addCutTrack(task.join(), movieTimeScale);
+    }
+    cutMoov.copyUnknownChildren(this);
     return cutMoov;
   }
+
+  /**
+   * Add a cut track to this movie, and update the track's duration and
+   * the movie's duration.
+   * @param cutTrak the cut track
+   * @param movieTimeScale the time-scale for the movie
+   * @return the duration of the track, in the movie time-scale
+   */
+  private long addCutTrack(TrakAtom cutTrak, long movieTimeScale) {
+    addTrack(cutTrak);
+    // need to convert the media time-scale to the movie time-scale
+    long cutDuration = cutTrak.convertDuration(movieTimeScale);
+    System.out.println("DBG: cutDuration " + cutDuration);
+    cutTrak.fixupDuration(cutDuration);
+    if (cutDuration > mvhd.getDuration()) {
+      mvhd.setDuration(cutDuration);
+    }
+    return cutDuration;
+  }
+
+  /**
+   * Cuts one track
+   */
+  private static class CutTask extends RecursiveTask<TrakAtom> {
+    private static final long serialVersionUID = 1L;
+    private final TrakAtom trak;
+    private final float time;
+    private final long movieTimeScale;
+
+    CutTask(TrakAtom trak, float time, long movieTimeScale) {
+      this.trak = trak;
+      this.time = time;
+      this.movieTimeScale = movieTimeScale;
+    }
+
+    @Override
+    protected TrakAtom compute() {
+      return trak.cut(time, movieTimeScale);
+    }
+  }
+  
+  /**
+   * Return the key frame where each track would be cut at the specified
+   * time, without cutting the movie.  Like cut(), the time used for each
+   * track comes from the duration of the track before it.  Two times with
+   * the same key frames give the same cut.
+   * @param time the time at which the cut is performed
+   * @return the key frame of each track, in track order
+   */
+  public long[] planCut(float time) {
+    long[] keyFrames = new long[traks.size()];
+    cutTimes(time, keyFrames);
+    return keyFrames;
+  }
+
+  /**
+   * Find the time each track is cut at, and its key frame.
+   * @param time the time at which the cut is performed
+   * @param keyFrames set to the key frame of each track
+   * @return the cut time of each track, in track order
+   */
+  private float[] cutTimes(float time, long[] keyFrames) {
+    long movieTimeScale = mvhd.getTimeScale();
+    long duration = mvhd.getDuration();
+    float[] times = new float[traks.size()];
+    int n = 0;
+    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); n++) {
+      TrakAtom trak = i.next();
+      times[n] = time;
+      keyFrames[n] = trak.findKeyFrame(time);
+      long cutDuration = trak.cutDuration(keyFrames[n], movieTimeScale);
+      time = (duration - cutDuration) / (float) movieTimeScale;
+    }
+    return times;
+  }
   
   /**
    */
@@ -243,17 +374,17 @@ public class MoovAtom extends ContainerAtom {
   
   /**
    * Return the byte offset of the first data in the mdat atom.  
-   * This is computed by looking at the first entry in the stco atom,
-   * which contains mdat offset values.  This method returns the smallest
+   * This is computed by looking at the first entry in the stco or co64
+   * atom, which contains mdat offset values.  This method returns the smallest
    * value of any of the tracks.
    * @return the byte offset of the first data.
    */
   public long firstDataByteOffset() {
     long offset = Long.MAX_VALUE;
     for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
-      StcoAtom stco = i.next().getMdia().getMinf().getStbl().getStco();
-      if (stco.getChunkOffset(1) < offset) {
-        offset = stco.getChunkOffset(1);
+      ChunkOffsetAtom chunkOffsets = i.next().getMdia().getMinf().getStbl().getChunkOffsets();
+      if (chunkOffsets.getChunkOffset(1) < offset) {
+        offset = chunkOffsets.getChunkOffset(1);
       }
     }
     return offset;
@@ -264,23 +395,15 @@ public class MoovAtom extends ContainerAtom {
     v.visit(this);
   }
 
-  /**
-   * Write the moov atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    mvhd.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add(mvhd);
     if (iods != null) {
-      iods.writeData(out);
-    }
-    for (Iterator<TrakAtom> i = getTracks(); i.hasNext(); ) {
-      i.next().writeData(out);
+      children.add(iods);
     }
+    children.addAll(traks);
     if (udta != null) {
-      udta.writeData(out);
+      children.add(udta);
     }
   }
   
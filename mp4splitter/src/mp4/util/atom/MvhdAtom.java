@@ -20,7 +20,7 @@ public class MvhdAtom extends LeafAtom {
    * Construct an empty mvhd atom.
    */
   public MvhdAtom() {
-    super(new byte[]{'m','v','h','d'});
+    super(AtomType.MVHD);
   }
   
   /**
@@ -37,7 +37,7 @@ public class MvhdAtom extends LeafAtom {
    * @return the creation time of the presentation.
    */
   public long getCreationTime() {
-    return data.getUnsignedInt(CREATION_TIME_OFFSET);
+    return data().getUnsignedInt(CREATION_TIME_OFFSET);
   }
   
   /**
@@ -46,7 +46,7 @@ public class MvhdAtom extends LeafAtom {
    * @param ct the creation time
    */
   public void setCreationTime(long ct) {
-    data.addUnsignedInt(CREATION_TIME_OFFSET, ct);
+    data().addUnsignedInt(CREATION_TIME_OFFSET, ct);
   }
   
   /**
@@ -55,7 +55,7 @@ public class MvhdAtom extends LeafAtom {
    * @return the modification time
    */
   public long getModificationTime() {
-    return data.getUnsignedInt(MODIFICATION_TIME_OFFSET);
+    return data().getUnsignedInt(MODIFICATION_TIME_OFFSET);
   }
   
   /**
@@ -64,7 +64,7 @@ public class MvhdAtom extends LeafAtom {
    * @param mt the modification time
    */
   public void setModificationTime(long mt) {
-    data.addUnsignedInt(MODIFICATION_TIME_OFFSET, mt);
+    data().addUnsignedInt(MODIFICATION_TIME_OFFSET, mt);
   }
   
   /**
@@ -72,7 +72,7 @@ public class MvhdAtom extends LeafAtom {
    * @return the time-scale
    */
   public long getTimeScale() {
-    return data.getUnsignedInt(TIMESCALE_OFFSET);
+    return data().getUnsignedInt(TIMESCALE_OFFSET);
   }
   
   /**
@@ -80,7 +80,7 @@ public class MvhdAtom extends LeafAtom {
    * @param ts the new time-scale
    */
   public void setTimeScale(long ts) {
-    data.addUnsignedInt(TIMESCALE_OFFSET, ts);
+    data().addUnsignedInt(TIMESCALE_OFFSET, ts);
   }
   
   /**
@@ -89,7 +89,7 @@ public class MvhdAtom extends LeafAtom {
    * @return the duration
    */
   public long getDuration() {
-    return data.getUnsignedInt(DURATION_OFFSET);
+    return data().getUnsignedInt(DURATION_OFFSET);
   }
   
   /**
@@ -98,7 +98,7 @@ public class MvhdAtom extends LeafAtom {
    * @param duration the duration for the movie header
    */
   public void setDuration(long duration) {
-    data.addUnsignedInt(DURATION_OFFSET, duration);
+    data().addUnsignedInt(DURATION_OFFSET, duration);
   }
   
   /**
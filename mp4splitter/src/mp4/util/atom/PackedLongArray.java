@@ -0,0 +1,181 @@
+package mp4.util.atom;
+
+import java.util.Arrays;
+
+/**
+ * A compact array of long values that is filled once and then read.  The
+ * values are stored as variable length integers, so small values take
+ * fewer bytes.  A delta array stores the difference between each value
+ * and the one before it instead, which keeps increasing values such as
+ * file offsets small.
+ *
+ * The values are split in to blocks of 64.  The first value of each block
+ * and the position of the block are kept in a skip index, so a value is
+ * found by decoding at most one block.
+ */
+public class PackedLongArray {
+  // the number of values in a block, which must be a power of two
+  private static final int BLOCK_SHIFT = 6;
+  private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+  private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+  // true if the differences between values are stored
+  private final boolean delta;
+  // the encoded values, except the first value of each block
+  private byte[] bytes;
+  // the number of bytes used
+  private int used;
+  // the first value of each block
+  private long[] blockFirst;
+  // the position of each block's second value in the bytes
+  private int[] blockStart;
+  // the number of values
+  private int size;
+  // the last value added
+  private long last;
+
+  /**
+   * Create an empty array
+   * @param delta true to store the difference between adjacent values
+   * @param capacity the expected number of values
+   */
+  public PackedLongArray(boolean delta, int capacity) {
+    this.delta = delta;
+    int blocks = Math.max(1, (capacity + BLOCK_MASK) >>> BLOCK_SHIFT);
+    bytes = new byte[(int) Math.max(16, Math.min(2L * capacity, Integer.MAX_VALUE - 16))];
+    blockFirst = new long[blocks];
+    blockStart = new int[blocks];
+  }
+
+  /**
+   * Return the number of values
+   * @return the number of values
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Add a value to the end of the array
+   * @param val the value
+   */
+  public void add(long val) {
+    if ((size & BLOCK_MASK) == 0) {
+      int block = size >>> BLOCK_SHIFT;
+      if (block == blockFirst.length) {
+        blockFirst = Arrays.copyOf(blockFirst, block * 2);
+        blockStart = Arrays.copyOf(blockStart, block * 2);
+      }
+      blockFirst[block] = val;
+      blockStart[block] = used;
+    }
+    else if (delta) {
+      long diff = val - last;
+      // zigzag encoding, so a small negative difference is a small number
+      putVarint((diff << 1) ^ (diff >> 63));
+    }
+    else {
+      putVarint(val);
+    }
+    last = val;
+    size++;
+  }
+
+  /**
+   * Append a variable length integer, 7 bits per byte with the high bit
+   * set on all but the last byte
+   * @param v the value, treated as unsigned
+   */
+  private void putVarint(long v) {
+    if (used + 10 > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, used + 10));
+    }
+    while ((v & ~0x7fL) != 0) {
+      bytes[used++] = (byte) ((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    bytes[used++] = (byte) v;
+  }
+
+  /**
+   * Release the unused space at the end of the arrays.  The array can still
+   * be added to afterwards.
+   */
+  public void trim() {
+    int blocks = (size + BLOCK_MASK) >>> BLOCK_SHIFT;
+    bytes = Arrays.copyOf(bytes, used);
+    blockFirst = Arrays.copyOf(blockFirst, Math.max(1, blocks));
+    blockStart = Arrays.copyOf(blockStart, Math.max(1, blocks));
+  }
+
+  /**
+   * Return the value at the specified index
+   * @param index the index, 0 based
+   * @return the value
+   */
+  public long get(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " size " + size);
+    }
+    int block = index >>> BLOCK_SHIFT;
+    long val = blockFirst[block];
+    int pos = blockStart[block];
+    for (int n = index & BLOCK_MASK; n > 0; n--) {
+      long v = 0;
+      int shift = 0;
+      byte b;
+      do {
+        b = bytes[pos++];
+        v |= (long) (b & 0x7f) << shift;
+        shift += 7;
+      } while (b < 0);
+      val = delta ? val + ((v >>> 1) ^ -(v & 1)) : v;
+    }
+    return val;
+  }
+
+  /**
+   * Copy a range of values in to an array.  The values are decoded in
+   * order, which is faster than calling get() for each one.
+   * @param from the index of the first value
+   * @param dst the destination array
+   * @param len the number of values
+   */
+  public void get(int from, long[] dst, int len) {
+    if (from < 0 || len < 0 || from + len > size) {
+      throw new IndexOutOfBoundsException("Range " + from + "+" + len + " size " + size);
+    }
+    long val = 0;
+    int pos = 0;
+    int end = from + len;
+    // decode from the start of the block, and keep the values in range
+    for (int i = from & ~BLOCK_MASK; i < end; i++) {
+      if ((i & BLOCK_MASK) == 0) {
+        val = blockFirst[i >>> BLOCK_SHIFT];
+        pos = blockStart[i >>> BLOCK_SHIFT];
+      }
+      else {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = bytes[pos++];
+          v |= (long) (b & 0x7f) << shift;
+          shift += 7;
+        } while (b < 0);
+        val = delta ? val + ((v >>> 1) ^ -(v & 1)) : v;
+      }
+      if (i >= from) {
+        dst[i - from] = val;
+      }
+    }
+  }
+
+  /**
+   * Return the number of bytes used by the array's storage
+   * @return the approximate memory size in bytes
+   */
+  public long memorySize() {
+    return bytes.length + 8L * blockFirst.length + 4L * blockStart.length;
+  }
+}
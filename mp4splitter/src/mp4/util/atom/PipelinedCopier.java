@@ -0,0 +1,134 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Copy data between two channels using two threads.  A reader thread fills
+ * buffers from the pool while the calling thread writes the filled buffers,
+ * so reading the input overlaps with writing the output.  The number of
+ * buffers in flight is bounded by the depth of the pool.
+ */
+public class PipelinedCopier {
+  // marks the end of the filled buffers
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+  
+  // the reader threads are reused between copies
+  private static final ExecutorService readers = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "mdat-reader");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+  
+  // where the buffers come from
+  private final BufferPool pool;
+  
+  /**
+   * Create a copier that uses the specified buffer pool
+   * @param pool the buffers used for copying
+   */
+  public PipelinedCopier(BufferPool pool) {
+    this.pool = pool;
+  }
+  
+  /**
+   * Copy the specified number of bytes from the input to the output.
+   * @param in where the data comes from
+   * @param position the position of the data in the input
+   * @param out where the data goes
+   * @param count the number of bytes to copy
+   * @return the number of bytes copied
+   * @throws IOException if there is an error reading or writing the data
+   */
+  public long copy(final AtomSource in, final long position, WritableByteChannel out, final long count) throws IOException {
+    // one extra slot so the end marker never waits
+    final ArrayBlockingQueue<ByteBuffer> filled = new ArrayBlockingQueue<ByteBuffer>(pool.getDepth() + 1);
+    final AtomicBoolean aborted = new AtomicBoolean();
+    Future<Void> reader = readers.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        try {
+          long remaining = count;
+          while (remaining > 0 && !aborted.get()) {
+            ByteBuffer buf = pool.acquire();
+            try {
+              if (buf.capacity() > remaining) {
+                buf.limit((int) remaining);
+              }
+              while (buf.hasRemaining()) {
+                if (in.read(buf, position + (count - remaining) + buf.position()) < 0) {
+                  throw new EOFException("Unexpected end of file in mdat atom");
+                }
+              }
+            } catch (IOException e) {
+              pool.release(buf);
+              throw e;
+            }
+            buf.flip();
+            remaining -= buf.remaining();
+            filled.put(buf);
+          }
+        } finally {
+          filled.put(END);
+        }
+        return null;
+      }
+    });
+    
+    long written = 0;
+    try {
+      ByteBuffer buf;
+      while ((buf = filled.take()) != END) {
+        try {
+          while (buf.hasRemaining()) {
+            written += out.write(buf);
+          }
+        } finally {
+          pool.release(buf);
+        }
+      }
+      reader.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while copying mdat atom");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Unable to read mdat atom", e.getCause());
+    } finally {
+      if (!reader.isDone()) {
+        // the write failed, stop the reader and give back its buffers
+        aborted.set(true);
+        drain(filled);
+      }
+    }
+    return written;
+  }
+  
+  /**
+   * Release the filled buffers until the reader has finished.
+   * @param filled the queue of filled buffers
+   */
+  private void drain(ArrayBlockingQueue<ByteBuffer> filled) {
+    try {
+      ByteBuffer buf;
+      while ((buf = filled.take()) != END) {
+        pool.release(buf);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,412 @@
+package mp4.util.atom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Finds where the samples of a track are in the file.  The locator is
+ * built from the stsc, stsz and stco or co64 atoms of a sample table, and
+ * answers the chunk, file offset and size of a sample, and the sample at
+ * a file offset, with binary searches.
+ *
+ * The stsc runs are kept with the number of their first sample, so the
+ * chunk of a sample is found without walking the runs.  The sum of the
+ * sample sizes before each sample is computed the first time an offset
+ * is needed, unless all the samples are the same size.  The chunk offsets
+ * are read from the stco or co64 atom, so the locator stays correct when
+ * the offsets are fixed up.
+ *
+ * The sample and chunk numbers are 1 based.  A query that has no answer
+ * returns 0.
+ */
+public class SampleLocator {
+  /**
+   * A contiguous range of bytes in the file
+   */
+  public static class Span {
+    // the file offset of the first byte
+    public final long offset;
+    // the number of bytes
+    public final long length;
+
+    Span(long offset, long length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  // the sample size table
+  private final StszAtom stsz;
+  // the chunk offset table
+  private final ChunkOffsetAtom chunkOffsets;
+  // the number of samples
+  private final long numSamples;
+  // the number of chunks
+  private final long numChunks;
+  // the first chunk of each stsc run
+  private final long[] runFirstChunk;
+  // the samples per chunk of each stsc run
+  private final long[] runSamplesPerChunk;
+  // the first sample of each stsc run
+  private final long[] runFirstSample;
+  // the size of every sample, or 0 if the samples have different sizes
+  private final long sampleSize;
+  // sizeSums[i] is the total size of the first i samples, built the
+  // first time it's needed.  volatile so a shared locator can be read by
+  // many threads
+  private volatile long[] sizeSums;
+  // the chunk numbers sorted by offset, or null if the chunk offsets are
+  // in ascending order.  built the first time it's needed
+  private long[] chunkOrder;
+  // true if chunkOrder has been computed
+  private boolean ordered;
+
+  /**
+   * Create a locator for the samples in the sample table
+   * @param stbl the sample table
+   */
+  public SampleLocator(StblAtom stbl) {
+    this.stsz = stbl.getStsz();
+    this.chunkOffsets = stbl.getChunkOffsets();
+    this.numSamples = stsz.getNumEntries();
+    this.numChunks = chunkOffsets.getNumEntries();
+    this.sampleSize = stsz.getSampleSize();
+
+    StscAtom stsc = stbl.getStsc();
+    long entries = stsc.getNumEntries();
+    if (entries > Integer.MAX_VALUE) {
+      throw new AtomError("Unable to handle " + entries + " stsc entries");
+    }
+    int runs = (int) entries;
+    runFirstChunk = new long[runs];
+    runSamplesPerChunk = new long[runs];
+    runFirstSample = new long[runs];
+    long firstSample = 1;
+    for (int i = 0; i < runs; i++) {
+      runFirstChunk[i] = stsc.getFirstChunk(i);
+      runSamplesPerChunk[i] = stsc.getSamplesPerChunk(i);
+      if (i > 0) {
+        firstSample += (runFirstChunk[i] - runFirstChunk[i - 1]) * runSamplesPerChunk[i - 1];
+      }
+      runFirstSample[i] = firstSample;
+    }
+  }
+
+  /**
+   * Return the number of samples
+   * @return the number of samples
+   */
+  public long getNumSamples() {
+    return numSamples;
+  }
+
+  /**
+   * Return the number of chunks
+   * @return the number of chunks
+   */
+  public long getNumChunks() {
+    return numChunks;
+  }
+
+  /**
+   * Build the sums of the sample sizes and the chunk order, if they
+   * haven't been built, so a shared locator doesn't build them during a
+   * query.
+   * @return the estimated memory used by the locator in bytes
+   */
+  public long load() {
+    long size = 8L * (runFirstChunk.length + runSamplesPerChunk.length + runFirstSample.length);
+    if (sampleSize == 0) {
+      size += 8L * sizeSums().length;
+    }
+    long[] order = chunkOrder();
+    if (order != null) {
+      size += 8L * order.length;
+    }
+    return size;
+  }
+
+  /**
+   * Return the position of the last value in a sorted array that is less
+   * than or equal to the key
+   * @param values the values in ascending order
+   * @param key the key
+   * @return the position, which is 0 if all the values are larger
+   */
+  private static int floor(long[] values, long key) {
+    int lo = 0;
+    int hi = values.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (values[mid] <= key) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return Math.max(lo - 1, 0);
+  }
+
+  /**
+   * Return the chunk that contains the sample.  This gives the same answer
+   * as StscAtom.sampleToChunk().
+   * @param sampleNum the sample number
+   * @return the chunk number, or 0 if there aren't any stsc entries
+   */
+  public long getChunk(long sampleNum) {
+    if (runFirstSample.length == 0) {
+      return 0;
+    }
+    int r = floor(runFirstSample, sampleNum);
+    return (sampleNum - runFirstSample[r]) / runSamplesPerChunk[r] + runFirstChunk[r];
+  }
+
+  /**
+   * Return the first sample in the chunk
+   * @param chunk the chunk number
+   * @return the sample number, or 0 if there aren't any stsc entries
+   */
+  public long getFirstSample(long chunk) {
+    if (runFirstChunk.length == 0) {
+      return 0;
+    }
+    int r = floor(runFirstChunk, chunk);
+    return runFirstSample[r] + (chunk - runFirstChunk[r]) * runSamplesPerChunk[r];
+  }
+
+  /**
+   * Return the total size of the samples before the specified sample
+   * @param sampleNum the sample number
+   * @return the number of bytes in samples 1 to sampleNum - 1
+   */
+  private long sizeBefore(long sampleNum) {
+    if (sampleSize > 0) {
+      return (sampleNum - 1) * sampleSize;
+    }
+    return sizeSums()[(int) (sampleNum - 1)];
+  }
+
+  /**
+   * Return the sums of the sample sizes, computing them if needed
+   * @return the sums of the sample sizes
+   */
+  private long[] sizeSums() {
+    long[] sums = sizeSums;
+    if (sums == null) {
+      if (numSamples >= Integer.MAX_VALUE) {
+        throw new AtomError("Unable to handle " + numSamples + " samples");
+      }
+      sums = new long[(int) numSamples + 1];
+      for (int i = 0; i < numSamples; i++) {
+        sums[i + 1] = sums[i] + stsz.getTableSampleSize(i + 1);
+      }
+      sizeSums = sums;
+    }
+    return sums;
+  }
+
+  /**
+   * Return the size of the sample
+   * @param sampleNum the sample number
+   * @return the size of the sample in bytes
+   */
+  public long getSize(long sampleNum) {
+    if (sampleSize > 0) {
+      return sampleSize;
+    }
+    return stsz.getTableSampleSize(sampleNum);
+  }
+
+  /**
+   * Return the file offset of the sample
+   * @param sampleNum the sample number
+   * @return the file offset of the first byte of the sample
+   */
+  public long getOffset(long sampleNum) {
+    long chunk = getChunk(sampleNum);
+    return offsetInChunk(chunk, sampleNum);
+  }
+
+  /**
+   * Return the file offset of a sample in a known chunk
+   * @param chunk the chunk that contains the sample
+   * @param sampleNum the sample number
+   * @return the file offset of the sample
+   */
+  private long offsetInChunk(long chunk, long sampleNum) {
+    return chunkOffsets.getChunkOffset(chunk) + sizeBefore(sampleNum) - sizeBefore(getFirstSample(chunk));
+  }
+
+  /**
+   * Return the number of the last sample in the chunk
+   * @param chunk the chunk number
+   * @return the sample number
+   */
+  private long getLastSample(long chunk) {
+    if (chunk >= numChunks) {
+      return numSamples;
+    }
+    return Math.min(getFirstSample(chunk + 1) - 1, numSamples);
+  }
+
+  /**
+   * Return the chunk numbers in order of their offset, or null if the
+   * chunks are already in that order
+   * @return the chunk numbers sorted by offset
+   */
+  private synchronized long[] chunkOrder() {
+    if (!ordered) {
+      long prev = -1;
+      boolean ascending = true;
+      for (long c = 1; c <= numChunks && ascending; c++) {
+        long offset = chunkOffsets.getChunkOffset(c);
+        ascending = offset >= prev;
+        prev = offset;
+      }
+      if (!ascending) {
+        if (numChunks > Integer.MAX_VALUE) {
+          throw new AtomError("Unable to handle " + numChunks + " chunks");
+        }
+        long[] keys = new long[(int) numChunks];
+        for (int i = 0; i < keys.length; i++) {
+          keys[i] = i + 1;
+        }
+        sortByOffset(keys);
+        chunkOrder = keys;
+      }
+      ordered = true;
+    }
+    return chunkOrder;
+  }
+
+  /**
+   * Sort chunk numbers by their offset
+   * @param chunks the chunk numbers
+   */
+  private void sortByOffset(long[] chunks) {
+    Long[] boxed = new Long[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      boxed[i] = chunks[i];
+    }
+    Arrays.sort(boxed, new Comparator<Long>() {
+      public int compare(Long a, Long b) {
+        long oa = chunkOffsets.getChunkOffset(a);
+        long ob = chunkOffsets.getChunkOffset(b);
+        return oa < ob ? -1 : (oa == ob ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < chunks.length; i++) {
+      chunks[i] = boxed[i];
+    }
+  }
+
+  /**
+   * Return the chunk at a position in offset order
+   * @param order the chunk order, or null if it's ascending
+   * @param i the position, 0 based
+   * @return the chunk number
+   */
+  private static long chunkAt(long[] order, long i) {
+    return order == null ? i + 1 : order[(int) i];
+  }
+
+  /**
+   * Return the sample that contains the byte at the specified file offset
+   * @param offset the file offset
+   * @return the sample number, or 0 if the byte isn't in a sample
+   */
+  public long getSample(long offset) {
+    long[] order = chunkOrder();
+    // find the last chunk that starts at or before the offset
+    long lo = 0;
+    long hi = numChunks;
+    while (lo < hi) {
+      long mid = (lo + hi) >>> 1;
+      if (chunkOffsets.getChunkOffset(chunkAt(order, mid)) <= offset) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    if (lo == 0) {
+      return 0;
+    }
+    long chunk = chunkAt(order, lo - 1);
+    long first = getFirstSample(chunk);
+    long last = getLastSample(chunk);
+    if (first > last) {
+      return 0;
+    }
+    // the position of the byte from the start of the first sample
+    long pos = offset - chunkOffsets.getChunkOffset(chunk) + sizeBefore(first);
+    long sampleNum;
+    if (sampleSize > 0) {
+      sampleNum = pos / sampleSize + 1;
+    }
+    else {
+      long[] sums = sizeSums();
+      int s = (int) first;
+      int e = (int) last + 1;
+      while (s < e) {
+        int mid = (s + e) >>> 1;
+        if (sums[mid] <= pos) {
+          s = mid + 1;
+        }
+        else {
+          e = mid;
+        }
+      }
+      sampleNum = s;
+    }
+    return sampleNum <= last ? sampleNum : 0;
+  }
+
+  /**
+   * Return the byte ranges that hold the samples from first to last.
+   * Consecutive chunks that are next to each other in the file are
+   * merged in to one range.
+   * @param first the first sample number
+   * @param last the last sample number
+   * @return the byte ranges in sample order
+   */
+  public List<Span> getSpans(long first, long last) {
+    List<Span> spans = new ArrayList<Span>();
+    first = Math.max(first, 1);
+    last = Math.min(last, numSamples);
+    if (first > last) {
+      return spans;
+    }
+    long start = -1;
+    long end = -1;
+    for (long chunk = getChunk(first); chunk <= numChunks; chunk++) {
+      long from = Math.max(first, getFirstSample(chunk));
+      long to = Math.min(last, getLastSample(chunk));
+      if (from > to) {
+        break;
+      }
+      long offset = offsetInChunk(chunk, from);
+      long length = sizeBefore(to + 1) - sizeBefore(from);
+      if (offset == end) {
+        end += length;
+      }
+      else {
+        if (start >= 0) {
+          spans.add(new Span(start, end - start));
+        }
+        start = offset;
+        end = offset + length;
+      }
+      if (to == last) {
+        break;
+      }
+    }
+    if (start >= 0) {
+      spans.add(new Span(start, end - start));
+    }
+    return spans;
+  }
+}
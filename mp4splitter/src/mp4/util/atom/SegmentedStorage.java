@@ -0,0 +1,414 @@
+package mp4.util.atom;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Off-heap storage for a large byte stream, addressed with long offsets.
+ * The data is kept in a list of direct buffers, called segments.  Every
+ * segment but the last is SEGMENT_SIZE bytes.  The last one is only as
+ * large as the storage needs, so a small stream doesn't use a whole
+ * segment, and it doubles in size until it's full.  The storage grows by
+ * adding segments, so only the data of a partial last segment is copied,
+ * and it may hold more than 2GB.
+ *
+ * The segments are given back with release().  A few released full
+ * segments are kept for the next storage, and the rest are left for the
+ * garbage collector.  The storage must not be used after it has been
+ * released.
+ */
+public class SegmentedStorage {
+  // the size of each segment, which must be a power of two
+  public static final int SEGMENT_SIZE = 1 << 24;
+  private static final int SEGMENT_SHIFT = 24;
+  private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+  // the number of released segments kept for reuse
+  private static final int MAX_FREE = 4;
+  // the size of the pieces used to copy the data
+  private static final int COPY_SIZE = 64 * 1024;
+
+  // the released full segments, which are reused before allocating a new one
+  private static final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+
+  // the segments, in order.  only the first count are allocated
+  private ByteBuffer[] segments;
+  // the number of segments
+  private int count;
+
+  /**
+   * Create storage with room for the specified number of bytes.  The bytes
+   * are all zero.
+   * @param size the initial capacity in bytes
+   */
+  public SegmentedStorage(long size) {
+    segments = new ByteBuffer[Math.max(1, segmentCount(size))];
+    ensureCapacity(size);
+  }
+
+  /**
+   * Return the number of segments needed to hold the specified size
+   * @param size the size in bytes
+   * @return the number of segments
+   */
+  private static int segmentCount(long size) {
+    long n = (size + SEGMENT_MASK) >>> SEGMENT_SHIFT;
+    if (n > Integer.MAX_VALUE) {
+      throw new AtomError("Unable to handle data size " + size);
+    }
+    return (int) n;
+  }
+
+  /**
+   * Return the number of bytes the storage can hold without growing
+   * @return the capacity in bytes
+   */
+  public long capacity() {
+    if (count == 0) {
+      return 0;
+    }
+    return ((long) (count - 1) << SEGMENT_SHIFT) + segments[count - 1].capacity();
+  }
+
+  /**
+   * Grow the storage until it can hold the specified number of bytes.  A
+   * partial last segment is replaced by a larger one, and segments are
+   * added after it.  The data in the full segments stays where it is.
+   * @param size the number of bytes needed
+   */
+  public void ensureCapacity(long size) {
+    if (size <= capacity()) {
+      return;
+    }
+    int n = segmentCount(size);
+    if (n > segments.length) {
+      ByteBuffer[] newsegments = new ByteBuffer[Math.max(n, segments.length * 2)];
+      System.arraycopy(segments, 0, newsegments, 0, count);
+      segments = newsegments;
+    }
+    if (count > 0 && segments[count - 1].capacity() < SEGMENT_SIZE) {
+      ByteBuffer last = segments[count - 1];
+      int newsize = Math.max(lastSegmentSize(size, count - 1), Math.min(last.capacity() * 2, SEGMENT_SIZE));
+      ByteBuffer seg = allocateSegment(newsize);
+      seg.put(last.duplicate().clear());
+      seg.clear();
+      segments[count - 1] = seg;
+    }
+    while (count < n) {
+      segments[count] = allocateSegment(lastSegmentSize(size, count));
+      count++;
+    }
+  }
+
+  /**
+   * Return the size of a segment that holds the bytes of the specified
+   * size that fall in it
+   * @param size the number of bytes in the storage
+   * @param index the index of the segment
+   * @return the segment size, at most SEGMENT_SIZE
+   */
+  private static int lastSegmentSize(long size, int index) {
+    return (int) Math.min(SEGMENT_SIZE, size - ((long) index << SEGMENT_SHIFT));
+  }
+
+  /**
+   * Return a zeroed segment.  A full segment reuses a released segment if
+   * there is one.
+   * @param size the size of the segment
+   * @return the segment
+   */
+  private static ByteBuffer allocateSegment(int size) {
+    ByteBuffer seg = null;
+    if (size == SEGMENT_SIZE) {
+      synchronized (free) {
+        seg = free.poll();
+      }
+    }
+    if (seg == null) {
+      return ByteBuffer.allocateDirect(size);
+    }
+    byte[] zero = new byte[COPY_SIZE];
+    seg.clear();
+    while (seg.hasRemaining()) {
+      seg.put(zero);
+    }
+    return seg;
+  }
+
+  /**
+   * Give back the segments.  The storage must not be used afterwards.
+   */
+  public void release() {
+    synchronized (free) {
+      for (int i = 0; i < count; i++) {
+        if (free.size() < MAX_FREE && segments[i].capacity() == SEGMENT_SIZE) {
+          free.push(segments[i]);
+        }
+      }
+    }
+    segments = null;
+    count = 0;
+  }
+
+  /**
+   * Return the byte at the specified offset
+   * @param off the offset
+   * @return the byte value
+   */
+  public byte get(long off) {
+    return segments[(int) (off >>> SEGMENT_SHIFT)].get((int) off & SEGMENT_MASK);
+  }
+
+  /**
+   * Set the byte at the specified offset
+   * @param off the offset
+   * @param b the byte value
+   */
+  public void put(long off, byte b) {
+    segments[(int) (off >>> SEGMENT_SHIFT)].put((int) off & SEGMENT_MASK, b);
+  }
+
+  /**
+   * Return the big-endian 16-bit value at the specified offset
+   * @param off the offset
+   * @return the short value
+   */
+  public short getShort(long off) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 2) {
+      return segments[(int) (off >>> SEGMENT_SHIFT)].getShort(pos);
+    }
+    return (short) (((get(off) & 0xff) << 8) | (get(off + 1) & 0xff));
+  }
+
+  /**
+   * Set the big-endian 16-bit value at the specified offset
+   * @param off the offset
+   * @param val the value
+   */
+  public void putShort(long off, short val) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 2) {
+      segments[(int) (off >>> SEGMENT_SHIFT)].putShort(pos, val);
+      return;
+    }
+    put(off, (byte) (val >> 8));
+    put(off + 1, (byte) val);
+  }
+
+  /**
+   * Return the big-endian 32-bit value at the specified offset
+   * @param off the offset
+   * @return the int value
+   */
+  public int getInt(long off) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 4) {
+      return segments[(int) (off >>> SEGMENT_SHIFT)].getInt(pos);
+    }
+    return ((getShort(off) & 0xffff) << 16) | (getShort(off + 2) & 0xffff);
+  }
+
+  /**
+   * Set the big-endian 32-bit value at the specified offset
+   * @param off the offset
+   * @param val the value
+   */
+  public void putInt(long off, int val) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 4) {
+      segments[(int) (off >>> SEGMENT_SHIFT)].putInt(pos, val);
+      return;
+    }
+    putShort(off, (short) (val >> 16));
+    putShort(off + 2, (short) val);
+  }
+
+  /**
+   * Return the big-endian 64-bit value at the specified offset
+   * @param off the offset
+   * @return the long value
+   */
+  public long getLong(long off) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 8) {
+      return segments[(int) (off >>> SEGMENT_SHIFT)].getLong(pos);
+    }
+    return ((long) getInt(off) << 32) | (getInt(off + 4) & 0xffffffffL);
+  }
+
+  /**
+   * Set the big-endian 64-bit value at the specified offset
+   * @param off the offset
+   * @param val the value
+   */
+  public void putLong(long off, long val) {
+    int pos = (int) off & SEGMENT_MASK;
+    if (pos <= SEGMENT_SIZE - 8) {
+      segments[(int) (off >>> SEGMENT_SHIFT)].putLong(pos, val);
+      return;
+    }
+    putInt(off, (int) (val >> 32));
+    putInt(off + 4, (int) val);
+  }
+
+  /**
+   * Copy bytes from the storage in to an array
+   * @param off the offset of the first byte in the storage
+   * @param b the destination array
+   * @param boff the offset in the array
+   * @param len the number of bytes
+   */
+  public void get(long off, byte[] b, int boff, int len) {
+    while (len > 0) {
+      int pos = (int) off & SEGMENT_MASK;
+      int n = Math.min(len, SEGMENT_SIZE - pos);
+      segments[(int) (off >>> SEGMENT_SHIFT)].get(pos, b, boff, n);
+      off += n;
+      boff += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Copy bytes from an array in to the storage
+   * @param off the offset of the first byte in the storage
+   * @param b the source array
+   * @param boff the offset in the array
+   * @param len the number of bytes
+   */
+  public void put(long off, byte[] b, int boff, int len) {
+    while (len > 0) {
+      int pos = (int) off & SEGMENT_MASK;
+      int n = Math.min(len, SEGMENT_SIZE - pos);
+      segments[(int) (off >>> SEGMENT_SHIFT)].put(pos, b, boff, n);
+      off += n;
+      boff += n;
+      len -= n;
+    }
+  }
+
+  /**
+   * Return a copy of the first bytes of the storage, in new storage
+   * @param len the number of bytes to copy
+   * @return the copy
+   */
+  public SegmentedStorage copy(long len) {
+    SegmentedStorage copy = new SegmentedStorage(len);
+    for (int i = 0; i < segmentCount(len); i++) {
+      ByteBuffer src = segments[i].duplicate();
+      src.clear().limit((int) Math.min(SEGMENT_SIZE, len - ((long) i << SEGMENT_SHIFT)));
+      copy.segments[i].clear();
+      copy.segments[i].put(src);
+    }
+    return copy;
+  }
+
+  /**
+   * Add a value to each unsigned 32-bit word in the specified range.  The
+   * words are changed a segment at a time when they don't cross a segment.
+   * @param from the offset of the first word
+   * @param to the offset after the last word
+   * @param val the value added to each word
+   * @throws AtomError if a word no longer fits in 32 bits
+   */
+  public void rebaseInts(long from, long to, long val) {
+    if ((from & 3) != 0) {
+      for (long off = from; off < to; off += 4) {
+        long v = (getInt(off) & 0xffffffffL) + val;
+        if ((v >>> 32) != 0) {
+          throw new AtomError("Table entry does not fit in 32 bits after adding " + val);
+        }
+        putInt(off, (int) v);
+      }
+      return;
+    }
+    while (from < to) {
+      int pos = (int) from & SEGMENT_MASK;
+      int n = (int) Math.min(to - from, SEGMENT_SIZE - pos);
+      TableTransform.rebaseInts(segments[(int) (from >>> SEGMENT_SHIFT)], pos, pos + n, val);
+      from += n;
+    }
+  }
+
+  /**
+   * Add a value to each 64-bit word in the specified range.
+   * @param from the offset of the first word
+   * @param to the offset after the last word
+   * @param val the value added to each word
+   * @throws AtomError if a word becomes negative
+   */
+  public void rebaseLongs(long from, long to, long val) {
+    if ((from & 7) != 0) {
+      for (long off = from; off < to; off += 8) {
+        long v = getLong(off) + val;
+        if (v < 0) {
+          throw new AtomError("Table entry does not fit in 64 bits after adding " + val);
+        }
+        putLong(off, v);
+      }
+      return;
+    }
+    while (from < to) {
+      int pos = (int) from & SEGMENT_MASK;
+      int n = (int) Math.min(to - from, SEGMENT_SIZE - pos);
+      TableTransform.rebaseLongs(segments[(int) (from >>> SEGMENT_SHIFT)], pos, pos + n, val);
+      from += n;
+    }
+  }
+
+  /**
+   * Read bytes from an atom source in to the storage, starting at offset 0
+   * @param source the atom source
+   * @param pos the position in the source
+   * @param len the number of bytes to read
+   * @throws IOException if there is an error reading the source
+   */
+  public void read(AtomSource source, long pos, long len) throws IOException {
+    ensureCapacity(len);
+    for (long off = 0; off < len; ) {
+      ByteBuffer seg = segments[(int) (off >>> SEGMENT_SHIFT)].duplicate();
+      seg.clear().position((int) off & SEGMENT_MASK);
+      seg.limit((int) Math.min(SEGMENT_SIZE, seg.position() + (len - off)));
+      int n = source.read(seg, pos + off);
+      if (n < 0) {
+        throw new EOFException("Unexpected end of file at " + (pos + off));
+      }
+      off += n;
+    }
+  }
+
+  /**
+   * Add buffers with the first bytes of the storage to a serializer.  The
+   * buffers share the segments.
+   * @param out the serializer
+   * @param len the number of bytes
+   */
+  void addBuffers(AtomSerializer out, long len) {
+    for (int i = 0; len > 0; i++) {
+      int n = (int) Math.min(len, SEGMENT_SIZE);
+      out.addBuffer(segments[i].slice(0, n));
+      len -= n;
+    }
+  }
+
+  /**
+   * Write bytes from the storage to the specified location.
+   * @param out where the data goes
+   * @param off the offset of the first byte
+   * @param len the number of bytes
+   * @throws IOException if there is an error writing the data
+   */
+  public void write(DataOutput out, long off, long len) throws IOException {
+    byte[] b = new byte[(int) Math.min(len, COPY_SIZE)];
+    while (len > 0) {
+      int n = (int) Math.min(len, b.length);
+      get(off, b, 0, n);
+      out.write(b, 0, n);
+      off += n;
+      len -= n;
+    }
+  }
+}
@@ -9,7 +9,7 @@ package mp4.util.atom;
 public class SmhdAtom extends LeafAtom implements IMhdAtom {
   
   public SmhdAtom() {
-    super(new byte[]{'s','m','h','d'});
+    super(AtomType.SMHD);
   }
   
   /**
@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * The sample table container atom contains the atoms with the information
@@ -21,19 +20,21 @@ public class StblAtom extends ContainerAtom {
   private StszAtom stsz;
   // sample-to-chunk atom
   private StscAtom stsc;
-  // chunk offset atom
-  private StcoAtom stco;
+  // chunk offset atom, either stco or co64
+  private ChunkOffsetAtom chunkOffsets;
   // (composition) time-to-sample atom 
   private CttsAtom ctts;
   // sync sample atom
   private StssAtom stss;
   // TODO: shadow sync atom
+  // finds the samples in the file, built the first time it's needed
+  private SampleLocator locator;
   
   /**
    * Constructor for the sample table atom
    */
   public StblAtom() {
-    super(new byte[]{'s','t','b','l'});
+    super(AtomType.STBL);
   }
   
   /**
@@ -46,7 +47,12 @@ public class StblAtom extends ContainerAtom {
     stts = new SttsAtom(old.stts);
     stsz = new StszAtom(old.stsz);
     stsc = new StscAtom(old.stsc);
-    stco = new StcoAtom(old.stco);
+    if (old.chunkOffsets instanceof Co64Atom) {
+      chunkOffsets = new Co64Atom((Co64Atom) old.chunkOffsets);
+    }
+    else {
+      chunkOffsets = new StcoAtom((StcoAtom) old.chunkOffsets);
+    }
     if (old.ctts != null) {
       ctts = new CttsAtom(old.ctts);
     }
@@ -65,8 +71,8 @@ public class StblAtom extends ContainerAtom {
   public StscAtom getStsc() {
     return stsc;
   }
-  public StcoAtom getStco() {
-    return stco;
+  public ChunkOffsetAtom getChunkOffsets() {
+    return chunkOffsets;
   }
   public CttsAtom getCtts() {
     return ctts;
@@ -75,8 +81,33 @@ public class StblAtom extends ContainerAtom {
     return stss;
   }
   
+  /**
+   * Return the index of the sync samples.  When there isn't an stss atom,
+   * every sample is a sync sample and the index is dense.
+   * @return the sync sample index
+   */
+  public SyncSampleIndex getSyncSampleIndex() {
+    if (stss != null) {
+      return stss.getIndex();
+    }
+    return SyncSampleIndex.dense(stsz.getNumEntries());
+  }
+  
+  /**
+   * Return the locator for the samples in the track.  The locator is
+   * built once and kept until a child is added.
+   * @return the sample locator
+   */
+  public SampleLocator getSampleLocator() {
+    if (locator == null) {
+      locator = new SampleLocator(this);
+    }
+    return locator;
+  }
+  
   @Override
   public void addChild(Atom child) {
+    locator = null;
     if (child instanceof StsdAtom) {
       stsd = (StsdAtom) child;
     }
@@ -89,8 +120,8 @@ public class StblAtom extends ContainerAtom {
     else if (child instanceof StscAtom) {
       stsc = (StscAtom) child;
     }
-    else if (child instanceof StcoAtom) {
-      stco = (StcoAtom) child;
+    else if (child instanceof ChunkOffsetAtom) {
+      chunkOffsets = (ChunkOffsetAtom) child;
     }
     else if (child instanceof CttsAtom) {
       ctts = (CttsAtom) child;
@@ -98,23 +129,22 @@ public class StblAtom extends ContainerAtom {
     else if (child instanceof StssAtom) {
       stss = (StssAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to stbl");
     }
   }
   
   /**
-   * Compute the size for the stbl container atom.
+   * Return the key frame where a cut at the specified time starts, which
+   * is the last sync sample at or before the sample at that time.
+   * @param time the time normalized to the track time
+   * @return the key frame
    */
-  protected void recomputeSize() {
-    long newSize = stsd.size() + stts.size() + stsz.size() + stsc.size() + stco.size();
-    if (ctts != null) {
-      newSize += ctts.size();
-    }
-    if (stss != null) {
-      newSize += stss.size();
-    }
-    setSize(ATOM_HEADER_SIZE + newSize);
+  public long findKeyFrame(long time) {
+    return getSyncSampleIndex().previous(getStts().timeToSample(time));
   }
   
   /**
@@ -123,17 +153,13 @@ public class StblAtom extends ContainerAtom {
    * @return the new stbl atom that has been cut
    */
   public StblAtom cut(long time) {
-    long sampleNum = getStts().timeToSample(time);
-    long keyFrame = sampleNum;
-    if (getStss() != null) {
-      keyFrame = getStss().getKeyFrame(sampleNum);
-    }
-    System.out.println("\tDBG: sampleNum " + sampleNum + " sync frame " + keyFrame);
+    long keyFrame = findKeyFrame(time);
+    System.out.println("\tDBG: sync frame " + keyFrame);
     
-    long chunk = getStsc().sampleToChunk(keyFrame);
+    long chunk = getSampleLocator().getChunk(keyFrame);
     System.out.println("\tDBG: chunk " + chunk);
     
-    long offset = getStco().getChunkOffset(chunk);
+    long offset = getChunkOffsets().getChunkOffset(chunk);
     System.out.println("\tDBG: offset " + offset);
     
     StblAtom cutStbl = new StblAtom();
@@ -141,41 +167,83 @@ public class StblAtom extends ContainerAtom {
     cutStbl.stts = stts.cut(keyFrame);
     cutStbl.stsz = stsz.cut(keyFrame);
     cutStbl.stsc = stsc.cut(keyFrame);
-    cutStbl.stco = stco.cut(chunk);
+    cutStbl.chunkOffsets = chunkOffsets.cut(chunk);
     if (ctts != null) {
       cutStbl.ctts = ctts.cut(keyFrame);
     }
     if (stss != null) {
       cutStbl.stss = stss.cut(keyFrame);
     }
-    // fix the size of the container atom
-    cutStbl.recomputeSize();
+    cutStbl.copyUnknownChildren(this);
     return cutStbl;
   }
   
+  /**
+   * Trim the samples that start at or after the specified time, which ends
+   * a cut.  The tables are changed in place, so this is used on a sample
+   * table that was created by cut().  At least one sample is kept.
+   * @param time the time normalized to the track time
+   * @return the number of samples kept
+   */
+  public long trim(long time) {
+    long numSamples = stsz.getNumEntries();
+    if (time < stts.computeDuration()) {
+      long sampleNum = stts.timeToSample(time);
+      if (stts.sampleToTime(sampleNum) >= time) {
+        sampleNum--;
+      }
+      numSamples = Math.max(sampleNum, 1);
+    }
+    System.out.println("\tDBG: trim to " + numSamples + " samples");
+    
+    SampleLocator samples = getSampleLocator();
+    long lastChunk = samples.getChunk(numSamples);
+    long samplesInLastChunk = numSamples - samples.getFirstSample(lastChunk) + 1;
+    
+    stts.trim(numSamples);
+    stsz.trim(numSamples);
+    stsc.trim(lastChunk, samplesInLastChunk);
+    chunkOffsets.trim(lastChunk);
+    if (ctts != null) {
+      ctts.trim(numSamples);
+    }
+    if (stss != null) {
+      stss.trim(numSamples);
+    }
+    locator = null;
+    return numSamples;
+  }
+  
+  /**
+   * Return the position in the file after the last sample of the track
+   * @return the offset after the last byte of data
+   */
+  public long lastDataByteOffset() {
+    long lastSample = stsz.getNumEntries();
+    if (lastSample == 0) {
+      return 0;
+    }
+    SampleLocator samples = getSampleLocator();
+    return samples.getOffset(lastSample) + samples.getSize(lastSample);
+  }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
   }
 
-  /**
-   * Write the stbl atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    stsd.writeData(out);
-    stts.writeData(out);
-    stsz.writeData(out);
-    stsc.writeData(out);
-    stco.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add(stsd);
+    children.add(stts);
+    children.add(stsz);
+    children.add(stsc);
+    children.add(chunkOffsets);
     if (ctts != null) {
-      ctts.writeData(out);
+      children.add(ctts);
     }
     if (stss != null) {
-      stss.writeData(out);
+      children.add(stss);
     }
   }
 }
\ No newline at end of file
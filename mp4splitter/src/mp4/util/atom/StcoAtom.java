@@ -6,16 +6,14 @@ package mp4.util.atom;
 /**
  * The chunk offset table.
  */
-public class StcoAtom extends LeafAtom {
-  private static final int ENTRIES_OFFSET = 4;
-  private static final int TABLE_OFFSET = 8;
+public class StcoAtom extends ChunkOffsetAtom {
   private static final int ENTRY_SIZE = 4;
   
   /**
    * Construct an empty atom
    */
   public StcoAtom() {
-    super(new byte[]{'s','t','c','o'});
+    super(AtomType.STCO);
   }
   
   /**
@@ -26,29 +24,14 @@ public class StcoAtom extends LeafAtom {
     super(old);
   }
 
-  /**
-   * Allocate space for the atom's data.
-   */
   @Override
-  public void allocateData(long numEntries) {
-    long size = TABLE_OFFSET + (numEntries * ENTRY_SIZE);
-    super.allocateData(size);
-  }
-
-  /**
-   * Return the number of entries in the stco table
-   * @return the number of entries
-   */
-  public long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+  protected int getEntrySize() {
+    return ENTRY_SIZE;
   }
   
-  /**
-   * Set the number of entries in the stco table
-   * @param numEntries the number of entries
-   */
-  public void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+  @Override
+  protected ChunkOffsetAtom newAtom() {
+    return new StcoAtom();
   }
   
   /**
@@ -57,11 +40,9 @@ public class StcoAtom extends LeafAtom {
    * @param chunk the chunk number
    * @return the ofset for the chunk
    */
+  @Override
   public long getChunkOffset(long chunk) {
-    if (chunk > Integer.MAX_VALUE) {
-      return 0;
-    }
-    return data.getUnsignedInt(TABLE_OFFSET + ((int)(chunk - 1) * ENTRY_SIZE));
+    return data().getUnsignedInt(TABLE_OFFSET + ((chunk - 1) * ENTRY_SIZE));
   }
   
   /**
@@ -69,29 +50,9 @@ public class StcoAtom extends LeafAtom {
    * @param index the table index number
    * @param chunk the chunk offset
    */
-  public void setChunkOffset(int index, long chunk) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE), chunk);
-  }
-  
-  /**
-   * Split the atom at the specified chunk and fill the byte stream with
-   * the contents of the new atom.  Any entry prior to the specified 
-   * chunk is discarded, and the new table is created with the entries
-   * subsequent to the specified chunk.
-   * @param bs the byte stream where the new data is added
-   * @param chunkNum the chunk where the atom should be split 
-   */
-  public StcoAtom cut(long chunkNum) {    
-    // create the new table
-    StcoAtom cutStco = new StcoAtom();
-    long numEntries = getNumEntries();
-    cutStco.allocateData(numEntries - chunkNum + 1);
-    cutStco.setNumEntries(numEntries - chunkNum + 1);
-    int entryNumber = 0;
-    for (long i = chunkNum; i <= numEntries; i++, entryNumber++) {
-      cutStco.setChunkOffset(entryNumber, getChunkOffset(i));
-    }
-    return cutStco;
+  @Override
+  public void setChunkOffset(long index, long chunk) {
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE), chunk);
   }
   
   /**
@@ -100,10 +61,9 @@ public class StcoAtom extends LeafAtom {
    * changes, e.g., when the mp4 file is cut.
    * @param delta the amount to update each offset
    */
+  @Override
   public void fixupOffsets(long delta) {
-    for (int i = 0; i < getNumEntries(); i++) {
-      setChunkOffset(i, getChunkOffset(i+1) + delta);
-    }
+    data().rebase(TABLE_OFFSET, TABLE_OFFSET + getNumEntries() * ENTRY_SIZE, delta);
   }
 
   @Override
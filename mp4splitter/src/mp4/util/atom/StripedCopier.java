@@ -0,0 +1,170 @@
+package mp4.util.atom;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copy a range of the input to a range of an output file using several
+ * threads.  The range is split in to stripes, and each thread takes the
+ * next stripe, reads it with positional reads and writes it with
+ * positional writes.  The stripes are written in any order, so the output
+ * file is extended to its final size before the copy starts.  Each thread
+ * uses one buffer from the pool at a time.
+ */
+public class StripedCopier {
+  // the number of buffers in each stripe
+  public static final int STRIPE_BUFFERS = 16;
+
+  // the copy threads are reused between copies
+  private static final ExecutorService writers = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "mdat-writer");
+      t.setDaemon(true);
+      return t;
+    }
+  });
+
+  // where the buffers come from
+  private final BufferPool pool;
+  // the number of copy threads
+  private final int threads;
+
+  /**
+   * Create a copier
+   * @param pool the buffers used for copying
+   * @param threads the number of copy threads
+   */
+  public StripedCopier(BufferPool pool, int threads) {
+    this.pool = pool;
+    this.threads = threads;
+  }
+
+  /**
+   * Copy the input range [srcPos, srcPos + count) to the output range
+   * [dstPos, dstPos + count).  The output channel's position isn't used or
+   * changed.
+   * @param in where the data comes from
+   * @param srcPos the position of the data in the input
+   * @param out the output file
+   * @param dstPos the position for the data in the output file
+   * @param count the number of bytes to copy
+   * @return the number of bytes copied
+   * @throws IOException if there is an error reading or writing the data
+   */
+  public long copy(final AtomSource in, final long srcPos, final FileChannel out, final long dstPos, final long count) throws IOException {
+    if (count == 0) {
+      return 0;
+    }
+    // extend the file, so the stripes don't each change its size
+    ByteBuffer last = ByteBuffer.allocate(1);
+    while (last.hasRemaining()) {
+      out.write(last, dstPos + count - 1);
+    }
+
+    final long stripeSize = (long) pool.getBufferSize() * STRIPE_BUFFERS;
+    final long numStripes = (count + stripeSize - 1) / stripeSize;
+    final AtomicLong nextStripe = new AtomicLong();
+    final AtomicBoolean aborted = new AtomicBoolean();
+    List<Future<Long>> workers = new ArrayList<Future<Long>>();
+    for (int i = 0; i < Math.min(threads, numStripes); i++) {
+      workers.add(writers.submit(new Callable<Long>() {
+        public Long call() throws Exception {
+          long copied = 0;
+          long stripe;
+          while (!aborted.get() && (stripe = nextStripe.getAndIncrement()) < numStripes) {
+            long offset = stripe * stripeSize;
+            copied += copyStripe(in, srcPos + offset, out, dstPos + offset,
+                Math.min(stripeSize, count - offset), aborted);
+          }
+          return copied;
+        }
+      }));
+    }
+
+    // the workers write to the caller's file, so they are always waited
+    // for, even if this thread is interrupted or one of them fails
+    long copied = 0;
+    IOException error = null;
+    boolean interrupted = false;
+    for (Future<Long> worker : workers) {
+      while (true) {
+        try {
+          copied += worker.get();
+          break;
+        } catch (InterruptedException e) {
+          // stop the workers, and keep waiting for them
+          interrupted = true;
+          aborted.set(true);
+        } catch (ExecutionException e) {
+          // stop the other threads, but wait for them before returning
+          aborted.set(true);
+          if (error == null) {
+            error = e.getCause() instanceof IOException ? (IOException) e.getCause()
+                : new IOException("Unable to copy mdat atom", e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while copying mdat atom");
+    }
+    if (error != null) {
+      throw error;
+    }
+    return copied;
+  }
+
+  /**
+   * Copy one stripe, a buffer at a time
+   * @param in where the data comes from
+   * @param srcPos the position of the stripe in the input
+   * @param out the output file
+   * @param dstPos the position of the stripe in the output
+   * @param count the size of the stripe
+   * @param aborted set when another thread has failed
+   * @return the number of bytes copied
+   * @throws IOException if there is an error reading or writing the data
+   * @throws InterruptedException if interrupted while waiting for a buffer
+   */
+  private long copyStripe(AtomSource in, long srcPos, FileChannel out, long dstPos, long count, AtomicBoolean aborted)
+      throws IOException, InterruptedException {
+    ByteBuffer buf = pool.acquire();
+    try {
+      long done = 0;
+      while (done < count && !aborted.get()) {
+        buf.clear();
+        if (buf.capacity() > count - done) {
+          buf.limit((int) (count - done));
+        }
+        while (buf.hasRemaining()) {
+          if (in.read(buf, srcPos + done + buf.position()) < 0) {
+            throw new EOFException("Unexpected end of file in mdat atom");
+          }
+        }
+        buf.flip();
+        while (buf.hasRemaining()) {
+          out.write(buf, dstPos + done + buf.position());
+        }
+        done += buf.limit();
+      }
+      return done;
+    } finally {
+      pool.release(buf);
+    }
+  }
+}
@@ -20,7 +20,7 @@ public class StscAtom extends LeafAtom {
    * Constructor for the stsc atom
    */
   public StscAtom() {
-    super(new byte[]{'s','t','s','c'});
+    super(AtomType.STSC);
   }
   
   /**
@@ -47,7 +47,7 @@ public class StscAtom extends LeafAtom {
    * @return the number of entries in the table
    */
   public long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+    return data().getUnsignedInt(ENTRIES_OFFSET);
   }
   
   /**
@@ -55,7 +55,7 @@ public class StscAtom extends LeafAtom {
    * @param numEntries the number of entries
    */
   public void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
   }
   
   /**
@@ -64,7 +64,7 @@ public class StscAtom extends LeafAtom {
    * @return the first chunk value for the specified entry
    */
   public long getFirstChunk(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + FIRST_CHUNK);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + FIRST_CHUNK);
   }
   
   /**
@@ -73,7 +73,7 @@ public class StscAtom extends LeafAtom {
    * @param chunk the chunk value for the specified entry
    */
   public void setFirstChunk(int index, long chunk) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + FIRST_CHUNK, chunk);
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + FIRST_CHUNK, chunk);
   }
   
   /**
@@ -82,7 +82,7 @@ public class StscAtom extends LeafAtom {
    * @return the samples per chunk value for the specified entry
    */
   public long getSamplesPerChunk(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLES_PER_CHUNK);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLES_PER_CHUNK);
   }
   
   /**
@@ -91,7 +91,7 @@ public class StscAtom extends LeafAtom {
    * @param spc the samples per chunk value for the specified entry
    */
   public void setSamplesPerChunk(int index, long spc) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLES_PER_CHUNK, spc);
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLES_PER_CHUNK, spc);
   }
   
   /**
@@ -100,7 +100,7 @@ public class StscAtom extends LeafAtom {
    * @return the description id for the specified entry
    */
   public long getDescriptionId(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + DESCRIPTION_ID);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + DESCRIPTION_ID);
   }
   
   /**
@@ -109,7 +109,7 @@ public class StscAtom extends LeafAtom {
    * @param id the description id for the specified entry
    */
   public void setDescriptionId(int index, long id) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + DESCRIPTION_ID, id);
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + DESCRIPTION_ID, id);
   }
   
   /**
@@ -196,6 +196,35 @@ public class StscAtom extends LeafAtom {
     return cutStsc;
   }
   
+  /**
+   * Trim the table after the specified chunk.  The last chunk may keep
+   * fewer samples than it had, which needs a new entry unless the chunk
+   * already starts an entry.  The atom is changed in place.
+   * @param lastChunk the last chunk that is kept
+   * @param samplesInLastChunk the number of samples kept in the last chunk
+   */
+  public void trim(long lastChunk, long samplesInLastChunk) {
+    long numEntries = getNumEntries();
+    int i = 0;
+    while (i + 1 < numEntries && getFirstChunk(i + 1) <= lastChunk) {
+      i++;
+    }
+    long descriptionId = getDescriptionId(i);
+    boolean split = getSamplesPerChunk(i) != samplesInLastChunk && getFirstChunk(i) != lastChunk;
+    ByteStream trimmed = truncatedData(TABLE_OFFSET, TABLE_OFFSET + (i + 1L) * ENTRY_SIZE);
+    if (split) {
+      // the last chunk gets its own entry
+      trimmed.addUnsignedInt(lastChunk);
+      trimmed.addUnsignedInt(samplesInLastChunk);
+      trimmed.addUnsignedInt(descriptionId);
+    }
+    setData(trimmed);
+    setNumEntries(split ? i + 2 : i + 1);
+    if (!split) {
+      setSamplesPerChunk(i, samplesInLastChunk);
+    }
+  }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
@@ -40,7 +40,7 @@ public class StsdAtom extends LeafAtom {
    * Constructor that creates an empty stsd atom.
    */
   public StsdAtom() {
-    super(new byte[]{'s','t','s','d'});
+    super(AtomType.STSD);
   }
   
   /**
@@ -65,7 +65,7 @@ public class StsdAtom extends LeafAtom {
    * @return the number of entries in the stsd atom
    */
   public long getNumEntries() {
-    return data.getUnsignedInt(ENTRY_OFFSET);
+    return data().getUnsignedInt(ENTRY_OFFSET);
   }
   
   /**
@@ -73,7 +73,7 @@ public class StsdAtom extends LeafAtom {
    * @return the video width in pixels
    */
   public int getWidth() {
-    return data.getUnsignedShort(WIDTH_OFFSET);
+    return data().getUnsignedShort(WIDTH_OFFSET);
   }
   
   /**
@@ -81,7 +81,7 @@ public class StsdAtom extends LeafAtom {
    * @return the video height in pixels
    */
   public int getHeight() {
-    return data.getUnsignedShort(HEIGHT_OFFSET);
+    return data().getUnsignedShort(HEIGHT_OFFSET);
   }
   
   @Override
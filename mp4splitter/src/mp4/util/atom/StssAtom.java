@@ -12,11 +12,15 @@ public class StssAtom extends LeafAtom {
   private static final int ENTRY_SIZE = 4;
   private static final int KEY_FRAME = 0;
   
+  // the index of the sync samples, built the first time it's needed and
+  // dropped when the table changes
+  private SyncSampleIndex index;
+  
   /**
    * Construct an empty stts atom
    */
   public StssAtom() {
-    super(new byte[]{'s','t','s','s'});
+    super(AtomType.STSS);
   }
   
   /**
@@ -34,6 +38,7 @@ public class StssAtom extends LeafAtom {
   public void allocateData(long numEntries) {
     long size = TABLE_OFFSET + (numEntries * ENTRY_SIZE);
     super.allocateData(size);
+    index = null;
   }
 
   /**
@@ -41,7 +46,7 @@ public class StssAtom extends LeafAtom {
    * @return the number of entries in the able
    */
   public long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+    return data().getUnsignedInt(ENTRIES_OFFSET);
   }
   
   /**
@@ -49,7 +54,8 @@ public class StssAtom extends LeafAtom {
    * @param numEntries the number of entries
    */
   public void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+    index = null;
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
   }
   
   /**
@@ -58,7 +64,7 @@ public class StssAtom extends LeafAtom {
    * @return the ith entry in the table
    */
   public long getSampleEntry(long i) {
-    return data.getUnsignedInt(TABLE_OFFSET + ((int)i * ENTRY_SIZE) + KEY_FRAME);
+    return data().getUnsignedInt(TABLE_OFFSET + (i * ENTRY_SIZE) + KEY_FRAME);
   }
 
   /**
@@ -67,57 +73,86 @@ public class StssAtom extends LeafAtom {
    * @param keyFrame the value inserted in to the table
    */
   public void setSampleEntry(int index, long keyFrame) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + KEY_FRAME, keyFrame);
+    this.index = null;
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + KEY_FRAME, keyFrame);
   }
   
   /**
-   * Return the key frame for the specified index.
-   * @param sampleNum the sample number
-   * @return the key frame
+   * Return the index of the sync samples in the table, building it the
+   * first time it's needed.
+   * @return the sync sample index
    */
-  public long getKeyFrame(long sampleNum) {
-    if (sampleNum > Integer.MAX_VALUE) {
-      return 0;
-    }
-    long numEntries = getNumEntries();
-    long lastKeyFrame = 0;
-    for (long i = 0; i < numEntries; i++) {
-      long keyFrame = getSampleEntry(i);
-      if (sampleNum < keyFrame) {
-        return lastKeyFrame;
+  public SyncSampleIndex getIndex() {
+    SyncSampleIndex idx = index;
+    if (idx == null) {
+      long[] syncSamples = new long[(int) getNumEntries()];
+      for (int i = 0; i < syncSamples.length; i++) {
+        syncSamples[i] = getSampleEntry(i);
       }
-      lastKeyFrame = keyFrame;
+      idx = new SyncSampleIndex(syncSamples);
+      index = idx;
     }
-    return sampleNum;
+    return idx;
+  }
+
+  /**
+   * Use an index that was built elsewhere, such as one read from an index
+   * file, instead of building it from the table.  The index must have the
+   * same entries as the table.
+   * @param index the sync sample index
+   */
+  public void setIndex(SyncSampleIndex index) {
+    this.index = index;
+  }
+
+  /**
+   * Return the last key frame at or before the specified sample.
+   * @param sampleNum the sample number
+   * @return the key frame, or 0 if the sample is before the first one
+   */
+  public long getKeyFrame(long sampleNum) {
+    return getIndex().previous(sampleNum);
   }
   
   /**
    * Cut the stss table at the specified sample point and create
    * a new atom with the subsequent entries
    * @param bs the byte stream with the new data
-   * @param sampleNum the sample number 
+   * @param sampleNum the sample number, which must be a key frame
    * @return the new stss atom
    */
   public StssAtom cut(long sampleNum) {
-    // find the first entry
+    // find the entry for the sample, which must be a key frame
     long numEntries = getNumEntries();
-    long i;
-    for (i = 0; i < numEntries; i++) {
-      if (sampleNum == getSampleEntry(i)) {
-        break;
-      }
+    long i = getIndex().indexOf(sampleNum);
+    if (i < 0) {
+      throw new AtomError("Sample " + sampleNum + " is not a key frame");
     }
-    assert sampleNum == getSampleEntry(i);
     StssAtom cutStss = new StssAtom();
-    // create the new table
-    cutStss.allocateData(numEntries - i);
+    // create the new table, which shares the entries, renumbered from 1
+    long from = TABLE_OFFSET + i * ENTRY_SIZE;
+    long to = TABLE_OFFSET + numEntries * ENTRY_SIZE;
+    cutStss.setData(data().slice(TABLE_OFFSET, from, to));
     cutStss.setNumEntries(numEntries - i);
-    for (int entryNumber = 0; i < numEntries; i++, entryNumber++) {
-      cutStss.setSampleEntry(entryNumber, getSampleEntry(i) - sampleNum + 1);
-    }
+    cutStss.data().rebase(TABLE_OFFSET, to - from + TABLE_OFFSET, 1 - sampleNum);
     return cutStss;
   }
   
+  /**
+   * Trim the table after the specified number of samples, so it only has
+   * the key frames up to that sample.  The atom is changed in place.
+   * @param numSamples the number of samples to keep
+   */
+  public void trim(long numSamples) {
+    SyncSampleIndex idx = getIndex();
+    long numEntries = idx.indexOf(idx.previous(numSamples)) + 1;
+    if (numEntries >= getNumEntries()) {
+      return;
+    }
+    setData(truncatedData(TABLE_OFFSET, TABLE_OFFSET + numEntries * ENTRY_SIZE));
+    setNumEntries(numEntries);
+  }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
@@ -16,7 +16,7 @@ public class StszAtom extends LeafAtom {
    * Constructor for stsz atom
    */
   public StszAtom() {
-    super(new byte[]{'s','t','s','z'});
+    super(AtomType.STSZ);
   }
   
   /**
@@ -43,7 +43,7 @@ public class StszAtom extends LeafAtom {
    * @return the sample size entry in the atom
    */
   public long getSampleSize() {
-    return data.getUnsignedInt(SAMPLE_SIZE_OFFSET);
+    return data().getUnsignedInt(SAMPLE_SIZE_OFFSET);
   }
   
   /**
@@ -51,7 +51,7 @@ public class StszAtom extends LeafAtom {
    * @param sampleSize the sample size
    */
   public void setSampleSize(long sampleSize) {
-    data.addUnsignedInt(SAMPLE_SIZE_OFFSET, sampleSize);
+    data().addUnsignedInt(SAMPLE_SIZE_OFFSET, sampleSize);
   }
   
   /**
@@ -59,7 +59,7 @@ public class StszAtom extends LeafAtom {
    * @return the number of entries in the table
    */
   public long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+    return data().getUnsignedInt(ENTRIES_OFFSET);
   }
   
   /**
@@ -67,7 +67,7 @@ public class StszAtom extends LeafAtom {
    * @param numEntries the number of entries
    */
   public void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
   }
   
   /**
@@ -76,10 +76,7 @@ public class StszAtom extends LeafAtom {
    * @return the size of the sample
    */
   public long getTableSampleSize(long sampleNum) {
-    if (sampleNum > Integer.MAX_VALUE) {
-      return 0;
-    }
-    return data.getUnsignedInt(TABLE_OFFSET + ((int)(sampleNum - 1)* ENTRY_SIZE));
+    return data().getUnsignedInt(TABLE_OFFSET + ((sampleNum - 1) * ENTRY_SIZE));
   }
   
   /**
@@ -87,13 +84,13 @@ public class StszAtom extends LeafAtom {
    * @param sampleNum the sample number
    * @param sampleSize the sample size
    */
-  public void setTableSampleSize(int sampleNum, long sampleSize) {
-    data.addUnsignedInt(TABLE_OFFSET + ((sampleNum - 1) * ENTRY_SIZE), sampleSize);
+  public void setTableSampleSize(long sampleNum, long sampleSize) {
+    data().addUnsignedInt(TABLE_OFFSET + ((sampleNum - 1) * ENTRY_SIZE), sampleSize);
   }
   
   /**
-   * Cut the stsz table at the specified sample.  Performs the update in place
-   * and fills the rest of the atom with dummy data.
+   * Cut the stsz table at the specified sample.  The new table shares the
+   * sample sizes with this table until one of them changes.
    * @param sampleNum the sample where the split occurs
    */
   public StszAtom cut(long sampleNum) {
@@ -106,17 +103,30 @@ public class StszAtom extends LeafAtom {
     }
     else {
       long numEntries = getNumEntries();
-      cutStsz.allocateData(numEntries - sampleNum + 1);
+      long from = TABLE_OFFSET + (sampleNum - 1) * ENTRY_SIZE;
+      long to = TABLE_OFFSET + numEntries * ENTRY_SIZE;
+      cutStsz.setData(data().slice(TABLE_OFFSET, from, to));
       cutStsz.setSampleSize(0);
       cutStsz.setNumEntries(numEntries - sampleNum + 1);
-      int entryNumber = 1;
-      for (long i = sampleNum; i <= numEntries; i++, entryNumber++) {
-        cutStsz.setTableSampleSize(entryNumber, getTableSampleSize(i));
-      }
     }
     return cutStsz;
   }
   
+  /**
+   * Trim the table after the specified number of samples.  The atom is
+   * changed in place.
+   * @param numSamples the number of samples to keep
+   */
+  public void trim(long numSamples) {
+    if (numSamples >= getNumEntries()) {
+      return;
+    }
+    if (getSampleSize() == 0) {
+      setData(truncatedData(TABLE_OFFSET, TABLE_OFFSET + numSamples * ENTRY_SIZE));
+    }
+    setNumEntries(numSamples);
+  }
+  
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
@@ -16,7 +16,7 @@ public class SttsAtom extends TimeToSampleAtom {
    * Constructor for the time-to-sample atom
    */
   public SttsAtom() {
-    super(new byte[]{'s','t','t','s'});
+    super(AtomType.STTS);
   }
   
   /**
@@ -67,44 +67,30 @@ public class SttsAtom extends TimeToSampleAtom {
   }
 
   /**
-   * Convert the sample number to a time, in media time-scale.
+   * Convert the sample number to a time, in media time-scale.  The entry
+   * is found with a binary search of the table index.
    * @param sampleNum the sample number
    * @return the time for the sample, in media time scale.
    */
   public long sampleToTime(long sampleNum) {
-    long lowerBoundTime = 0;
-    long lowerBoundSample = 1;
-    long numEntries = getNumEntries();
-    for (int i = 0; i < numEntries; i++ ) {
-      long count = getSampleCount(i);
-      long duration = getSampleDuration(i);
-      if ((sampleNum - lowerBoundSample) < count) {
-        return ((sampleNum - lowerBoundSample) * duration) + lowerBoundTime;
-      }
-      lowerBoundTime += count * duration;
-      lowerBoundSample += count;
+    int i = findSample(sampleNum);
+    if (i < 0) {
+      return 0;
     }
-    return 0;
+    return ((sampleNum - getFirstSample(i)) * getSampleDuration(i)) + getFirstTime(i);
   }
 
   /**
-   * Given a time in the media return the data sample.
+   * Given a time in the media return the data sample.  The entry is found
+   * with a binary search of the table index.
    * @param time the media time value
    * @return the sample number for the specified time
    */
   public long timeToSample(long time) {
-    long entries = getNumEntries();
-    long lowerBoundTime = 0;
-    long lowerBoundSample = 1;
-    for (int i = 0; i < entries; i++) {
-      long count = getSampleCount(i);
-      long duration = getSampleDuration(i);
-      if ((time - lowerBoundTime) < (count * duration)) {
-        return ((time - lowerBoundTime) / duration) + lowerBoundSample;
-      }
-      lowerBoundTime += count * duration;
-      lowerBoundSample += count;
+    int i = findTime(time);
+    if (i < 0) {
+      return 0;
     }
-    return 0;    
+    return ((time - getFirstTime(i)) / getSampleDuration(i)) + getFirstSample(i);
   }
 }
\ No newline at end of file
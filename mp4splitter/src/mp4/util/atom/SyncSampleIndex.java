@@ -0,0 +1,274 @@
+package mp4.util.atom;
+
+/**
+ * An index of the sync samples, or key frames, of a track.  The index
+ * answers which key frame comes before, after, or nearest to a sample
+ * with a binary search of the sync sample numbers, and whether a sample
+ * is a key frame with a bit set.
+ *
+ * When a track doesn't have an stss atom, every sample is a sync sample.
+ * The index is then dense, and the queries are answered without a table.
+ *
+ * The sample numbers are 1 based.  A query that has no answer returns 0,
+ * which is not a valid sample number.
+ */
+public class SyncSampleIndex {
+  // the sync sample numbers in ascending order, or null if every sample
+  // is a sync sample
+  private final long[] syncSamples;
+  // the number of samples in a dense index
+  private final long numSamples;
+  // a bit for each sample number that is a sync sample, built the first
+  // time it's needed.  volatile so a shared index can be read by many
+  // threads
+  private volatile long[] bits;
+
+  /**
+   * Create an index from the entries of an stss atom.
+   * @param syncSamples the sync sample numbers in ascending order
+   */
+  public SyncSampleIndex(long[] syncSamples) {
+    this.syncSamples = syncSamples;
+    this.numSamples = 0;
+  }
+
+  /**
+   * Create a dense index, in which every sample is a sync sample.
+   * @param numSamples the number of samples in the track
+   */
+  private SyncSampleIndex(long numSamples) {
+    this.syncSamples = null;
+    this.numSamples = numSamples;
+  }
+
+  /**
+   * Return an index for a track without an stss atom, in which every
+   * sample is a sync sample.
+   * @param numSamples the number of samples in the track
+   * @return the dense index
+   */
+  public static SyncSampleIndex dense(long numSamples) {
+    return new SyncSampleIndex(numSamples);
+  }
+
+  /**
+   * Return true if every sample is a sync sample
+   * @return true if the index is dense
+   */
+  public boolean isDense() {
+    return syncSamples == null;
+  }
+
+  /**
+   * Return the number of sync samples
+   * @return the number of sync samples
+   */
+  public long size() {
+    return syncSamples == null ? numSamples : syncSamples.length;
+  }
+
+  /**
+   * Return the position of the first sync sample that is greater than or
+   * equal to the sample number.
+   * @param sampleNum the sample number
+   * @param from the position where the search starts
+   * @return the position, which is the number of sync samples if there
+   * is no such sample
+   */
+  private int search(long sampleNum, int from) {
+    int lo = from;
+    int hi = syncSamples.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (syncSamples[mid] < sampleNum) {
+        lo = mid + 1;
+      }
+      else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Return the position of the specified sync sample in the stss table.
+   * @param sampleNum the sample number
+   * @return the table index, or -1 if the sample isn't a sync sample
+   */
+  public int indexOf(long sampleNum) {
+    if (syncSamples == null) {
+      return sampleNum >= 1 && sampleNum <= numSamples ? (int) (sampleNum - 1) : -1;
+    }
+    int i = search(sampleNum, 0);
+    return i < syncSamples.length && syncSamples[i] == sampleNum ? i : -1;
+  }
+
+  /**
+   * Return the last sync sample at or before the specified sample.
+   * @param sampleNum the sample number
+   * @return the sync sample, or 0 if there isn't one
+   */
+  public long previous(long sampleNum) {
+    if (syncSamples == null) {
+      return sampleNum < 1 ? 0 : Math.min(sampleNum, numSamples);
+    }
+    return previousAt(search(sampleNum + 1, 0));
+  }
+
+  /**
+   * Return the sync sample before a search position
+   * @param pos the search position for sampleNum + 1
+   * @return the sync sample, or 0 if there isn't one
+   */
+  private long previousAt(int pos) {
+    return pos > 0 ? syncSamples[pos - 1] : 0;
+  }
+
+  /**
+   * Return the first sync sample at or after the specified sample.
+   * @param sampleNum the sample number
+   * @return the sync sample, or 0 if there isn't one
+   */
+  public long next(long sampleNum) {
+    if (syncSamples == null) {
+      return sampleNum > numSamples ? 0 : Math.max(sampleNum, 1);
+    }
+    return nextAt(search(sampleNum, 0));
+  }
+
+  /**
+   * Return the sync sample at a search position
+   * @param pos the search position for sampleNum
+   * @return the sync sample, or 0 if there isn't one
+   */
+  private long nextAt(int pos) {
+    return pos < syncSamples.length ? syncSamples[pos] : 0;
+  }
+
+  /**
+   * Return the sync sample closest to the specified sample.  If two are
+   * the same distance away, the earlier one is returned.
+   * @param sampleNum the sample number
+   * @return the sync sample, or 0 if there aren't any
+   */
+  public long nearest(long sampleNum) {
+    return closer(sampleNum, previous(sampleNum), next(sampleNum));
+  }
+
+  /**
+   * Return the sync sample that is closer to the sample number
+   * @param sampleNum the sample number
+   * @param prev the sync sample before, or 0
+   * @param next the sync sample after, or 0
+   * @return the closer one, preferring the earlier one
+   */
+  private static long closer(long sampleNum, long prev, long next) {
+    if (prev == 0) {
+      return next;
+    }
+    if (next == 0 || sampleNum - prev <= next - sampleNum) {
+      return prev;
+    }
+    return next;
+  }
+
+  /**
+   * Return the bit set of the sync samples, building it if needed
+   * @return a word of bits for every 64 sample numbers
+   */
+  private long[] bits() {
+    long[] b = bits;
+    if (b == null) {
+      long max = syncSamples.length == 0 ? 0 : syncSamples[syncSamples.length - 1];
+      b = new long[(int) (max >>> 6) + 1];
+      for (long s : syncSamples) {
+        b[(int) (s >>> 6)] |= 1L << s;
+      }
+      bits = b;
+    }
+    return b;
+  }
+
+  /**
+   * Build the bit set, if it hasn't been built, so a shared index doesn't
+   * build it during a query.
+   * @return the estimated memory used by the index in bytes
+   */
+  public long load() {
+    if (syncSamples == null) {
+      return 0;
+    }
+    return 8L * (syncSamples.length + bits().length);
+  }
+
+  /**
+   * Return true if the sample is a sync sample.  The first call builds a
+   * bit set with a bit for each sample, so later calls don't search.
+   * @param sampleNum the sample number
+   * @return true if the sample is a sync sample
+   */
+  public boolean isSync(long sampleNum) {
+    if (syncSamples == null) {
+      return sampleNum >= 1 && sampleNum <= numSamples;
+    }
+    long[] b = bits();
+    long word = sampleNum >>> 6;
+    return sampleNum >= 0 && word < b.length && (b[(int) word] & (1L << sampleNum)) != 0;
+  }
+
+  /**
+   * Return the last sync sample at or before each of the sample numbers.
+   * The sample numbers must be in ascending order, so each search starts
+   * where the previous one ended.
+   * @param sampleNums the sample numbers, in ascending order
+   * @return the sync samples, with 0 where there isn't one
+   */
+  public long[] previous(long[] sampleNums) {
+    long[] result = new long[sampleNums.length];
+    int pos = 0;
+    for (int i = 0; i < sampleNums.length; i++) {
+      if (syncSamples == null) {
+        result[i] = previous(sampleNums[i]);
+        continue;
+      }
+      pos = search(sampleNums[i] + 1, pos);
+      result[i] = previousAt(pos);
+    }
+    return result;
+  }
+
+  /**
+   * Return the first sync sample at or after each of the sample numbers.
+   * The sample numbers must be in ascending order.
+   * @param sampleNums the sample numbers, in ascending order
+   * @return the sync samples, with 0 where there isn't one
+   */
+  public long[] next(long[] sampleNums) {
+    long[] result = new long[sampleNums.length];
+    int pos = 0;
+    for (int i = 0; i < sampleNums.length; i++) {
+      if (syncSamples == null) {
+        result[i] = next(sampleNums[i]);
+        continue;
+      }
+      pos = search(sampleNums[i], pos);
+      result[i] = nextAt(pos);
+    }
+    return result;
+  }
+
+  /**
+   * Return the sync sample nearest to each of the sample numbers.  The
+   * sample numbers must be in ascending order.
+   * @param sampleNums the sample numbers, in ascending order
+   * @return the sync samples, with 0 where there aren't any
+   */
+  public long[] nearest(long[] sampleNums) {
+    long[] prev = previous(sampleNums);
+    long[] next = next(sampleNums);
+    for (int i = 0; i < sampleNums.length; i++) {
+      prev[i] = closer(sampleNums[i], prev[i], next[i]);
+    }
+    return prev;
+  }
+}
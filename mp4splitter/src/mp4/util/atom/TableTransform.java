@@ -0,0 +1,178 @@
+package mp4.util.atom;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Bulk operations on the tables in the sample table atoms.  The tables
+ * are arrays of big-endian 32-bit or 64-bit values.  The operations use
+ * int and long views of the buffer, so each value is read and written as
+ * a word instead of a byte at a time.
+ */
+public final class TableTransform {
+  // tables at least this large are copied by several threads
+  private static final int PARALLEL_SIZE = 1 << 20;
+
+  private TableTransform() {
+  }
+
+  /**
+   * Return an int view of the range in the buffer.
+   * @param buf the buffer
+   * @param from the offset of the first value
+   * @param to the offset after the last value
+   * @return an int view of the range
+   */
+  private static IntBuffer ints(ByteBuffer buf, int from, int to) {
+    return buf.slice(from, to - from).asIntBuffer();
+  }
+
+  /**
+   * Add a value to each unsigned 32-bit value in the range.  The buffer
+   * is changed in place.
+   * @param buf the buffer with the table
+   * @param from the offset of the first value
+   * @param to the offset after the last value
+   * @param val the value added to each entry
+   * @throws AtomError if an entry no longer fits in 32 bits
+   */
+  public static void rebaseInts(ByteBuffer buf, int from, int to, long val) {
+    IntBuffer table = ints(buf, from, to);
+    int n = table.limit();
+    // a result that doesn't fit in 32 bits sets a high bit in the check
+    long check = 0;
+    for (int i = 0; i < n; i++) {
+      long v = (table.get(i) & 0xffffffffL) + val;
+      check |= v;
+      table.put(i, (int) v);
+    }
+    if ((check >>> 32) != 0) {
+      throw new AtomError("Table entry does not fit in 32 bits after adding " + val);
+    }
+  }
+
+  /**
+   * Add a value to each 64-bit value in the range.  The buffer is changed
+   * in place.
+   * @param buf the buffer with the table
+   * @param from the offset of the first value
+   * @param to the offset after the last value
+   * @param val the value added to each entry
+   * @throws AtomError if an entry becomes negative or too large
+   */
+  public static void rebaseLongs(ByteBuffer buf, int from, int to, long val) {
+    LongBuffer table = buf.slice(from, to - from).asLongBuffer();
+    int n = table.limit();
+    long check = 0;
+    for (int i = 0; i < n; i++) {
+      long v = table.get(i) + val;
+      // an offset is never negative, so a negative result has overflowed
+      check |= v;
+      table.put(i, v);
+    }
+    if (check < 0) {
+      throw new AtomError("Table entry does not fit in 64 bits after adding " + val);
+    }
+  }
+
+  /**
+   * Copy the 32-bit values from one buffer to another, adding a value to
+   * each one.  The values wrap around.  A large table is split in to
+   * pieces that are copied in parallel.
+   * @param src the source buffer
+   * @param srcOff the offset of the first value in the source
+   * @param dst the destination buffer
+   * @param dstOff the offset of the first value in the destination
+   * @param len the number of bytes, a multiple of 4
+   * @param val the value added to each entry
+   */
+  public static void copyRebased(ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int len, int val) {
+    if (len >= PARALLEL_SIZE) {
+      ForkJoinPool.commonPool().invoke(new CopyTask(src, srcOff, dst, dstOff, len, val));
+      return;
+    }
+    copyRange(src, srcOff, dst, dstOff, len, val);
+  }
+
+  /**
+   * Copy the 32-bit values from one buffer to another in this thread,
+   * adding a value to each one.
+   * @param src the source buffer
+   * @param srcOff the offset of the first value in the source
+   * @param dst the destination buffer
+   * @param dstOff the offset of the first value in the destination
+   * @param len the number of bytes, a multiple of 4
+   * @param val the value added to each entry
+   */
+  private static void copyRange(ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int len, int val) {
+    IntBuffer in = ints(src, srcOff, srcOff + len);
+    IntBuffer out = ints(dst, dstOff, dstOff + len);
+    int n = in.limit();
+    for (int i = 0; i < n; i++) {
+      out.put(i, in.get(i) + val);
+    }
+  }
+
+  /**
+   * Return the smallest and largest unsigned 32-bit values in the range,
+   * after adding a value to each one.  The values wrap around.
+   * @param buf the buffer with the table
+   * @param from the offset of the first value
+   * @param to the offset after the last value
+   * @param val the value added to each entry
+   * @return the minimum and maximum values, or {0, 0} for an empty range
+   */
+  public static long[] unsignedRange(ByteBuffer buf, int from, int to, int val) {
+    IntBuffer table = ints(buf, from, to);
+    int n = table.limit();
+    if (n == 0) {
+      return new long[]{0, 0};
+    }
+    long min = 0xffffffffL;
+    long max = 0;
+    for (int i = 0; i < n; i++) {
+      long v = (table.get(i) + val) & 0xffffffffL;
+      min = Math.min(min, v);
+      max = Math.max(max, v);
+    }
+    return new long[]{min, max};
+  }
+
+  /**
+   * A task that copies part of a table, splitting it in half until the
+   * pieces are small enough to copy in one thread.  The tasks use absolute
+   * gets and puts on different ranges, so they can share the buffers.
+   */
+  @SuppressWarnings("serial")
+  private static class CopyTask extends RecursiveAction {
+    private final ByteBuffer src;
+    private final int srcOff;
+    private final ByteBuffer dst;
+    private final int dstOff;
+    private final int len;
+    private final int val;
+
+    CopyTask(ByteBuffer src, int srcOff, ByteBuffer dst, int dstOff, int len, int val) {
+      this.src = src;
+      this.srcOff = srcOff;
+      this.dst = dst;
+      this.dstOff = dstOff;
+      this.len = len;
+      this.val = val;
+    }
+
+    @Override
+    protected void compute() {
+      if (len < PARALLEL_SIZE) {
+        copyRange(src, srcOff, dst, dstOff, len, val);
+        return;
+      }
+      int half = (len / 2) & ~3;
+      invokeAll(new CopyTask(src, srcOff, dst, dstOff, half, val),
+          new CopyTask(src, srcOff + half, dst, dstOff + half, len - half, val));
+    }
+  }
+}
@@ -16,12 +16,16 @@ public abstract class TimeToSampleAtom extends LeafAtom {
   // the semantics of SAMPLE_VALUE depends up on the concrete class
   protected static final int SAMPLE_VALUE = 4;
   protected static final int ENTRY_SIZE = 8;
+  
+  // the prefix sums of the table, built the first time a lookup needs
+  // them and dropped when the table changes
+  private Index index;
 
   /**
    * Constructor passes argument to super class
    * @param type the atom type
    */
-  protected TimeToSampleAtom(byte[] type) {
+  protected TimeToSampleAtom(int type) {
     super(type);
   }
   
@@ -40,6 +44,7 @@ public abstract class TimeToSampleAtom extends LeafAtom {
   public void allocateData(long numEntries) {
     long size = TABLE_OFFSET + (numEntries * ENTRY_SIZE);
     super.allocateData(size);
+    index = null;
   }
 
   /**
@@ -47,7 +52,7 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @return the number of entries in the table
    */
   public final long getNumEntries() {
-    return data.getUnsignedInt(ENTRIES_OFFSET);
+    return data().getUnsignedInt(ENTRIES_OFFSET);
   }
   
   /**
@@ -55,7 +60,8 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @param numEntries the number of entries
    */
   public final void setNumEntries(long numEntries) {
-    data.addUnsignedInt(ENTRIES_OFFSET, numEntries);
+    index = null;
+    data().addUnsignedInt(ENTRIES_OFFSET, numEntries);
   }
   
   /**
@@ -64,7 +70,7 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @return the sample count
    */
   public final long getSampleCount(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_COUNT);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_COUNT);
   }
   
   /**
@@ -73,7 +79,8 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @param sc the sample count value
    */
   public final void setSampleCount(int index, long sc) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_COUNT, sc);
+    this.index = null;
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_COUNT, sc);
   }
   
   /**
@@ -84,7 +91,7 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @return the sample value
    */
   protected final long getSampleValue(int index) {
-    return data.getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_VALUE);
+    return data().getUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_VALUE);
   }
   
   /**
@@ -95,7 +102,8 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @param value the value value for the specified entry
    */
   protected final void setSampleValue(int index, long value) {
-    data.addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_VALUE, value);
+    this.index = null;
+    data().addUnsignedInt(TABLE_OFFSET + (index * ENTRY_SIZE) + SAMPLE_VALUE, value);
   }
   
   /**
@@ -105,51 +113,168 @@ public abstract class TimeToSampleAtom extends LeafAtom {
    * @param cutAtom the stts or ctts atom
    */
   protected void cut(long sampleNum, TimeToSampleAtom cutAtom) {
-    // search the table for the specified sample 
+    // search the table for the entry that contains the specified sample
     long numEntries = getNumEntries();
-    long upperBoundSample = 0;
-    int i;
-    for (i = 0; i < numEntries; i++) {
-      long count = getSampleCount(i);
-      upperBoundSample += count;
-      if (sampleNum <= upperBoundSample) {
-        // we've found the stts entry that contains this sample
-        // create a new stts entry with the new count
-        break;
-      }
+    int i = findSample(sampleNum);
+    if (i < 0) {
+      i = (int) numEntries;
     }
+    long upperBoundSample = getFirstSample(Math.min(i + 1, (int) numEntries)) - 1;
     // create the new table
     long newCount = upperBoundSample - sampleNum + 1;
     long newNumEntries = numEntries - i;
-    // add the new number of entries to the table
-    cutAtom.allocateData(newNumEntries);
+    // the new first entry is in the header, and the rest of the entries
+    // are shared with the old table
+    long from = TABLE_OFFSET + (i + 1L) * ENTRY_SIZE;
+    long to = TABLE_OFFSET + numEntries * ENTRY_SIZE;
+    cutAtom.setData(data().slice(TABLE_OFFSET + ENTRY_SIZE, from, to));
     cutAtom.setNumEntries(newNumEntries);
     // add the new first entry 
-    int entryNumber = 0;
-    cutAtom.setSampleCount(entryNumber, newCount);
-    cutAtom.setSampleValue(entryNumber, getSampleValue(i));
-    entryNumber++;
-    // copy the rest of the entries from the old table to the new table
-    for (i++; i < numEntries; i++, entryNumber++) {
-      cutAtom.setSampleCount(entryNumber, getSampleCount(i));
-      cutAtom.setSampleValue(entryNumber, getSampleValue(i));
-    }    
+    cutAtom.setSampleCount(0, newCount);
+    cutAtom.setSampleValue(0, getSampleValue(i));
+  }
+
+  /**
+   * Trim the table after the specified number of samples.  The atom is
+   * changed in place, and the entries that are kept are shared with the
+   * old table.
+   * @param numSamples the number of samples to keep
+   */
+  public void trim(long numSamples) {
+    int i = findSample(numSamples);
+    if (i < 0) {
+      return;
+    }
+    long count = numSamples - getFirstSample(i) + 1;
+    setData(truncatedData(TABLE_OFFSET, TABLE_OFFSET + (i + 1L) * ENTRY_SIZE));
+    setNumEntries(i + 1);
+    setSampleCount(i, count);
   }
 
   public abstract void accept(AtomVisitor v) throws AtomException;
+  
+  /**
+   * Return the number of the first sample in the specified entry.  The
+   * sample numbers are 1 based.  The entry may be one past the end of the
+   * table, which returns one more than the number of samples.
+   * @param entry the table index
+   * @return the number of the first sample in the entry
+   */
+  protected final long getFirstSample(int entry) {
+    return index().samples[entry];
+  }
+  
+  /**
+   * Return the sum of the sample count times the sample value of each
+   * entry before the specified entry.  For stts, this is the time of the
+   * first sample in the entry.
+   * @param entry the table index, up to one past the end of the table
+   * @return the time of the first sample in the entry
+   */
+  protected final long getFirstTime(int entry) {
+    return index().times[entry];
+  }
+  
+  /**
+   * Return the first entry that contains the specified sample, using a
+   * binary search of the index.
+   * @param sampleNum the sample number, 1 based
+   * @return the table index, or -1 if the sample is past the end
+   */
+  protected final int findSample(long sampleNum) {
+    return findFirstAbove(index().samples, sampleNum);
+  }
+  
+  /**
+   * Return the first entry that contains the specified time, using a
+   * binary search of the index.
+   * @param time the time
+   * @return the table index, or -1 if the time is past the end
+   */
+  protected final int findTime(long time) {
+    return findFirstAbove(index().times, time);
+  }
+  
+  /**
+   * Return the first entry whose end, which is the start of the next entry,
+   * is greater than the value.
+   * @param starts the prefix sums, with one more element than the table
+   * @param val the value to find
+   * @return the table index, or -1 if there is no such entry
+   */
+  private static int findFirstAbove(long[] starts, long val) {
+    int lo = 0;
+    int hi = starts.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (starts[mid + 1] > val) {
+        hi = mid;
+      }
+      else {
+        lo = mid + 1;
+      }
+    }
+    return lo < starts.length - 1 ? lo : -1;
+  }
+  
+  /**
+   * Return the index of the table, building it if needed.
+   * @return the index
+   */
+  private Index index() {
+    Index idx = index;
+    if (idx == null) {
+      int numEntries = (int) getNumEntries();
+      long[] samples = new long[numEntries + 1];
+      long[] times = new long[numEntries + 1];
+      samples[0] = 1;
+      for (int i = 0; i < numEntries; i++) {
+        long count = getSampleCount(i);
+        samples[i + 1] = samples[i] + count;
+        times[i + 1] = times[i] + count * getSampleValue(i);
+      }
+      idx = new Index(samples, times);
+      index = idx;
+    }
+    return idx;
+  }
+
+  /**
+   * Build the index of the table, if it hasn't been built, so a shared
+   * atom doesn't build it during a lookup.
+   * @return the estimated memory used by the index in bytes
+   */
+  public long loadIndex() {
+    Index idx = index();
+    return 8L * (idx.samples.length + idx.times.length);
+  }
 
   /**
    * Compute the duration of the samples in the track.  This atom contains
-   * the duration of each sample.  This method iterates over the table 
-   * to compute the duration of all the samples
+   * the duration of each sample.  The duration is the last sum in the
+   * table index, so it's only computed once.
    * @return the duration of the track
    */
   public long computeDuration() {
-    long duration = 0;
-    for (long i = 0; i < getNumEntries(); i++) {
-      duration += (getSampleCount((int)i) * getSampleValue((int)i));
+    return getFirstTime((int) getNumEntries());
+  }
+  
+  /**
+   * The prefix sums of the sample counts and of the sample count times the
+   * sample value, for each entry.  Element i is the sum over the entries
+   * before entry i, and the last element is the sum over the whole table.
+   * The arrays are final, so an index built by one thread can be used by
+   * another.
+   */
+  private static class Index {
+    // the number of the first sample of each entry
+    final long[] samples;
+    // the time of the first sample of each entry
+    final long[] times;
+    
+    Index(long[] samples, long[] times) {
+      this.samples = samples;
+      this.times = times;
     }
-    return duration;
   }
-
 }
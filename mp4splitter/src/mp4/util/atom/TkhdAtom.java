@@ -25,7 +25,7 @@ public class TkhdAtom extends LeafAtom {
   private static final int HEIGHT_OFFSET = 80;
   
   public TkhdAtom() {
-    super(new byte[]{'t','k','h','d'});
+    super(AtomType.TKHD);
   }
   
   /**
@@ -41,7 +41,7 @@ public class TkhdAtom extends LeafAtom {
    * @return the track id
    */
   public long getTrackId() {
-    return data.getUnsignedInt(TRACK_ID_OFFSET);
+    return data().getUnsignedInt(TRACK_ID_OFFSET);
   }
   
   /**
@@ -49,7 +49,7 @@ public class TkhdAtom extends LeafAtom {
    * @param id the new track id
    */
   public void setTrackId(long id) {
-    data.addUnsignedInt(TRACK_ID_OFFSET, id);
+    data().addUnsignedInt(TRACK_ID_OFFSET, id);
   }
     
   /**
@@ -58,7 +58,7 @@ public class TkhdAtom extends LeafAtom {
    * @return the track's duration.
    */
   public long getDuration() {
-    return data.getUnsignedInt(DURATION_OFFSET);
+    return data().getUnsignedInt(DURATION_OFFSET);
   }
   
   /**
@@ -67,7 +67,7 @@ public class TkhdAtom extends LeafAtom {
    * @param duration the track's duration in movie's timescale
    */
   public void setDuration(long duration) {
-    data.addUnsignedInt(DURATION_OFFSET, duration);
+    data().addUnsignedInt(DURATION_OFFSET, duration);
   }
   
   /**
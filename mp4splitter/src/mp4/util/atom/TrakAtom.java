@@ -3,8 +3,7 @@
  */
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * The container atom for a single track of a presentation. Movie presentation typically
@@ -26,7 +25,7 @@ public class TrakAtom extends ContainerAtom {
    * Constructor
    */
   public TrakAtom() {
-    super(new byte[]{'t','r','a','k'});
+    super(AtomType.TRAK);
   }
   
   /**
@@ -150,30 +149,14 @@ public class TrakAtom extends ContainerAtom {
     else if (child instanceof UdtaAtom) {
       udta = (UdtaAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to trak");
     }
   }
   
-  /**
-   * Recompute the size of the track atom, which needs to be done if
-   * the contents change.
-   */
-  @Override
-  protected void recomputeSize() {
-    long newSize = tkhd.size() + mdia.size();
-    if (tref != null) {
-      newSize += tref.size();
-    }
-    if (edts != null) {
-      newSize += edts.size();
-    }
-    if (udta != null) {
-      newSize += udta.size();
-    }
-    setSize(ATOM_HEADER_SIZE + newSize);
-  }
-
   /**
    * Cut the track atom at the specified time (seconds).  The time needs to be normalized
    * to the media's time-scale.
@@ -201,33 +184,64 @@ public class TrakAtom extends ContainerAtom {
     if (tref != null) {
       cutTrak.setTref(tref.cut());
     }
-    cutTrak.recomputeSize();
+    cutTrak.copyUnknownChildren(this);
     return cutTrak;
   }
 
+  /**
+   * Trim the track so it ends at the specified time, which ends a cut.
+   * The track is changed in place, so this is used on a track created by
+   * cut().  The caller updates the track duration.
+   * @param time the normalized time, in seconds, from the start of the track
+   */
+  public void trim(float time) {
+    long mediaTime = (long)(time * mdia.getMdhd().getTimeScale());
+    System.out.println("DBG: trim media time " + mediaTime);
+    mdia.trim(mediaTime);
+  }
+
+  /**
+   * Return the key frame where the track would be cut at the specified
+   * time, without cutting it.
+   * @param time the normalized time, in seconds, to cut the track
+   * @return the key frame
+   */
+  public long findKeyFrame(float time) {
+    long mediaTime = (long)(time * mdia.getMdhd().getTimeScale());
+    return mdia.getMinf().getStbl().findKeyFrame(mediaTime);
+  }
+  
+  /**
+   * Return the duration the track would have after a cut at the key frame,
+   * without cutting it.  This is the convertDuration() of the cut track.
+   * @param keyFrame the key frame where the cut starts
+   * @param timeScale the time-scale of the duration
+   * @return the duration of the cut track
+   */
+  public long cutDuration(long keyFrame, long timeScale) {
+    SttsAtom stts = mdia.getMinf().getStbl().getStts();
+    long mediaDuration = stts.computeDuration() - stts.sampleToTime(keyFrame);
+    return (long)(mediaDuration * 
+        ((double)timeScale / (double)mdia.getMdhd().getTimeScale()));
+  }
+
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this); 
   }
 
-  /**
-   * Write the trak atom data to the specified output
-   * @param out where the data goes
-   * @throws IOException if there is an error writing the data
-   */
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    tkhd.writeData(out);
-    mdia.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add(tkhd);
+    children.add(mdia);
     if (edts != null) {
-      edts.writeData(out);
+      children.add(edts);
     }
     if (udta != null) {
-      udta.writeData(out);
+      children.add(udta);
     }
     if (tref != null) {
-      tref.writeData(out);
+      children.add(tref);
     }
   }
   
@@ -244,13 +258,13 @@ public class TrakAtom extends ContainerAtom {
   }
 
   /**
-   * Fixup the chunk offsets values located in the stco atom.  This needs
-   * to be done if the size of any atoms has changed since the chunk offset
+   * Fixup the chunk offsets values located in the stco or co64 atom.  This
+   * needs to be done if the size of any atoms has changed since the chunk offset
    * values are absolute values from the start of the file.
    * @param delta the amount to update each chunk offset.
    */
   public void fixupOffsets(long delta) {
-    getMdia().getMinf().getStbl().getStco().fixupOffsets(delta);
+    getMdia().getMinf().getStbl().getChunkOffsets().fixupOffsets(delta);
   }
   
   /**
@@ -1,7 +1,6 @@
 package mp4.util.atom;
 
-import java.io.DataOutput;
-import java.io.IOException;
+import java.util.List;
 
 /**
  * A track reference atom.
@@ -14,7 +13,7 @@ public class TrefAtom extends ContainerAtom {
    * Construct an empty tref atom
    */
   public TrefAtom() {
-    super(new byte[]{'t','r','e','f'});
+    super(AtomType.TREF);
   }
   
   /**
@@ -39,25 +38,22 @@ public class TrefAtom extends ContainerAtom {
     if (child instanceof ITrefTypeAtom) {
       trefType = (ITrefTypeAtom) child;
     }
+    else if (child instanceof UnknownAtom) {
+      addUnknownChild((UnknownAtom) child);
+    }
     else {
       throw new AtomError("Can't add " + child + " to tref");
     }
   }
 
-  @Override
-  protected void recomputeSize() {
-    setSize(ATOM_HEADER_SIZE + trefType.size());
-  }
-
   @Override
   public void accept(AtomVisitor v) throws AtomException {
     v.visit(this);
   }
 
   @Override
-  public void writeData(DataOutput out) throws IOException {
-    writeHeader(out);
-    trefType.writeData(out);
+  protected void addKnownChildren(List<Atom> children) {
+    children.add((Atom) trefType);
   }
 
   /**
@@ -12,7 +12,7 @@ public class UdtaAtom extends LeafAtom {
    * Constructor for a user-data atom.
    */
   public UdtaAtom() {
-    super(new byte[]{'u','d','t','a'});
+    super(AtomType.UDTA);
   }
   
   /**
@@ -0,0 +1,29 @@
+package mp4.util.atom;
+
+/**
+ * An atom whose type isn't known.  The atom's data is kept as is.
+ */
+public class UnknownAtom extends LeafAtom {
+
+  /**
+   * Construct an empty atom of an unknown type.
+   * @param type the atom's type
+   */
+  public UnknownAtom(int type) {
+    super(type);
+  }
+  
+  /**
+   * Copy constructor.  Performs a deep copy.
+   * @param old the version to copy
+   */
+  public UnknownAtom(UnknownAtom old) {
+    super(old);
+  }
+  
+  @Override
+  public void accept(AtomVisitor v) throws AtomException {
+    v.visit(this);
+  }
+
+}
@@ -12,7 +12,7 @@ public class VmhdAtom extends LeafAtom implements IMhdAtom {
    * Constructor for the video media information atom
    */
   public VmhdAtom() {
-    super(new byte[]{'v','m','h','d'});
+    super(AtomType.VMHD);
   }
   
   /**